@@ -13,6 +13,7 @@ import bgp.core.BGPRouter;
 import bgp.simulation.Logger;
 import bgp.simulation.Simulator;
 import bgp.simulation.LogMessage.LogMessageType;
+import bgp.utils.Cancellable;
 import bgp.utils.PacketEngine;
 
 public class PingerClient extends BGPClient implements Pinger {
@@ -36,24 +37,43 @@ public class PingerClient extends BGPClient implements Pinger {
 	
 	public void startPinging(List<Long> recipientAddresses, int pingLimit, long interval) {
 		this.pingLimit = pingLimit*recipientAddresses.size();
-		TimerTask task = new TimerTask() {
+		PingTask task = new PingTask(recipientAddresses);
+		task.schedule = Simulator.addClientTask(task, interval);
+	}
+	
+	/**
+	 * Sends a ping to every recipient on each run until the limit is reached.
+	 */
+	private class PingTask extends TimerTask {
+		
+		private final List<Long> recipientAddresses;
+		// Also stops the task in discrete-event simulation, where cancelling a TimerTask does not
+		private volatile Cancellable schedule;
+		
+		private PingTask(List<Long> recipientAddresses) {
+			this.recipientAddresses = recipientAddresses;
+		}
+		
+		@Override
+		public void run() {
+			Logger.clientLog("Pings sent: " + pingsSent + ", pings lost: " + (pingsSent - responsesReceived), address, LogMessageType.GENERAL);
+			for (long recipient : recipientAddresses) {
+				boolean limitReached = sendPing(recipient);
 				
-			@Override
-			public void run() {
-				Logger.clientLog("Pings sent: " + pingsSent + ", pings lost: " + (pingsSent - responsesReceived), address, LogMessageType.GENERAL);
-				for (long recipient : recipientAddresses) {
-					boolean limitReached = sendPing(recipient);
-					
-					if (limitReached) {
-						this.cancel();
-						return;
-					}
+				if (limitReached) {
+					this.cancel();
+					return;
 				}
-				
 			}
-		};
+		}
 		
-		Simulator.addClientTask(task, interval);
+		@Override
+		public boolean cancel() {
+			if (schedule != null) {
+				schedule.cancel();
+			}
+			return super.cancel();
+		}
 	}
 	
 	public void stopPinging() {
@@ -10,8 +10,13 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import bgp.core.messages.BGPMessage;
@@ -20,26 +25,26 @@ import bgp.core.messages.NotificationMessage;
 import bgp.core.messages.OpenMessage;
 import bgp.core.messages.TrustMessage;
 import bgp.core.messages.UpdateMessage;
-import bgp.core.messages.UpdateMessageBuilder;
 import bgp.core.messages.notificationexceptions.NotificationException;
-import bgp.core.messages.notificationexceptions.UpdateMessageException;
-import bgp.core.messages.pathattributes.AsPath;
-import bgp.core.messages.pathattributes.NextHop;
-import bgp.core.messages.pathattributes.Origin;
-import bgp.core.messages.pathattributes.PathAttribute;
 import bgp.core.network.ASConnection;
 import bgp.core.network.InterRouterInterface;
+import bgp.core.network.Mailbox;
 import bgp.core.network.fsm.State;
 import bgp.core.network.packet.PacketReceiver;
 import bgp.core.network.packet.PacketRouter;
+import bgp.core.network.packet.TrafficClass;
+import bgp.core.routing.AdjRibOut;
+import bgp.core.routing.RouteChanges;
 import bgp.core.routing.RoutingEngine;
 import bgp.core.routing.SubnetNode;
 import bgp.core.trust.TrustEngine;
+import bgp.simulation.DiscreteEventEngine;
 import bgp.simulation.LogMessage.LogMessageType;
 import bgp.simulation.Logger;
 import bgp.simulation.Simulator;
 import bgp.utils.Address;
 import bgp.utils.AddressProvider;
+import bgp.utils.AddressSet;
 import bgp.utils.PacketEngine;
 import bgp.utils.Subnet;
 
@@ -57,10 +62,48 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 	 * Map that pairs AS id's to their corresponding connections
 	 */
 	private final Map<Integer, ASConnection> connections;
+	/**
+	 * Connections indexed by AS id for the forwarding path, mirrors {@link #connections}
+	 */
+	private volatile ASConnection[] adjacency;
 	
-	private final ExecutorService packetProcessingThread;
+	/**
+	 * Single-threaded packet processing shards, packets of one flow always go to the same shard
+	 */
+	private final Mailbox[] packetProcessingThreads;
 	
-	private final ExecutorService maintenanceThread;
+	private final Mailbox maintenanceThread;
+	
+	/**
+	 * Session control messages, kept apart so that KEEPALIVEs never wait behind data packets
+	 */
+	private final Mailbox controlThread;
+	
+	/**
+	 * Forwards the packets taken from the shards, created once so that no lambda is queued per packet
+	 */
+	private final Mailbox.PacketHandler packetForwarder = this::forwardPacket;
+	
+	/**
+	 * Timer of the decision windows of all routers, the decision process itself runs in the maintenance thread
+	 */
+	private static final ScheduledExecutorService DECISION_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Decision timer");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * Replaces the threads above in discrete-event simulation, null in real time
+	 */
+	private final DiscreteEventEngine eventEngine;
+	
+	/**
+	 * Time in milliseconds UPDATE messages are coalesced before running the decision process
+	 */
+	private final long decisionWindow;
+	
+	private final AtomicBoolean decisionScheduled;
 	
 	private final RoutingEngine routingEngine;
 	
@@ -71,83 +114,263 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 	 */
 	private final Map<Long, PacketReceiver> packetReceivers;
 	
-	private long addressingPointer;
+	/**
+	 * Addresses of the subnet handed out, and the address to continue looking for
+	 * a free one from, wrapping around to the start of the subnet at its end.
+	 */
+	private final AddressSet reservedAddresses;
+	private final AtomicLong addressingPointer;
 	
-	private long receivedPacketCount;
+	// Counted by both the maintenance and the control thread
+	private final LongAdder receivedPacketCount = new LongAdder();
 	
 	public BGPRouter(int id, Subnet subnet) {
+		this(id, subnet, Simulator.getPacketProcessingShards());
+	}
+	
+	/**
+	 * @param id
+	 * @param subnet
+	 * @param packetProcessingShards Amount of packet processing threads, 1 processes all packets in one thread
+	 */
+	public BGPRouter(int id, Subnet subnet, int packetProcessingShards) {
+		if (packetProcessingShards < 1) {
+			throw new IllegalArgumentException("At least one packet processing shard is required");
+		}
 		Logger.log("New router started, subnet: " + subnet, id, LogMessageType.GENERAL);
 		this.id = id;
 		
 		this.addressToASId = new ConcurrentHashMap<>();
 		this.connections = new ConcurrentHashMap<>();
+		this.adjacency = new ASConnection[0];
 		
 		this.packetReceivers = new ConcurrentHashMap<>();
 		this.subnet = subnet;
-		this.addressingPointer = this.subnet.getAddress() + 1;
+		this.reservedAddresses = new AddressSet();
+		this.addressingPointer = new AtomicLong(this.subnet.getAddress() + 1);
 		
-		this.packetProcessingThread = Executors.newSingleThreadExecutor();
-		this.maintenanceThread = Executors.newSingleThreadExecutor();
+		this.packetProcessingThreads = new Mailbox[packetProcessingShards];
+		for (int i = 0; i < packetProcessingShards; i++) {
+			this.packetProcessingThreads[i] = newProcessingThread();
+		}
+		this.maintenanceThread = newProcessingThread();
+		this.controlThread = newProcessingThread();
+		this.eventEngine = Simulator.getEventEngine(id);
+		this.decisionWindow = Simulator.getDecisionWindow();
+		this.decisionScheduled = new AtomicBoolean();
 
-		this.trustEngine = new TrustEngine();
+		this.trustEngine = new TrustEngine(id);
 		this.routingEngine = new RoutingEngine(this.id, this.trustEngine);
 		// Register this router's subnet
 		this.routingEngine.addRoutingInfo(this.subnet, this.id, 0, 200);
 		
 	}
 
+	/**
+	 * @return Bounded mailbox with a thread of its own, or run by the shared carrier pool in POOLED mode
+	 */
+	private static Mailbox newProcessingThread() {
+		Executor carriers = Simulator.getCarrierPool();
+		return carriers != null
+				? new Mailbox(carriers, Simulator.getMailboxCapacity(), Simulator.getMailboxOverflowPolicy())
+				: new Mailbox(Simulator.getMailboxCapacity(), Simulator.getMailboxOverflowPolicy());
+	}
+
 	@Override
 	public void routePacket(byte[] packet, ASConnection receivingConnection) {
-		if (packetProcessingThread.isShutdown()) {
-			return;
+		Mailbox shard = getPacketProcessingShard(packet);
+		if (eventEngine != null) {
+			// Virtual clock allocates an event per packet anyway
+			execute(shard, () -> forwardPacket(packet, receivingConnection));
+		} else {
+			shard.offer(packet, receivingConnection, packetForwarder);
+		}
+	}
+	
+	@Override
+	public void routePacket(byte[] packet, ASConnection receivingConnection, TrafficClass trafficClass) {
+		if (trafficClass == TrafficClass.CONTROL) {
+			execute(controlThread, () -> receiveControlPacket(packet));
+		} else {
+			routePacket(packet, receivingConnection);
+		}
+	}
+	
+	/**
+	 * Run a task in the given thread, or as an event in discrete-event simulation.
+	 * Tasks are dropped once the thread has been shut down or when its mailbox overflows.
+	 * @param thread
+	 * @param task
+	 * @return false if the task was dropped
+	 */
+	private boolean execute(Mailbox thread, Runnable task) {
+		if (thread.isShutdown()) {
+			return false;
+		}
+		if (eventEngine != null) {
+			eventEngine.execute(task);
+			return true;
+		}
+		return thread.offer(task);
+	}
+	
+	/**
+	 * Select the processing shard for a packet based on its sender and recipient,
+	 * so packets of the same flow are processed in order.
+	 * @param packet
+	 * @return
+	 */
+	private Mailbox getPacketProcessingShard(byte[] packet) {
+		Mailbox[] shards = packetProcessingThreads;
+		if (shards.length == 1 || packet.length < 20) {
+			return shards[0];
+		}
+		long flow = PacketEngine.extractSender(packet) * 31 + PacketEngine.extractRecipient(packet);
+		int hash = Long.hashCode(flow);
+		// Spread the higher bits, addresses of one subnet differ mostly in the low ones
+		hash ^= (hash >>> 16);
+		return shards[(hash & Integer.MAX_VALUE) % shards.length];
+	}
+	
+	public int getPacketProcessingShardCount() {
+		return packetProcessingThreads.length;
+	}
+	
+	/**
+	 * @return Mailboxes of the packet processing shards, the maintenance mailbox and the
+	 * 		control mailbox, for queue depth and drop statistics
+	 */
+	public List<Mailbox> getMailboxes() {
+		List<Mailbox> mailboxes = getMailboxes(TrafficClass.DATA);
+		mailboxes.add(controlThread);
+		return mailboxes;
+	}
+	
+	/**
+	 * @param trafficClass
+	 * @return Mailboxes processing the packets of the traffic class
+	 */
+	public List<Mailbox> getMailboxes(TrafficClass trafficClass) {
+		List<Mailbox> mailboxes = new ArrayList<>();
+		if (trafficClass == TrafficClass.CONTROL) {
+			mailboxes.add(controlThread);
+		} else {
+			mailboxes.addAll(Arrays.asList(packetProcessingThreads));
+			mailboxes.add(maintenanceThread);
 		}
-		packetProcessingThread.execute(() -> {
-			if (!PacketEngine.validatePacketHeader(packet)) {
-				// Drop packet if checksum doesn't match
+		return mailboxes;
+	}
+	
+	/**
+	 * @return Amount of packets and tasks dropped by full mailboxes
+	 */
+	public long getDroppedTaskCount() {
+		long dropped = 0;
+		for (Mailbox mailbox : getMailboxes()) {
+			dropped += mailbox.getDroppedCount();
+		}
+		return dropped;
+	}
+	
+	/**
+	 * @return Amount of packets and tasks whose processing threw an exception
+	 */
+	public long getFailedTaskCount() {
+		long failed = 0;
+		for (Mailbox mailbox : getMailboxes()) {
+			failed += mailbox.getFailedCount();
+		}
+		return failed;
+	}
+	
+	/**
+	 * Forwarding fast path, run for every packet on every hop. Only primitive lookups
+	 * are used and log messages are built only when someone is listening.
+	 * @param packet
+	 * @param receivingConnection
+	 */
+	private void forwardPacket(byte[] packet, ASConnection receivingConnection) {
+		if (!PacketEngine.validatePacketHeader(packet)) {
+			// Drop packet if checksum doesn't match
+			if (Logger.isEnabled()) {
 				Logger.log("Dropped packet (invalid header checksum)", id, LogMessageType.GENERAL);
-				return;
 			}
-			
-			long address = PacketEngine.extractRecipient(packet);
-			// Decide the AS to forward to
-			int nextHop = routingEngine.decidePath(address);
-			if (nextHop == this.id || this.subnet.containsAddress(address)) {
-				// Packet is designated to this subnet
-				PacketReceiver rec = packetReceivers.get(address);
-				if (rec != null) {
-					if (rec == this) {
-						this.receivePacket(packet);
-					} else {
-						// Run in separate simulator threads
-						Simulator.getClientExecutor().execute(() -> rec.receivePacket(packet));
-					}
-				}
-			} else if (connections.containsKey(nextHop)
-					&& !connections.get(nextHop).equals(receivingConnection)) {
-				// Packet should be forwarded elsewhere
-				// If preferred route is the router that sent the package,
-				// drop it to avoid bouncing back and forth
-				
-				try {
-					PacketEngine.decrementTTL(packet);
-				} catch (IllegalArgumentException e) {
-					// Drop packet if TTL == 0, otherwise decrement
-					Logger.log("Dropped packet to " + Address.getAddress(address)
-						+ ", TTL=0", id, LogMessageType.GENERAL);
-					return;
-				}
-				
-				ASConnection conn = connections.get(nextHop);
-				if (conn.getCurrentState() == State.ESTABLISHED) {
-					conn.sendPacket(packet);
+			return;
+		}
+		
+		long address = PacketEngine.extractRecipient(packet);
+		// Decide the AS to forward to
+		int nextHop = routingEngine.decidePath(address);
+		if (nextHop == this.id || this.subnet.containsAddress(address)) {
+			// Packet is designated to this subnet
+			PacketReceiver rec = packetReceivers.get(address);
+			if (rec != null) {
+				if (rec == this) {
+					this.receivePacket(packet);
+				} else {
+					// Run in separate simulator threads, or in the router's partition
+					Executor clients = eventEngine != null ? eventEngine::execute : Simulator.getClientExecutor();
+					clients.execute(() -> rec.receivePacket(packet));
 				}
-			} else {
-				// No suitable next hop is found, drop packet
+			}
+			return;
+		}
+		
+		ASConnection conn = getAdjacentConnection(nextHop);
+		// If preferred route is the router that sent the package,
+		// drop it to avoid bouncing back and forth
+		if (conn == null || conn == receivingConnection) {
+			// No suitable next hop is found, drop packet
+			if (Logger.isEnabled()) {
 				Logger.log("Dropped packet to " + Address.getAddress(address)
 					+ ", no suitable next hop found", id, LogMessageType.GENERAL);
+			}
+			return;
+		}
+		
+		if (PacketEngine.extractTTL(packet) == 0) {
+			// Drop packet if TTL == 0, otherwise decrement
+			if (Logger.isEnabled()) {
+				Logger.log("Dropped packet to " + Address.getAddress(address)
+					+ ", TTL=0", id, LogMessageType.GENERAL);
+			}
+			return;
+		}
+		PacketEngine.decrementTTL(packet);
+		
+		if (conn.getCurrentState() == State.ESTABLISHED) {
+			conn.sendPacket(packet);
+		}
+	}
+	
+	/**
+	 * Get the connection to an adjacent AS without boxing the id.
+	 * @param asId
+	 * @return Connection to the AS, or null if not connected
+	 */
+	private ASConnection getAdjacentConnection(int asId) {
+		ASConnection[] slots = adjacency;
+		return asId >= 0 && asId < slots.length ? slots[asId] : null;
+	}
+	
+	/**
+	 * Update the id-indexed connection array after a connection has been added or removed.
+	 * Copied on write, since connections change rarely compared to forwarding.
+	 * @param asId
+	 * @param conn New connection, or null if removed
+	 */
+	private synchronized void updateAdjacency(int asId, ASConnection conn) {
+		ASConnection[] slots = adjacency;
+		if (asId >= slots.length) {
+			if (conn == null) {
 				return;
 			}
-		});
+			slots = Arrays.copyOf(slots, Math.max(asId + 1, slots.length << 1));
+		} else {
+			slots = Arrays.copyOf(slots, slots.length);
+		}
+		slots[asId] = conn;
+		adjacency = slots;
 	}
 
 	@Override
@@ -161,34 +384,52 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 	 * @param nextHop
 	 */
 	private void sendViaInterface(byte[] packet, int nextHop) {
-		if (packetProcessingThread.isShutdown()) {
-			return;
-		}
-		packetProcessingThread.execute(() -> {
-			if (connections.containsKey(nextHop)) {
-				connections.get(nextHop).sendPacket(packet);
+		Mailbox shard = getPacketProcessingShard(packet);
+		execute(shard, () -> {
+			ASConnection conn = getAdjacentConnection(nextHop);
+			if (conn != null) {
+				conn.sendPacket(packet);
 			}
 		});
 	}
 
+	/**
+	 * @throws IllegalStateException if all addresses of the subnet are in use
+	 */
 	@Override
-	public synchronized Address reserveAddress(PacketReceiver receiver) throws IllegalArgumentException {
-		while (packetReceivers.containsKey(addressingPointer)) {
-			addressingPointer = (subnet.getAddress() & subnet.getBitmask()) + ((addressingPointer + 1) & ~subnet.getBitmask());
+	public Address reserveAddress(PacketReceiver receiver) throws IllegalStateException {
+		long first = subnet.getAddress();
+		long last = first + (~subnet.getBitmask() & 0xFFFFFFFFL);
+		long start = addressingPointer.get();
+		long address = start;
+		boolean wrapped = false;
+		while (true) {
+			address = reservedAddresses.nextAbsent(address, wrapped ? start - 1 : last);
+			if (address < 0) {
+				if (wrapped) {
+					throw new IllegalStateException("No free addresses left in " + subnet);
+				}
+				wrapped = true;
+				address = first;
+			} else if (reservedAddresses.add(address)) {
+				break;
+			}
+			// Otherwise another thread took the address first
 		}
-		packetReceivers.put(addressingPointer, receiver);
-		return Address.getAddress(addressingPointer);
+		addressingPointer.set(address + 1);
+		packetReceivers.put(address, receiver);
+		return Address.getAddress(address);
 	}
 
 	@Override
 	public void freeAddress(Address address) throws IllegalArgumentException {
-		 if (!subnet.containsAddress(address)) {
+		if (!subnet.containsAddress(address)) {
 			throw new IllegalArgumentException("Specified address is not in this subnet");
-		} else if (!packetReceivers.containsKey(address.getAddress())) {
+		} else if (packetReceivers.remove(address.getAddress()) == null) {
 			throw new IllegalArgumentException("Specified address has not been registered");
-		} else {
-			packetReceivers.remove(address.getAddress());
 		}
+		// Only free for reuse once no packets are delivered to the old receiver
+		reservedAddresses.remove(address.getAddress());
 	}
 
 	@Override
@@ -196,138 +437,224 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 		if (maintenanceThread.isShutdown()) {
 			return;
 		}
-		receivedPacketCount++;
+		receivedPacketCount.increment();
+		execute(maintenanceThread, () -> handleMessage(pkg));
+	}
+	
+	/**
+	 * Process an OPEN or KEEPALIVE addressed to this router in the control thread,
+	 * bypassing the packet processing shards and the maintenance thread.
+	 * @param pkg
+	 */
+	private void receiveControlPacket(byte[] pkg) {
+		if (!PacketEngine.validatePacketHeader(pkg)) {
+			if (Logger.isEnabled()) {
+				Logger.log("Dropped packet (invalid header checksum)", id, LogMessageType.GENERAL);
+			}
+			return;
+		}
+		receivedPacketCount.increment();
+		handleMessage(pkg);
+	}
+	
+	/**
+	 * Handle a BGP message addressed to this router in the calling thread.
+	 * @param pkg
+	 */
+	private void handleMessage(byte[] pkg) {
 		long senderAddress = PacketEngine.extractSender(pkg);
+		// Looked up only now, an OPEN handled just before may have introduced the sender
 		int senderId = addressToASId.getOrDefault(senderAddress, -1);
-		maintenanceThread.execute(() -> {
-			try {
-				byte[] body = PacketEngine.extractBody(pkg);
-				BGPMessage m = BGPMessage.deserialize(body);
+		try {
+			byte[] body = PacketEngine.extractBody(pkg);
+			BGPMessage m = BGPMessage.deserialize(body);
+			
+			if (m instanceof KeepaliveMessage && senderId != -1) {
+				Logger.log("KEEPALIVE received from " + senderId, id, LogMessageType.KEEPALIVE);
+				getConnectionFor(senderId, false).ifPresent(ASConnection::raiseKeepaliveFlag);
 				
-				if (m instanceof KeepaliveMessage && senderId != -1) {
-					Logger.log("KEEPALIVE received from " + senderId, id, LogMessageType.KEEPALIVE);
-					connections.get(senderId).raiseKeepaliveFlag();
-					
-				} else if (m instanceof NotificationMessage && senderId != -1) {
-					Logger.log("NOTIFICATION received from " + senderId
-							+ ", type: " + ((NotificationMessage)m).getErrorType(), id, LogMessageType.CONNECTION);
-					getConnectionFor(senderId, false).ifPresent(this::removeConnection);
-					
-				} else if (m instanceof OpenMessage) {
-					OpenMessage om = (OpenMessage) m;
-					Logger.log("OPEN received from " + om.getASId(), id, LogMessageType.CONNECTION);
-					addressToASId.put(senderAddress, om.getASId());
-					ASConnection conn = connections.get(om.getASId());
-					if (conn != null) {
-						conn.handleOpenMessage(om);
-					}
-					
-				} else if (m instanceof UpdateMessage) {
-					Logger.log("UPDATE received from " + senderId, id, LogMessageType.ROUTING_INFO);
-					UpdateMessage um = (UpdateMessage)m;
-					Set<SubnetNode> replyNodes = routingEngine.handleUpdateMessage(um);
+			} else if (m instanceof NotificationMessage && senderId != -1) {
+				Logger.log("NOTIFICATION received from " + senderId
+						+ ", type: " + ((NotificationMessage)m).getErrorType(), id, LogMessageType.CONNECTION);
+				getConnectionFor(senderId, false).ifPresent(this::removeConnection);
+				
+			} else if (m instanceof OpenMessage) {
+				OpenMessage om = (OpenMessage) m;
+				Logger.log("OPEN received from " + om.getASId(), id, LogMessageType.CONNECTION);
+				addressToASId.put(senderAddress, om.getASId());
+				ASConnection conn = connections.get(om.getASId());
+				if (conn != null) {
+					conn.handleOpenMessage(om);
+				}
+				
+			} else if (m instanceof UpdateMessage) {
+				Logger.log("UPDATE received from " + senderId, id, LogMessageType.ROUTING_INFO);
+				UpdateMessage um = (UpdateMessage)m;
+				RouteChanges changes = routingEngine.receiveUpdateMessage(um);
 
-					// If UPDATE message AS_PATH has more than one peer, ask for trust vote
-					Optional<TrustMessage> possibleTrustRequest = trustEngine.decideTrustVote(um);
-					possibleTrustRequest.ifPresent(req -> {
-						Optional<Address> reviewerAddress = Simulator.getRouterAddress(req.getReviewerId());
-						if (reviewerAddress.isPresent()) {
-							Address ownAddress = this.getAddress();
-							
-							Logger.log("Trust vote for " + req.getTargetId() + " requested from "
-									+ req.getReviewerId(), id, LogMessageType.TRUST);
-							
-							routePacket(PacketEngine.buildPacket(ownAddress, reviewerAddress.get(), req.serialize()));	
-						}
-					});
-					
-					// Forward the UPDATE message to selected peers
-					forwardUpdateMessage(um);
-					
-					// If routes were withdrawn and knowledge of another route exists, send that information
-					if (!replyNodes.isEmpty() && connections.containsKey(senderId)) {
-						sendRoutingInformation(senderId, replyNodes);
+				// If UPDATE message AS_PATH has more than one peer, ask for trust vote
+				Optional<TrustMessage> possibleTrustRequest = trustEngine.decideTrustVote(id, um);
+				possibleTrustRequest.ifPresent(req -> {
+					Optional<Address> reviewerAddress = Simulator.getRouterAddress(req.getReviewerId());
+					if (reviewerAddress.isPresent()) {
+						Address ownAddress = this.getAddress();
+						
+						Logger.log("Trust vote for " + req.getTargetId() + " requested from "
+								+ req.getReviewerId(), id, LogMessageType.TRUST);
+						
+						routePacket(PacketEngine.buildPacket(ownAddress, reviewerAddress.get(), req.serialize()));	
 					}
-					
-				} else if (m instanceof TrustMessage) {
-					long recipientAddress = PacketEngine.extractRecipient(pkg);
-					TrustMessage tm = (TrustMessage) m;
-					Logger.log("Trust " + (tm.isRequest() ? "request " : "response ")
-							+ "received " + (tm.isRequest() ? (senderId >= 0 ? "from " + senderId : "") : "from " + tm.getReviewerId()),
-							id, LogMessageType.TRUST);
-					
-					Optional<byte[]> possibleResponse = trustEngine.handleTrustMessage(id, tm, senderAddress, recipientAddress);
-					
-					possibleResponse.ifPresent(resp -> routePacket(resp));
-				}
+				});
 				
-			} catch (NotificationException e) {
-				// Invalid BGP message received OR not a BGP message altogether
-				if (connections.containsKey(senderId)) {
-					connections.get(senderId).raiseNotification(
-							e.buildNotification());	
+				// If routes were withdrawn and knowledge of another route exists, send that information
+				if (!changes.getReplyNodes().isEmpty() && connections.containsKey(senderId)) {
+					sendRoutingInformation(senderId, changes.getReplyNodes());
 				}
+				
+				// Advertise the resulting changes once the decision window closes
+				scheduleDecisionProcess();
+				
+			} else if (m instanceof TrustMessage) {
+				long recipientAddress = PacketEngine.extractRecipient(pkg);
+				TrustMessage tm = (TrustMessage) m;
+				Logger.log("Trust " + (tm.isRequest() ? "request " : "response ")
+						+ "received " + (tm.isRequest() ? (senderId >= 0 ? "from " + senderId : "") : "from " + tm.getReviewerId()),
+						id, LogMessageType.TRUST);
+				
+				// Cryptography runs in the trust workers, a verified vote is applied back in this thread
+				trustEngine.handleTrustMessage(id, tm, senderAddress, recipientAddress,
+						this::routePacket, task -> execute(maintenanceThread, task));
 			}
-		});
+			
+		} catch (NotificationException e) {
+			// Invalid BGP message received OR not a BGP message altogether
+			if (connections.containsKey(senderId)) {
+				connections.get(senderId).raiseNotification(
+						e.buildNotification());	
+			}
+		}
 	}
 	
 	/**
 	 * Send all routing info to a peer after a new connection has been established.
-	 * To avoid all routes getting path length 1, prefixes of same length are sent
-	 * in a message padded to correct length
+	 * The table is read and queued in the maintenance thread, so that it can not
+	 * interleave with the advertisements of a decision process run.
 	 * @param recipientAsId
 	 */
 	public void sendRoutingInformation(int recipientAsId) {
-		Logger.log("Sending routing table to " + recipientAsId, id, LogMessageType.ROUTING_INFO);
-		ASConnection conn = connections.get(recipientAsId);
-		Address ownAddress = conn.getOwnAddress();
-		Address neighbourAddress = conn.getNeighbourAddress();
-		UpdateMessage um = null;
-		try {
-			um = new UpdateMessageBuilder()
-					.addPathAttribute(new AsPath(Arrays.asList(id)))
-					.addPathAttribute(new NextHop(conn.getOwnAddress().getBytes()))
-					.addPathAttribute(new Origin(1))
-					.build();
-		} catch (UpdateMessageException e) {
-		}
-		
-		List<byte[]> ums = routingEngine.generatePaddedUpdateMessages(um);
-		
-		for (byte[] msg : ums) {
-			conn.sendPacket(PacketEngine.buildPacket(ownAddress, neighbourAddress, msg));
+		Runnable send = () -> {
+			Logger.log("Sending routing table to " + recipientAsId, id, LogMessageType.ROUTING_INFO);
+			sendRoutingInformation(recipientAsId, routingEngine.getRoutingTable());
+		};
+		if (!execute(maintenanceThread, send) && !maintenanceThread.isShutdown()) {
+			// Maintenance mailbox is full, try again after a decision window
+			DECISION_TIMER.schedule(() -> sendRoutingInformation(recipientAsId),
+					Math.max(decisionWindow, 1), TimeUnit.MILLISECONDS);
 		}
 	}
 	
 	/**
-	 * Send specified routing info to a peer after receiving
+	 * Send specified routing info to a peer, e.g. after receiving
 	 * route withdrawals and having knowledge of alternative routes.
-	 * AS_PATHs are padded to avoid all routes having length 1
+	 * Routes the peer already has are not sent again.
 	 * @param recipientAsId
 	 * @param NLRIToSend
 	 */
-	public void sendRoutingInformation(int recipientAsId, Set<SubnetNode> NLRIToSend) {
-		Logger.log("Sending routing information to " + recipientAsId, id, LogMessageType.ROUTING_INFO);
+	public void sendRoutingInformation(int recipientAsId, Collection<SubnetNode> NLRIToSend) {
 		ASConnection conn = connections.get(recipientAsId);
-		Address ownAddress = conn.getOwnAddress();
-		Address neighbourAddress = conn.getNeighbourAddress();
-		UpdateMessage um = null;
-		try {
-			um = new UpdateMessageBuilder()
-					.addPathAttribute(new AsPath(Arrays.asList(id)))
-					.addPathAttribute(new NextHop(conn.getOwnAddress().getBytes()))
-					.addPathAttribute(new Origin(1))
-					.build();
-		} catch (UpdateMessageException e) {
+		if (conn == null) {
+			return;
 		}
-		
-		List<byte[]> ums = routingEngine.generatePaddedUpdateMessages(um, NLRIToSend);
-		
-		for (byte[] msg : ums) {
-			conn.sendPacket(PacketEngine.buildPacket(ownAddress, neighbourAddress, msg));
+		for (SubnetNode n : NLRIToSend) {
+			// Do not send own default route
+			if (n.getFirstHop() > 0 && n.getLength() < 100) {
+				queueRoute(conn.getAdjRibOut(), recipientAsId, n);
+			}
+		}
+		conn.advertiseRoutes();
+	}
+	
+	/**
+	 * Run the decision process after the decision window, coalescing all UPDATE
+	 * messages received meanwhile. A zero window runs it immediately.
+	 */
+	private void scheduleDecisionProcess() {
+		if (decisionWindow <= 0) {
+			advertiseRouteChanges(routingEngine.runDecisionProcess());
+		} else if (decisionScheduled.compareAndSet(false, true)) {
+			Runnable decision = () -> {
+				decisionScheduled.set(false);
+				advertiseRouteChanges(routingEngine.runDecisionProcess());
+			};
+			if (eventEngine != null) {
+				eventEngine.schedule(decision, decisionWindow);
+			} else {
+				DECISION_TIMER.schedule(() -> {
+					if (!execute(maintenanceThread, decision) && !maintenanceThread.isShutdown()) {
+						// Maintenance mailbox is full, try again after another window
+						decisionScheduled.set(false);
+						scheduleDecisionProcess();
+					}
+				}, decisionWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Advertise the outcome of a decision process run to all peers.
+	 * Routes are sent with their own AS_PATH prepended with this AS,
+	 * a peer that is on the path of a route gets it withdrawn instead.
+	 * @param changes
+	 */
+	public void advertiseRouteChanges(RouteChanges changes) {
+		if (changes.getWithdrawnRoutes().isEmpty() && changes.getUpdatedNodes().isEmpty()) {
+			return;
+		}
+		connections.forEach((asId, connection) -> {
+			if (connection.getCurrentState() != State.ESTABLISHED) {
+				return;
+			}
+			AdjRibOut rib = connection.getAdjRibOut();
+			for (Subnet s : changes.getWithdrawnRoutes()) {
+				rib.withdraw(s);
+			}
+			for (SubnetNode n : changes.getUpdatedNodes()) {
+				queueRoute(rib, asId, n);
+			}
+			connection.advertiseRoutes();
+		});
+	}
+	
+	private void queueRoute(AdjRibOut rib, int peerId, SubnetNode n) {
+		List<Integer> path = getAdvertisedPath(n);
+		if (path.subList(1, path.size()).contains(peerId)) {
+			rib.withdraw(n.getSubnet());
+		} else {
+			rib.advertise(n.getSubnet(), path);
 		}
 	}
 	
+	/**
+	 * @param n
+	 * @return AS_PATH advertised for the route of the node, starting with this AS
+	 */
+	private List<Integer> getAdvertisedPath(SubnetNode n) {
+		List<Integer> path = new ArrayList<>();
+		path.add(id);
+		int[] asPath = n.getAsPath();
+		if (asPath != null) {
+			for (int hop : asPath) {
+				path.add(hop);
+			}
+		} else {
+			// No AS_PATH known, pad to match the path length
+			while (path.size() < n.getLength() + 1) {
+				path.add(n.getFirstHop());
+			}
+		}
+		return path;
+	}
+	
 	public void forwardUpdateMessage(UpdateMessage um) {
 		if (um.getWithdrawnRoutes().isEmpty() && um.getNLRI().isEmpty()) {
 			// No information to forward
@@ -335,20 +662,18 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 		}
 		
 		List<Integer> visitedIds = new ArrayList<>();
-		for (PathAttribute p : um.getPathAttributes()) {
-			if (p instanceof AsPath) {
-				if (((AsPath)p).getIdSequence().contains(id)) {
-					return;
-				}
-				visitedIds.addAll(((AsPath)p).getIdSequence());
-				break;
+		for (int i = 0; i < um.getAsPathLength(); i++) {
+			int visitedId = um.getAsPathId(i);
+			if (visitedId == id) {
+				return;
 			}
+			visitedIds.add(visitedId);
 		}
 		um.appendOwnId(id);
 		connections.forEach((asId, connection) -> {
 			if (!visitedIds.contains(asId) && connection.getCurrentState() == State.ESTABLISHED) {
 				um.changeNextHop(connection.getOwnAddress().getBytes());
-				byte[] umBytes = PacketEngine.buildPacket(connection.getOwnAddress(), connection.getNeighbourAddress(), um.serialize());
+				byte[] umBytes = um.serializePacket(connection.getOwnAddress(), connection.getNeighbourAddress());
 
 				Logger.log("Forwarding routing information to " + asId, id, LogMessageType.ROUTING_INFO);
 				sendViaInterface(umBytes, asId);
@@ -371,27 +696,10 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 		
 		if (connections.containsKey(toRemoveId.get())) {
 			connections.remove(toRemoveId.get()).closeConnection();	
+			updateAdjacency(toRemoveId.get(), null);
 		}
-		try {
-			// Build an UPDATE message to inform neighbours
-			UpdateMessageBuilder b = new UpdateMessageBuilder();
-			
-			b.addPathAttribute(new AsPath(new ArrayList<>()))
-			 .addPathAttribute(new Origin(0))
-			 .addPathAttribute(new NextHop(new byte[4]));
-
-			for (Subnet s : routingEngine.getSubnetsBehind(toRemoveId.get())) {
-				b.addWithdrawnRoutes(s);
-			}
-			UpdateMessage um = b.build();
-			
-			// Revoke all connections via the broken link
-			routingEngine.handleUpdateMessage(um);
-			// Send an UPDATE message to peers
-			forwardUpdateMessage(um);
-		} catch (UpdateMessageException e) {
-			// UPDATE message processing failed
-		}
+		// Fall back to alternative routes stored for other peers
+		advertiseRouteChanges(routingEngine.removePeer(toRemoveId.get()));
 	}
 	
 	private Optional<Integer> getIdForConnection(ASConnection conn) {
@@ -406,6 +714,7 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 		ASConnection conn = null;
 		if (createNew) {
 			conn = connections.computeIfAbsent(otherId, id -> new ASConnection(reserveAddress(this), this));
+			updateAdjacency(otherId, conn);
 		} else {
 			conn = connections.get(otherId);
 		}
@@ -435,7 +744,7 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 
 	@Override
 	public long getReceivedPacketCount() {
-		return receivedPacketCount;
+		return receivedPacketCount.sum();
 	}
 
 	@Override
@@ -467,8 +776,11 @@ public class BGPRouter implements PacketRouter, PacketReceiver, AddressProvider
 			.forEach(conn -> conn.raiseNotification(NotificationMessage.getCeaseError()));
 
 		// Shut down all threads
-		packetProcessingThread.shutdownNow();
+		for (Mailbox shard : packetProcessingThreads) {
+			shard.shutdownNow();
+		}
 		maintenanceThread.shutdownNow();
+		controlThread.shutdownNow();
 		
 		trustEngine.shutdown();
 		
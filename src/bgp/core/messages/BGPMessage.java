@@ -1,8 +1,12 @@
 package bgp.core.messages;
 
+import java.nio.ByteBuffer;
+
 import bgp.core.messages.NotificationMessage.MessageHeaderError;
 import bgp.core.messages.notificationexceptions.MessageHeaderException;
 import bgp.core.messages.notificationexceptions.NotificationException;
+import bgp.utils.Address;
+import bgp.utils.PacketEngine;
 
 public abstract class BGPMessage {
 	
@@ -14,28 +18,118 @@ public abstract class BGPMessage {
 	
 	protected static final int HEADER_LENGTH = MARKER_LENGTH + 3;
 	
+	public static final int OPEN = 1;
+	public static final int UPDATE = 2;
+	public static final int NOTIFICATION = 3;
+	public static final int KEEPALIVE = 4;
+	public static final int TRUST = 5;
+	
+	/**
+	 * Subclasses writing their body straight to the buffer override this together with
+	 * {@link #writeBody(ByteBuffer)}, the others have their body built once by {@link #getBody()}.
+	 * @return Length of the message body in octets, -1 if only known by building the body
+	 */
+	protected int getBodyLength() {
+		return -1;
+	}
+	
+	/**
+	 * Write the message body to the buffer at its current position.
+	 * Subclasses can override this to avoid building an intermediate array.
+	 * @param buffer
+	 */
+	protected void writeBody(ByteBuffer buffer) {
+		buffer.put(getBody());
+	}
+	
+	/**
+	 * @return Length of the serialized message including the header
+	 */
+	public int getSerializedLength() {
+		int bodyLength = getBodyLength();
+		return HEADER_LENGTH + (bodyLength >= 0 ? bodyLength : getBody().length);
+	}
+	
 	public byte[] serialize() {
-		final byte type = getType();
-		final byte[] body = getBody();
-		
-		int messageLength = HEADER_LENGTH	// Fixed length header
-				+ body.length;				// Message body
-		
-		final byte[] message = new byte[messageLength];
+		int bodyLength = getBodyLength();
+		// Body built once both for sizing the buffer and for writing it
+		byte[] body = bodyLength < 0 ? getBody() : null;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (body != null ? body.length : bodyLength));
+		serialize(buffer, body);
+		return buffer.array();
+	}
+	
+	/**
+	 * Write the message to the buffer at its current position.
+	 * The length field is filled in after the body has been written.
+	 * @param buffer
+	 */
+	public void serialize(ByteBuffer buffer) {
+		serialize(buffer, null);
+	}
+	
+	/**
+	 * @param buffer
+	 * @param body Body already built, null to write it with {@link #writeBody(ByteBuffer)}
+	 */
+	private void serialize(ByteBuffer buffer, byte[] body) {
+		final int start = buffer.position();
 		
 		// RFC4271:  This 16-octet field is included for compatibility; it MUST be set to all ones.
 		for (int i = 0; i < MARKER_LENGTH; i++) {
-			message[i] = ~0x0;
+			buffer.put((byte) ~0x0);
 		}
-		message[16] = (byte)(messageLength >> 8);
-		message[17] = (byte) messageLength;
-		message[18] = type;
+		// Length is back-patched once the body is in place
+		buffer.putShort((short) 0);
+		buffer.put(getType());
 		
-		for (int i = 0; i < body.length; i++) {
-			message[19+i] = body[i];
+		if (body != null) {
+			buffer.put(body);
+		} else {
+			writeBody(buffer);
 		}
 		
-		return message;
+		int messageLength = buffer.position() - start;
+		buffer.put(start + MARKER_LENGTH, (byte) (messageLength >> 8));
+		buffer.put(start + MARKER_LENGTH + 1, (byte) messageLength);
+	}
+	
+	/**
+	 * Build an IPv4 packet containing this message into a single buffer.
+	 * @param from
+	 * @param to
+	 * @return The packet
+	 */
+	public byte[] serializePacket(Address from, Address to) {
+		int bodyLength = getBodyLength();
+		byte[] body = bodyLength < 0 ? getBody() : null;
+		ByteBuffer buffer = ByteBuffer.allocate(PacketEngine.HEADER_LENGTH + HEADER_LENGTH
+				+ (body != null ? body.length : bodyLength));
+		PacketEngine.writeHeader(buffer, from.address, to.address);
+		serialize(buffer, body);
+		PacketEngine.completeHeader(buffer, 0);
+		return buffer.array();
+	}
+	
+	/**
+	 * Read the type of the BGP message carried by an IPv4 packet without deserializing it.
+	 * @param packet
+	 * @return Message type, or -1 if the packet does not carry a BGP message
+	 */
+	public static int peekType(byte[] packet) {
+		if (packet.length < PacketEngine.HEADER_LENGTH) {
+			return -1;
+		}
+		int offset = (packet[0]&0x0F) << 2;
+		if (packet.length < offset + HEADER_LENGTH) {
+			return -1;
+		}
+		for (int i = offset; i < offset + MARKER_LENGTH; i++) {
+			if (packet[i] != (byte) ~0x0) {
+				return -1;
+			}
+		}
+		return packet[offset + MARKER_LENGTH + 2];
 	}
 	
 	/**
@@ -48,19 +142,19 @@ public abstract class BGPMessage {
 			throw new MessageHeaderException(MessageHeaderError.BAD_MESSAGE_LENGTH);
 		}
 		switch (message[18]) {
-		case 1:
+		case OPEN:
 			// Open
 			return new OpenMessage(message);
-		case 2:
+		case UPDATE:
 			// Update
 			return new UpdateMessage(message);
-		case 3:
+		case NOTIFICATION:
 			// Notification
 			return new NotificationMessage(message);
-		case 4:
+		case KEEPALIVE:
 			// Keepalive
 			return new KeepaliveMessage(message);
-		case 5:
+		case TRUST:
 			// Trust
 			return new TrustMessage(message);
 		default:
@@ -2,7 +2,7 @@ package bgp.core.messages;
 
 import java.util.Arrays;
 
-import bgp.core.trust.TrustEngine;
+import bgp.core.trust.TrustCryptoProvider;
 
 /**
  * Class for transferring trust information between nodes.
@@ -13,12 +13,17 @@ import bgp.core.trust.TrustEngine;
  * 1. bit: TYPE: 0 for request, 1 for response
  * --------------
  * 
+ * Algorithm identifier of the {@link TrustCryptoProvider} (1 octet)
  * Reviewing second-order neighbour ID (2 octets)
  * Reviewed neighbour ID (2 octets)
  * 
+ * if TYPE == 0
+ * 	requesting AS ID (2 octets), the vote is encrypted to its keys
  * if TYPE == 1
+ * 	length of the encrypted trust (2 octets)
  * 	encrypted trust of given neighbour
  * 		represented as a value in range -128..127, default trust is 0
+ * 	signature of the encrypted trust
  * 
  * @author Niko
  *
@@ -29,23 +34,39 @@ public class TrustMessage extends BGPMessage {
 	public static final int RESPONSE = 1;
 	
 	private final int tmType;
+	private final byte algorithmId;
 	private final int reviewerId;
 	private final int targetId;
+	private final int requesterId;
 	private final byte[] payload;
 	private final byte[] signature;
 	
 	public TrustMessage(int reviewerId, int targetId) {
-		this(0, reviewerId, targetId, new byte[0], new byte[0]);
+		this(reviewerId, targetId, 0);
+	}
+	
+	public TrustMessage(int reviewerId, int targetId, int requesterId) {
+		this(TrustCryptoProvider.RSA, reviewerId, targetId, requesterId);
+	}
+	
+	public TrustMessage(byte algorithmId, int reviewerId, int targetId, int requesterId) {
+		this(0, algorithmId, reviewerId, targetId, requesterId, new byte[0], new byte[0]);
 	}
 	
 	public TrustMessage(int reviewerId, int targetId, byte[] encryptedReview, byte[] signature) {
-		this(1, reviewerId, targetId, encryptedReview, signature);
+		this(TrustCryptoProvider.RSA, reviewerId, targetId, encryptedReview, signature);
+	}
+	
+	public TrustMessage(byte algorithmId, int reviewerId, int targetId, byte[] encryptedReview, byte[] signature) {
+		this(1, algorithmId, reviewerId, targetId, 0, encryptedReview, signature);
 	}
 	
-	private TrustMessage(int tmType, int reviewerId, int targetId, byte[] payload, byte[] signature) {
+	private TrustMessage(int tmType, byte algorithmId, int reviewerId, int targetId, int requesterId, byte[] payload, byte[] signature) {
 		this.tmType = tmType;
+		this.algorithmId = algorithmId;
 		this.reviewerId = reviewerId;
 		this.targetId = targetId;
+		this.requesterId = requesterId;
 		// Add padding if payload is too short
 		this.payload = Arrays.copyOf(payload, payload.length);
 		this.signature = Arrays.copyOf(signature, signature.length);
@@ -54,12 +75,16 @@ public class TrustMessage extends BGPMessage {
 	protected TrustMessage(byte[] messageContent) {
 		int index = HEADER_LENGTH;
 		this.tmType = (messageContent[index++] >> 7)&0x01;
+		this.algorithmId = messageContent[index++];
 		this.reviewerId = (((messageContent[index++]&0xFF) << 8) + (messageContent[index++]&0xFF))&0xFFFF;
 		this.targetId = (((messageContent[index++]&0xFF) << 8) + (messageContent[index++]&0xFF))&0xFFFF;
 		if (this.tmType == 1) {
-			this.payload = Arrays.copyOfRange(messageContent, index, index + TrustEngine.ENCRYPTED_MESSAGE_LENGTH);
-			this.signature = Arrays.copyOfRange(messageContent, index + TrustEngine.ENCRYPTED_MESSAGE_LENGTH, messageContent.length);	
+			int payloadLength = (((messageContent[index++]&0xFF) << 8) + (messageContent[index++]&0xFF))&0xFFFF;
+			this.payload = Arrays.copyOfRange(messageContent, index, index + payloadLength);
+			this.signature = Arrays.copyOfRange(messageContent, index + payloadLength, messageContent.length);	
+			this.requesterId = 0;
 		} else {
+			this.requesterId = (((messageContent[index++]&0xFF) << 8) + (messageContent[index++]&0xFF))&0xFFFF;
 			this.payload = new byte[0];
 			this.signature = new byte[0];
 		}
@@ -72,19 +97,35 @@ public class TrustMessage extends BGPMessage {
 
 	@Override
 	protected byte[] getBody() {
-		byte[] body = new byte[5 + payload.length + signature.length];
+		int headerLength = 8;
+		byte[] body = new byte[headerLength + payload.length + signature.length];
 		
 		body[0] = (byte) ((tmType << 7)&0xFF);
-		body[1] = (byte) ((reviewerId >>> 8)&0xFF);
-		body[2] = (byte) ((reviewerId >>> 0)&0xFF);
-		body[3] = (byte) ((targetId >>> 8)&0xFF);
-		body[4] = (byte) ((targetId >>> 0)&0xFF);
-		System.arraycopy(payload, 0, body, 5, payload.length);
-		System.arraycopy(signature, 0, body, 5 + payload.length, signature.length);
+		body[1] = algorithmId;
+		body[2] = (byte) ((reviewerId >>> 8)&0xFF);
+		body[3] = (byte) ((reviewerId >>> 0)&0xFF);
+		body[4] = (byte) ((targetId >>> 8)&0xFF);
+		body[5] = (byte) ((targetId >>> 0)&0xFF);
+		if (tmType == 1) {
+			body[6] = (byte) ((payload.length >>> 8)&0xFF);
+			body[7] = (byte) ((payload.length >>> 0)&0xFF);
+		} else {
+			body[6] = (byte) ((requesterId >>> 8)&0xFF);
+			body[7] = (byte) ((requesterId >>> 0)&0xFF);
+		}
+		System.arraycopy(payload, 0, body, headerLength, payload.length);
+		System.arraycopy(signature, 0, body, headerLength + payload.length, signature.length);
 		
 		return body;
 	}
 	
+	/**
+	 * @return Identifier of the scheme the vote is signed and encrypted with
+	 */
+	public byte getAlgorithmId() {
+		return algorithmId;
+	}
+	
 	public int getReviewerId() {
 		return reviewerId;
 	}
@@ -93,6 +134,13 @@ public class TrustMessage extends BGPMessage {
 		return targetId;
 	}
 
+	/**
+	 * @return Id of the AS asking for the vote, 0 in responses
+	 */
+	public int getRequesterId() {
+		return requesterId;
+	}
+
 	public byte[] getPayload() {
 		return payload;
 	}
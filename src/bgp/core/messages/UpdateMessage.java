@@ -1,9 +1,8 @@
 package bgp.core.messages;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 import bgp.core.messages.NotificationMessage.UpdateMessageError;
@@ -32,13 +31,30 @@ import bgp.utils.Subnet;
  */
 public class UpdateMessage extends BGPMessage {
 	
-	private final List<Subnet> withdrawnRoutes;
+	/**
+	 * Bytes taken by a /32 prefix in withdrawn routes or NLRI
+	 */
+	public static final int MAX_PREFIX_LENGTH = 5;
 	
-	private final List<PathAttribute> pathAttributes;
+	/*
+	 * Received messages are only checked for structure when deserialized,
+	 * the lists below are decoded from the received octets on first access.
+	 * Decisions can be made with the primitive accessors without decoding.
+	 */
+	private final byte[] received;
+	private int withdrawnRoutesStart, withdrawnRoutesEnd;
+	private int pathAttributesStart, pathAttributesEnd;
+	private int asPathOffset, asPathLength, originValue;
 	
-	private final List<Subnet> NLRI;
+	private List<Subnet> withdrawnRoutes;
+	
+	private List<PathAttribute> pathAttributes;
+	
+	private List<Subnet> NLRI;
 	
 	public UpdateMessage(List<Subnet> withdrawnRoutes, List<PathAttribute> pathAttributes, List<Subnet> NLRI) {
+		this.received = null;
+		
 		this.withdrawnRoutes = new ArrayList<>();
 		this.withdrawnRoutes.addAll(withdrawnRoutes);
 		
@@ -51,82 +67,120 @@ public class UpdateMessage extends BGPMessage {
 	}
 	
 	protected UpdateMessage(byte[] messageContent) throws UpdateMessageException {
+		this.received = messageContent;
 		int index = HEADER_LENGTH;
 		
-		try {
-			this.withdrawnRoutes = new ArrayList<>();
-			int withdrawnRoutesOctets = ((messageContent[index++] << 8)&0xFF00) + (messageContent[index++]&0xFF);
-			
-			for (int i = 0; i < withdrawnRoutesOctets; i++) {
-				int bml = messageContent[index++];
-				int octetCount = (int)(Math.ceil(bml/8.0));
-				
-				Subnet s = bytesToSubnet(Arrays.copyOfRange(messageContent, index, index + octetCount), bml);
-				this.withdrawnRoutes.add(s);
-				index += octetCount;
-				i += octetCount;
-			}
-			
-			this.pathAttributes = new ArrayList<>();
-			int pathAttributeOctets = ((messageContent[index++] << 8)&0xFF00) + (messageContent[index++]&0xFF);
-			
-			if (withdrawnRoutesOctets + pathAttributeOctets + 23 > messageContent.length) {
+		if (messageContent.length < HEADER_LENGTH + 4) {
+			throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);
+		}
+		
+		int withdrawnRoutesOctets = ((messageContent[index++] << 8)&0xFF00) + (messageContent[index++]&0xFF);
+		this.withdrawnRoutesStart = index;
+		this.withdrawnRoutesEnd = index + withdrawnRoutesOctets;
+		if (withdrawnRoutesEnd + 2 > messageContent.length) {
+			throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);
+		}
+		checkPrefixes(withdrawnRoutesStart, withdrawnRoutesEnd);
+		index = withdrawnRoutesEnd;
+		
+		int pathAttributeOctets = ((messageContent[index++] << 8)&0xFF00) + (messageContent[index++]&0xFF);
+		if (withdrawnRoutesOctets + pathAttributeOctets + 23 > messageContent.length) {
+			throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);
+		}
+		this.pathAttributesStart = index;
+		this.pathAttributesEnd = index + pathAttributeOctets;
+		checkPathAttributes();
+		
+		checkPrefixes(pathAttributesEnd, messageContent.length);
+	}
+	
+	/**
+	 * Check that the received octets in given range consist of whole prefixes
+	 * @param start
+	 * @param end
+	 * @throws UpdateMessageException
+	 */
+	private void checkPrefixes(int start, int end) throws UpdateMessageException {
+		int index = start;
+		while (index < end) {
+			int bml = received[index++];
+			if (bml < 0 || bml > 32) {
 				throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);
 			}
-			
-			for (int i = 0; i < pathAttributeOctets; i++) {
-				int startIndex = index;
-				int pal = 0;
-				if ((messageContent[index++] & 0b00010000) == 0) {
-					// Not extended
-					index++; // Skip type code
-					pal += (messageContent[index++])&0xFF;
-				} else {
-					// Extended
-					index++; // Skip type code
-					pal += ((messageContent[index++] << 8)&0xFF00) + ((messageContent[index++])&0x00FF);
-				}
-				
-				this.pathAttributes.add(PathAttribute.deserialize(Arrays.copyOfRange(messageContent, startIndex, startIndex + pal)));
-				index = startIndex + pal;
-				i += pal;
-			}
-			checkPathAttributes();
-			
-			this.NLRI = new ArrayList<>();
-			
-			while (index < messageContent.length) {
-				int bml = messageContent[index++];
-				int octetCount = (int)(Math.ceil(bml/8.0));
-				
-				this.NLRI.add(bytesToSubnet(Arrays.copyOfRange(messageContent, index, index + octetCount), bml));
-				index = index + octetCount;
-			}
-		} catch (Exception e) {
-			if (e instanceof UpdateMessageException) {
-				throw e;
-			} else {
-				throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);	
-			}
+			index += (bml + 7) >>> 3;
+		}
+		if (index > end) {
+			throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);
 		}
 	}
 	
+	/**
+	 * Validate the received path attributes and locate the ones
+	 * needed by the decision process without decoding them.
+	 * @throws UpdateMessageException
+	 */
 	private void checkPathAttributes() throws UpdateMessageException {
 		boolean duplicate = false;
 		boolean ap = false, nh = false, o = false;
-		for (PathAttribute p : pathAttributes) {
-			if (p instanceof AsPath) {
+		int index = pathAttributesStart;
+		while (index < pathAttributesEnd) {
+			int startIndex = index;
+			int extended = (received[index++] >> 4) & 1;
+			if (startIndex + 3 + extended > pathAttributesEnd) {
+				// Attribute header cut short
+				throw new UpdateMessageException(UpdateMessageError.MALFORMED_ATTRIBUTE_LIST);
+			}
+			int typeCode = received[index++];
+			int pal;
+			if (extended == 0) {
+				pal = received[index++]&0xFF;
+			} else {
+				pal = ((received[index++] << 8)&0xFF00) + (received[index++]&0xFF);
+			}
+			if (pal < 3 + extended || startIndex + pal > pathAttributesEnd) {
+				throw new UpdateMessageException(UpdateMessageError.ATTRIBUTE_LENGTH_ERROR);
+			}
+			
+			switch (typeCode) {
+			case 1:
+				// ORIGIN
+				duplicate = (duplicate || o);
+				o = true;
+				originValue = received[startIndex + pal - 1];
+				if (originValue < 0 || originValue > 2) {
+					throw new UpdateMessageException(UpdateMessageError.INVALID_ORIGIN_ATTRIBUTE);
+				}
+				break;
+			case 2:
+				// AS_PATH
 				duplicate = (duplicate || ap);
 				ap = true;
-			} else if (p instanceof NextHop) {
+				int headerLength = 3 + extended;
+				if (pal < headerLength + 2) {
+					throw new UpdateMessageException(UpdateMessageError.MALFORMED_AS_PATH);
+				}
+				int segmentType = received[startIndex + headerLength];
+				if (segmentType != 1 && segmentType != 2) {
+					throw new UpdateMessageException(UpdateMessageError.MALFORMED_AS_PATH);
+				}
+				asPathLength = received[startIndex + headerLength + 1]&0xFF;
+				asPathOffset = startIndex + headerLength + 2;
+				if (asPathOffset + 2*asPathLength > startIndex + pal) {
+					throw new UpdateMessageException(UpdateMessageError.MALFORMED_AS_PATH);
+				}
+				break;
+			case 3:
+				// NEXT_HOP
 				duplicate = (duplicate || nh);
 				nh = true;
-			} else if (p instanceof Origin) {
-				duplicate = (duplicate || o);
-				o = true;
-			} else {
-				throw new UpdateMessageException(UpdateMessageError.UNRECOGNIZED_WELL_KNOWN_ATTRIBUTE);
+				if (pal != 3 + extended + 4) {
+					throw new UpdateMessageException(UpdateMessageError.INVALID_NEXT_HOP_ATTRIBUTE);
+				}
+				break;
+			default:
+				throw new UpdateMessageException(UpdateMessageError.OPTIONAL_ATTRIBUTE_ERROR);
 			}
+			index = startIndex + pal;
 		}
 		if (!(ap && nh && o)) {
 			throw new UpdateMessageException(UpdateMessageError.MISSING_WELL_KNOWN_ATTRIBUTE);
@@ -135,15 +189,146 @@ public class UpdateMessage extends BGPMessage {
 		}
 	}
 	
+	private List<Subnet> decodePrefixes(int start, int end) {
+		List<Subnet> subnets = new ArrayList<>();
+		for (PrefixCursor c = new PrefixCursor(received, start, end); c.next(); ) {
+			subnets.add(Subnet.getSubnet(c.getAddress(), Subnet.getSubnetMask(c.getLength())));
+		}
+		return subnets;
+	}
+	
+	private List<PathAttribute> decodePathAttributes() {
+		List<PathAttribute> attributes = new ArrayList<>();
+		int index = pathAttributesStart;
+		while (index < pathAttributesEnd) {
+			int extended = (received[index] >> 4) & 1;
+			int pal = extended == 0
+					? received[index + 2]&0xFF
+					: ((received[index + 2] << 8)&0xFF00) + (received[index + 3]&0xFF);
+			try {
+				attributes.add(PathAttribute.deserialize(Arrays.copyOfRange(received, index, index + pal)));
+			} catch (UpdateMessageException e) {
+				// Not possible, attributes were validated on receipt
+				throw new IllegalStateException(e);
+			}
+			index += pal;
+		}
+		return attributes;
+	}
+	
+	/**
+	 * @return Iterator over the withdrawn routes as primitive address/length pairs
+	 */
+	public PrefixCursor getWithdrawnRoutesCursor() {
+		if (withdrawnRoutes == null) {
+			return new PrefixCursor(received, withdrawnRoutesStart, withdrawnRoutesEnd);
+		}
+		return new PrefixCursor(withdrawnRoutes);
+	}
+	
+	/**
+	 * @return Iterator over the NLRI as primitive address/length pairs
+	 */
+	public PrefixCursor getNLRICursor() {
+		if (NLRI == null) {
+			return new PrefixCursor(received, pathAttributesEnd, received.length);
+		}
+		return new PrefixCursor(NLRI);
+	}
+	
+	/**
+	 * @return Amount of AS ids in AS_PATH, or -1 if there is no AS_PATH
+	 */
+	public int getAsPathLength() {
+		if (pathAttributes == null) {
+			return asPathLength;
+		}
+		AsPath ap = findAsPath();
+		return ap != null ? ap.getIdSequence().size() : -1;
+	}
+	
+	/**
+	 * @param index 0 being the nearest AS
+	 * @return AS id at given index of AS_PATH
+	 */
+	public int getAsPathId(int index) {
+		if (pathAttributes == null) {
+			int offset = asPathOffset + 2*index;
+			return ((received[offset]&0xFF) << 8) + (received[offset + 1]&0xFF);
+		}
+		return findAsPath().getIdSequence().get(index);
+	}
+	
+	/**
+	 * @return ORIGIN value, or -1 if there is no ORIGIN
+	 */
+	public int getOriginValue() {
+		if (pathAttributes == null) {
+			return originValue;
+		}
+		for (PathAttribute p : pathAttributes) {
+			if (p instanceof Origin) {
+				return ((Origin)p).getOriginValue();
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return true if all well-known mandatory path attributes are present
+	 */
+	public boolean hasMandatoryAttributes() {
+		if (pathAttributes == null) {
+			// Checked on receipt
+			return true;
+		}
+		boolean ap = false, nh = false, o = false;
+		for (PathAttribute p : pathAttributes) {
+			ap |= p instanceof AsPath;
+			nh |= p instanceof NextHop;
+			o |= p instanceof Origin;
+		}
+		return ap && nh && o;
+	}
+	
+	private AsPath findAsPath() {
+		for (PathAttribute p : pathAttributes) {
+			if (p instanceof AsPath) {
+				return (AsPath) p;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Replace the withdrawn routes and NLRI, e.g. with the ones that are worth forwarding.
+	 * @param withdrawnRoutes
+	 * @param NLRI
+	 */
+	public void setRoutes(List<Subnet> withdrawnRoutes, List<Subnet> NLRI) {
+		this.withdrawnRoutes = new ArrayList<>(withdrawnRoutes);
+		this.NLRI = new ArrayList<>(NLRI);
+	}
+	
 	public List<Subnet> getWithdrawnRoutes() {
+		if (withdrawnRoutes == null) {
+			withdrawnRoutes = decodePrefixes(withdrawnRoutesStart, withdrawnRoutesEnd);
+		}
 		return withdrawnRoutes;
 	}
 
 	public List<PathAttribute> getPathAttributes() {
+		if (pathAttributes == null) {
+			pathAttributes = decodePathAttributes();
+			pathAttributes.sort((p1,p2)-> p2.getTypeCode()-p1.getTypeCode());
+		}
 		return pathAttributes;
 	}
 
 	public List<Subnet> getNLRI() {
+		if (NLRI == null) {
+			NLRI = decodePrefixes(pathAttributesEnd, received.length);
+		}
 		return NLRI;
 	}
 	
@@ -154,7 +339,7 @@ public class UpdateMessage extends BGPMessage {
 		} catch (UpdateMessageException e) {
 		}
 		PathAttribute oldNH = null;
-		for (PathAttribute p : pathAttributes) {
+		for (PathAttribute p : getPathAttributes()) {
 			if (p instanceof NextHop) {
 				oldNH = p;
 			}
@@ -168,7 +353,7 @@ public class UpdateMessage extends BGPMessage {
 	}
 	
 	public void appendOwnId(int ownAsId) {
-		for (PathAttribute p : pathAttributes) {
+		for (PathAttribute p : getPathAttributes()) {
 			if (p instanceof AsPath) {
 				((AsPath)p).appendId(ownAsId);
 				return;
@@ -183,103 +368,130 @@ public class UpdateMessage extends BGPMessage {
 
 	@Override
 	protected byte[] getBody() {
-		// Linked list used since the list is only appended and looped
-		List<Byte> withdrawnRoutesBytes = new LinkedList<>();
-		for (Subnet s : withdrawnRoutes) {
-			byte[] subnetBytes = subnetToBytes(s);
-			for (byte b : subnetBytes) {
-				withdrawnRoutesBytes.add(b);
-			}
+		ByteBuffer buffer = ByteBuffer.allocate(getBodyLength());
+		writeBody(buffer);
+		return buffer.array();
+	}
+	
+	@Override
+	protected int getBodyLength() {
+		int bodyLength = 2 + 2;			// Withdrawn and path attribute octet lengths
+		for (Subnet s : getWithdrawnRoutes()) {
+			bodyLength += getPrefixLength(s);
 		}
-		int withdrawnRoutesSize = withdrawnRoutesBytes.size();
-		
-		
-		List<Byte> pathAttributeBytes = new LinkedList<>();
-		for (PathAttribute b : pathAttributes) {
-			byte[] paBody = PathAttribute.serialize(b);
-			int paBodyLen = paBody.length;
-			
-			for (int i = 0; i < paBodyLen; i++) {
-				pathAttributeBytes.add(paBody[i]);
-			}
+		for (PathAttribute p : getPathAttributes()) {
+			bodyLength += p.getLength();
 		}
-		int pathAttributesSize = pathAttributeBytes.size();
-		
-		List<Byte> NLRIBytes = new LinkedList<>();
-		for (Subnet s : NLRI) {
-			byte[] subnetBytes = subnetToBytes(s);
-			for (byte b : subnetBytes) {
-				NLRIBytes.add(b);
-			}
+		for (Subnet s : getNLRI()) {
+			bodyLength += getPrefixLength(s);
 		}
-		int NLRISize = NLRIBytes.size();
-		
-		int bodyLength = 2				// Withdrawn octet length
-				+ withdrawnRoutesSize	// Withdrawn routes
-				+ 2						// Path attributes octet length
-				+ pathAttributesSize	// Path attributes
-				+ NLRISize;				// NLRI
-		byte[] body = new byte[bodyLength];
-		
-		int index = 0;
+		return bodyLength;
+	}
+	
+	@Override
+	protected void writeBody(ByteBuffer buffer) {
 		// this field shows the length of the Withdrawn Routes
 		// field in bytes. When it is set to 0, there are no
 		// routes withdrawn and the Withdrawn Routes field
 		// will not show up.
-		body[index++] = (byte) (withdrawnRoutesSize >>> 8);
-		body[index++] = (byte) (withdrawnRoutesSize);
-		
-		Iterator<Byte> iter = withdrawnRoutesBytes.iterator();
-		while (iter.hasNext()) {
-			body[index++] = iter.next();
+		int lengthIndex = buffer.position();
+		buffer.putShort((short) 0);
+		for (Subnet s : getWithdrawnRoutes()) {
+			writeSubnet(buffer, s);
 		}
+		buffer.putShort(lengthIndex, (short) (buffer.position() - lengthIndex - 2));
 		
-		
-		body[index++] = (byte) (pathAttributesSize >>> 8);
-		body[index++] = (byte) (pathAttributesSize);
-		iter = pathAttributeBytes.iterator();
-		while (iter.hasNext()) {
-			body[index++] = iter.next();
+		lengthIndex = buffer.position();
+		buffer.putShort((short) 0);
+		for (PathAttribute p : getPathAttributes()) {
+			p.write(buffer);
 		}
+		buffer.putShort(lengthIndex, (short) (buffer.position() - lengthIndex - 2));
 		
-		iter = NLRIBytes.iterator();
-		while (iter.hasNext()) {
-			body[index++] = iter.next();
+		for (Subnet s : getNLRI()) {
+			writeSubnet(buffer, s);
 		}
-		
-		return body;
 	}
 	
-	private byte[] subnetToBytes(Subnet s) {
+	/**
+	 * @param s
+	 * @return Amount of bytes the subnet takes in withdrawn routes or NLRI
+	 */
+	public static int getPrefixLength(Subnet s) {
+		return 1 + ((s.getBitmaskLength() + 7) >>> 3);
+	}
+	
+	private static void writeSubnet(ByteBuffer buffer, Subnet s) {
 		int bml = s.getBitmaskLength();
-		int octetCount = (int)(Math.ceil(bml/8.0));
+		int octetCount = (bml + 7) >>> 3;
 		long ip = s.getAddress();
 		
-		byte[] r = new byte[1 + octetCount];
-		
-		int index = 0;
-		
-		r[index++] = (byte) bml;
+		buffer.put((byte) bml);
 		for (int i = 0; i < octetCount; i++) {
-			r[index++] = (byte) (ip >>> ((3-i)*8));
+			buffer.put((byte) (ip >>> ((3-i)*8)));
 		}
-		
-		return r;
 	}
 	
-	private Subnet bytesToSubnet(byte[] b, int bitmaskLength) {
-		long addressBytes = 0;
-		int index = 0;
-		int[] masks = new int[]{0xFF000000, 0x00FF0000, 0x0000FF00, 0x000000FF};
-		int shift = 24;
+	/**
+	 * Iterates prefixes as primitive address/length pairs, either straight
+	 * from received octets or from a list of {@link Subnet}s.
+	 */
+	public static class PrefixCursor {
+		
+		private final byte[] octets;
+		private final int end;
+		private int index;
+		
+		private final List<Subnet> subnets;
 		
-		while (index < b.length) {
-			addressBytes += (b[index] << shift)&masks[index];
-			index += 1;
-			shift -= 8;
+		private long address;
+		private int length;
+		
+		private PrefixCursor(byte[] octets, int start, int end) {
+			this.octets = octets;
+			this.index = start;
+			this.end = end;
+			this.subnets = null;
+		}
+		
+		private PrefixCursor(List<Subnet> subnets) {
+			this.octets = null;
+			this.index = 0;
+			this.end = subnets.size();
+			this.subnets = subnets;
 		}
 		
-		return Subnet.getSubnet(addressBytes, Subnet.getSubnetMask(bitmaskLength));
+		/**
+		 * Move to the next prefix.
+		 * @return false if there are no more prefixes
+		 */
+		public boolean next() {
+			if (index >= end) {
+				return false;
+			}
+			if (subnets != null) {
+				Subnet s = subnets.get(index++);
+				address = s.getAddress();
+				length = s.getBitmaskLength();
+				return true;
+			}
+			length = octets[index++];
+			long value = 0;
+			int octetCount = (length + 7) >>> 3;
+			for (int i = 0; i < octetCount; i++) {
+				value |= (octets[index++]&0xFFL) << ((3-i)*8);
+			}
+			address = value & Subnet.getSubnetMask(length);
+			return true;
+		}
+		
+		public long getAddress() {
+			return address;
+		}
+		
+		public int getLength() {
+			return length;
+		}
 	}
 
 }
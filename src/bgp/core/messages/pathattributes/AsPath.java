@@ -37,10 +37,10 @@ public class AsPath extends PathAttribute {
 			throw new UpdateMessageException(UpdateMessageError.MALFORMED_AS_PATH);
 		}
 		idSequence = new LinkedList<>();
-		for (int i = 0; i < input[headerLength + 1]; i++) {
+		for (int i = 0; i < (input[headerLength + 1]&0xFF); i++) {
 			try {
-				idSequence.add((input[headerLength + 2 + 2*i] << 8)
-						+ (input[headerLength + 2 + 2*i + 1]));
+				idSequence.add(((input[headerLength + 2 + 2*i]&0xFF) << 8)
+						+ (input[headerLength + 2 + 2*i + 1]&0xFF));
 			} catch (Exception e) {
 				throw new UpdateMessageException(UpdateMessageError.MALFORMED_AS_PATH);
 			}
@@ -75,6 +75,11 @@ public class AsPath extends PathAttribute {
 		return (byte) 2;
 	}
 
+	@Override
+	protected int getTypeBodyLength() {
+		return 2 + 2*idSequence.size();
+	}
+
 	@Override
 	public byte[] getTypeBody() {
 		byte pathSegmentType = (byte) segmentType;
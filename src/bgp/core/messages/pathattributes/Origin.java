@@ -42,6 +42,11 @@ public class Origin extends PathAttribute {
 		return (byte) 1;
 	}
 
+	@Override
+	protected int getTypeBodyLength() {
+		return 1;
+	}
+
 	@Override
 	public byte[] getTypeBody() {
 		return new byte[]{(byte) originValue};
@@ -1,5 +1,7 @@
 package bgp.core.messages.pathattributes;
 
+import java.nio.ByteBuffer;
+
 import bgp.core.messages.NotificationMessage.UpdateMessageError;
 import bgp.core.messages.notificationexceptions.UpdateMessageException;
 
@@ -64,40 +66,49 @@ public abstract class PathAttribute {
 		this.extended = (byte) ((flagByte >> 4) & 1);
 	}
 	
-	private byte[] getBody() {
-		byte typeCode = getTypeCode();
-		byte[] typeBody = getTypeBody();
-		int prefixLength = 3 + extended;
-		
-		int bodyLength = 2				// Flags and type code
+	/**
+	 * @return Length of the type body in octets, overridden where it is known without building the body
+	 */
+	protected int getTypeBodyLength() {
+		return getTypeBody().length;
+	}
+	
+	/**
+	 * @return Length of the serialized attribute in octets
+	 */
+	public int getLength() {
+		return 2				// Flags and type code
 				+ 1 + extended			// Length field(s)
-				+ typeBody.length;		// Body
-		
-		byte[] body = new byte[bodyLength];
+				+ getTypeBodyLength();	// Body
+	}
+	
+	/**
+	 * Write the serialized attribute to the buffer at its current position.
+	 * @param buffer
+	 */
+	public void write(ByteBuffer buffer) {
+		byte[] typeBody = getTypeBody();
+		int bodyLength = 3 + extended + typeBody.length;
 		
-		body[0] = (byte) (optional << 7
+		buffer.put((byte) (optional << 7
 				+ transitive << 6
 				+ partial << 5
-				+ extended << 4);
+				+ extended << 4));
 		
-		body[1] = typeCode;
+		buffer.put(getTypeCode());
 		
 		if (extended == 1) {
-			body[2] = (byte) (bodyLength >> 8);
-			body[3] = (byte) bodyLength;
-		} else {
-			body[2] = (byte) bodyLength;
-		}
-		
-		for (int i = 0; i < typeBody.length; i++) {
-			body[prefixLength + i] = typeBody[i];
+			buffer.put((byte) (bodyLength >> 8));
 		}
+		buffer.put((byte) bodyLength);
 		
-		return body;
+		buffer.put(typeBody);
 	}
 	
 	public static byte[] serialize(PathAttribute input) {
-		return input.getBody();
+		ByteBuffer buffer = ByteBuffer.allocate(input.getLength());
+		input.write(buffer);
+		return buffer.array();
 	}
 	
 	public static PathAttribute deserialize(byte[] input) throws UpdateMessageException {
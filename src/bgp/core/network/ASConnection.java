@@ -1,41 +1,65 @@
 package bgp.core.network;
 
 import java.io.IOException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 import bgp.core.BGPRouter;
 import bgp.core.messages.KeepaliveMessage;
 import bgp.core.messages.NotificationMessage;
 import bgp.core.messages.OpenMessage;
+import bgp.core.messages.UpdateMessage;
 import bgp.core.network.fsm.State;
 import bgp.core.network.fsm.StateMachine;
+import bgp.core.routing.AdjRibOut;
 import bgp.core.trust.TrustEngine;
 import bgp.simulation.LogMessage.LogMessageType;
 import bgp.simulation.Logger;
+import bgp.simulation.DiscreteEventEngine;
 import bgp.simulation.Simulator;
 import bgp.utils.Address;
+import bgp.utils.Cancellable;
 import bgp.utils.Consts;
 import bgp.utils.PacketEngine;
 
 public class ASConnection {
 	
-	private static final ScheduledExecutorService connectionKeepaliveTimer = Executors.newScheduledThreadPool(4);
-	private static ScheduledFuture<?> registerKeepaliveTask(Runnable r, long delay, long interval) {
-		return connectionKeepaliveTimer.scheduleAtFixedRate(r, delay, interval, TimeUnit.MILLISECONDS);
+	/**
+	 * Keepalive, hold and retry timers of all sessions, 10 ms resolution
+	 */
+	private static final TimingWheel sessionTimers = new TimingWheel(10, 512, 4);
+	private Cancellable registerKeepaliveTask(Runnable r, long delay, long interval) {
+		if (eventEngine != null) {
+			return eventEngine.scheduleAtFixedRate(r, delay, interval);
+		}
+		return sessionTimers.scheduleAtFixedRate(r, delay, interval);
+	}
+	private Cancellable registerTimeout(Runnable r, long delay) {
+		if (eventEngine != null) {
+			return eventEngine.schedule(r, delay);
+		}
+		return sessionTimers.schedule(r, delay);
 	}
 	
 	private final BGPRouter handler;
 	private final InterRouterInterface adapter;
 	private final StateMachine fsm;
+	private final AdjRibOut adjRibOut;
+	
+	// Timers run on the virtual clock in discrete-event simulation
+	private final DiscreteEventEngine eventEngine;
 	
 	private boolean hasReceivedKeepalive;
 	
 	private int retryCounter;
 	
-	private ScheduledFuture<?> keepaliveChecking, keepaliveSending, retrying;
+	private Cancellable keepaliveChecking, keepaliveSending, retrying;
+	
+	/**
+	 * Minimum route advertisement interval in milliseconds
+	 */
+	private final long mrai;
+	private long lastAdvertisement;
+	private Cancellable mraiTimer;
 	
 	private int neighbourId;
 	private Address ownAddress;
@@ -45,16 +69,16 @@ public class ASConnection {
 		if (ownAddress == null) {
 			throw new IllegalArgumentException("Address can not be null!");
 		}
-		if (!Simulator.isAddressFree(ownAddress)) {
-			throw new IllegalStateException("Own address is already reserved");
-		}
-		
+		// Fails if the own address is already reserved
 		Simulator.reserveAddress(ownAddress);
 		
-		this.adapter = new InterRouterInterface(handler, this);
+		this.adapter = new InterRouterInterface(handler, this, Simulator.getLinkMode());
 		this.handler = handler;
 		this.fsm = new StateMachine();
 		this.fsm.changeState(State.IDLE);
+		this.adjRibOut = new AdjRibOut();
+		this.mrai = Simulator.getMraiDelay();
+		this.eventEngine = Simulator.getEventEngine(handler.id);
 		this.ownAddress = ownAddress;
 	}
 	
@@ -83,7 +107,7 @@ public class ASConnection {
 			}
 			
 		} else {
-			retrying.cancel(true);
+			retrying.cancel();
 			closeConnection();
 		}
 	}
@@ -94,6 +118,10 @@ public class ASConnection {
 	 * @param m
 	 */
 	public void handleOpenMessage(OpenMessage m) {
+		if (fsm.getCurrentState().equals(State.CONNECT)) {
+			// Neighbour was faster, answer before the retry timer sends the first OPEN
+			sendOpenMessage();
+		}
 		if (fsm.getCurrentState().equals(State.OPEN_SENT)) {
 			neighbourId = m.getASId();
 			neighbourAddress = Address.getAddress(m.getBgpId());
@@ -128,11 +156,22 @@ public class ASConnection {
 		return neighbourAddress;
 	}
 	
+	public int getNeighbourId() {
+		return neighbourId;
+	}
+	
+	/**
+	 * @return Routes advertised and waiting to be advertised to the neighbour
+	 */
+	public AdjRibOut getAdjRibOut() {
+		return adjRibOut;
+	}
+	
 	public void raiseKeepaliveFlag() {
 		if (fsm.getCurrentState().equals(State.OPEN_CONFIRM)) {
 			fsm.changeState(State.ESTABLISHED);
 			
-			retrying.cancel(true);
+			retrying.cancel();
 			handler.sendRoutingInformation(neighbourId);
 		}
 		this.hasReceivedKeepalive = true;
@@ -154,6 +193,45 @@ public class ASConnection {
 		return adapter;
 	}
 	
+	/**
+	 * Send the pending changes of Adj-RIB-Out to the neighbour. Advertisements are held
+	 * back until MRAI has passed since the previous ones, so repeated changes to a prefix
+	 * are sent only once. Withdrawals are not delayed.
+	 */
+	public synchronized void advertiseRoutes() {
+		long now = eventEngine != null ? eventEngine.now() : System.currentTimeMillis();
+		long wait = lastAdvertisement + mrai - now;
+		if (wait <= 0) {
+			if (sendUpdateMessages(adjRibOut.flush(handler.id, ownAddress.getBytes()))) {
+				lastAdvertisement = now;
+			}
+		} else {
+			sendUpdateMessages(adjRibOut.flushWithdrawals(handler.id, ownAddress.getBytes()));
+			if (adjRibOut.hasPendingChanges() && mraiTimer == null) {
+				mraiTimer = registerTimeout(() -> {
+					synchronized (this) {
+						mraiTimer = null;
+					}
+					advertiseRoutes();
+				}, wait);
+			}
+		}
+	}
+	
+	/**
+	 * @param messages
+	 * @return true if some routes were advertised
+	 */
+	private boolean sendUpdateMessages(List<UpdateMessage> messages) {
+		boolean advertised = false;
+		for (UpdateMessage um : messages) {
+			Logger.log("Sending routing information to " + neighbourId, handler.id, LogMessageType.ROUTING_INFO);
+			sendPacket(um.serializePacket(ownAddress, neighbourAddress));
+			advertised |= !um.getNLRI().isEmpty();
+		}
+		return advertised;
+	}
+	
 	public void sendPacket(byte[] packet) {
 		try {
 			adapter.sendData(packet);
@@ -210,11 +288,22 @@ public class ASConnection {
 		}
 		
 		if (this.keepaliveChecking != null) {
-			this.keepaliveChecking.cancel(true);
+			this.keepaliveChecking.cancel();
 		}
 		
 		if (this.keepaliveSending != null) {
-			this.keepaliveSending.cancel(true);
+			this.keepaliveSending.cancel();
+		}
+		
+		if (this.retrying != null) {
+			this.retrying.cancel();
+		}
+		
+		synchronized (this) {
+			if (this.mraiTimer != null) {
+				this.mraiTimer.cancel();
+				this.mraiTimer = null;
+			}
 		}
 		
 		this.fsm.changeState(State.IDLE);
@@ -4,12 +4,18 @@ import java.io.IOException;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import bgp.core.BGPRouter;
 import bgp.core.messages.NotificationMessage;
 import bgp.core.network.packet.PacketRouter;
+import bgp.core.network.packet.TrafficClass;
+import bgp.simulation.DiscreteEventEngine;
 import bgp.simulation.Logger;
 import bgp.simulation.LogMessage.LogMessageType;
+import bgp.simulation.Simulator;
 import bgp.utils.Consts;
 
 public class InterRouterInterface implements AutoCloseable, Runnable {
@@ -21,27 +27,110 @@ public class InterRouterInterface implements AutoCloseable, Runnable {
 	
 	private static final int SYNCHRONIZATION_BYTES = 10;
 	
+	/**
+	 * Maximum amount of packets waiting in a ring buffer link
+	 */
+	private static final int INPUT_RING_CAPACITY = 1024;
+	
+	/**
+	 * Packets routed from the ring before a pooled reader hands its carrier to others
+	 */
+	private static final int DRAIN_BATCH_SIZE = 64;
+	
+	public enum LinkMode {
+		/**
+		 * Packets are framed and written to piped streams byte by byte
+		 */
+		PIPED,
+		/**
+		 * Whole packets are handed over through a lock-free ring of references
+		 */
+		RING_BUFFER,
+		/**
+		 * Packets are delivered as events of the discrete-event simulation after the link latency
+		 */
+		DISCRETE_EVENT;
+	}
+	
 	private Thread processingThread;
 	
+	private final LinkMode mode;
+	
+	// Used in PIPED mode
 	private final PipedInputStream in;
 	private final PipedOutputStream out;
 	
+	// Used in RING_BUFFER mode, outbound is the neighbour's inbound ring
+	private final PacketRing inbound;
+	private volatile PacketRing outbound;
+	
+	// Used in RING_BUFFER mode in a carrier pool instead of a reader thread
+	private final Executor carriers;
+	private final AtomicBoolean draining;
+	
+	// Used in DISCRETE_EVENT mode
+	private final DiscreteEventEngine eventEngine;
+	// Receiving end of the link, used in DISCRETE_EVENT and pooled RING_BUFFER modes
+	private volatile InterRouterInterface neighbour;
+	
 	private final PacketRouter handler;
 	
 	private final ASConnection conn;
 	
+	// Received packets by traffic class
+	private final LongAdder[] receivedPackets;
+	
 	private volatile boolean shutdown;
 	
 	public InterRouterInterface(PacketRouter handler, ASConnection conn) throws IllegalArgumentException {
-		this.in = new PipedInputStream(INPUT_BUFFER_LENGTH);
-		this.out = new PipedOutputStream();
+		this(handler, conn, LinkMode.PIPED);
+	}
+	
+	public InterRouterInterface(PacketRouter handler, ASConnection conn, LinkMode mode) throws IllegalArgumentException {
+		this.mode = mode;
+		if (mode == LinkMode.DISCRETE_EVENT) {
+			this.eventEngine = handler instanceof BGPRouter
+					? Simulator.getEventEngine(((BGPRouter) handler).id)
+					: Simulator.getEventEngine();
+			if (this.eventEngine == null) {
+				throw new IllegalArgumentException("Discrete-event links require discrete-event simulation");
+			}
+		} else {
+			this.eventEngine = null;
+		}
+		if (mode != LinkMode.PIPED) {
+			this.in = null;
+			this.out = null;
+			this.inbound = mode == LinkMode.RING_BUFFER ? new PacketRing(INPUT_RING_CAPACITY) : null;
+			this.carriers = mode == LinkMode.RING_BUFFER ? Simulator.getCarrierPool() : null;
+		} else {
+			this.in = new PipedInputStream(INPUT_BUFFER_LENGTH);
+			this.out = new PipedOutputStream();
+			this.inbound = null;
+			this.carriers = null;
+		}
+		this.draining = new AtomicBoolean();
 		
 		this.handler = handler;
 		this.conn = conn;
+		this.receivedPackets = new LongAdder[TrafficClass.values().length];
+		for (int i = 0; i < receivedPackets.length; i++) {
+			receivedPackets[i] = new LongAdder();
+		}
 	}
 
+	/**
+	 * Send a packet to the neighbour. In RING_BUFFER and DISCRETE_EVENT modes the array
+	 * itself is handed over and must not be modified afterwards.
+	 * @param content
+	 * @throws IOException
+	 */
 	public synchronized void sendData(byte[] content) throws IOException {
-		if (content != null
+		if (mode == LinkMode.RING_BUFFER) {
+			sendFrame(content);
+		} else if (mode == LinkMode.DISCRETE_EVENT) {
+			sendEvent(content);
+		} else if (content != null
 				&& content.length > 0
 				&& content.length < Consts.MTU) {
 			// Send synchronization bytes
@@ -61,14 +150,161 @@ public class InterRouterInterface implements AutoCloseable, Runnable {
 		}
 	}
 	
+	/**
+	 * Hand a whole packet to the neighbour's inbound ring, waiting while it is full.
+	 * Callers are serialized by {@link #sendData(byte[])}, so the ring has a single producer.
+	 * @param content
+	 * @throws IOException
+	 */
+	private void sendFrame(byte[] content) throws IOException {
+		PacketRing ring = outbound;
+		if (ring == null) {
+			throw new IOException("Link is not connected");
+		}
+		if (content == null
+				|| content.length == 0
+				|| content.length >= Consts.MTU) {
+			return;
+		}
+		InterRouterInterface other = neighbour;
+		while (!ring.offer(content)) {
+			if (shutdown || ring.isClosed()) {
+				throw new IOException("Link closed");
+			}
+			if (other != null) {
+				// Carriers must not wait for each other, empty the ring here if no one else is
+				other.drainNow();
+			}
+			Thread.yield();
+		}
+		if (other != null) {
+			other.scheduleDrain();
+		}
+	}
+	
+	/**
+	 * Have a carrier route the packets waiting in the inbound ring, unless one already is.
+	 */
+	private void scheduleDrain() {
+		if (draining.compareAndSet(false, true)) {
+			carriers.execute(this::drain);
+		}
+	}
+	
+	private void drainNow() {
+		if (draining.compareAndSet(false, true)) {
+			drain();
+		}
+	}
+	
+	/**
+	 * Route a batch of packets from the inbound ring, run by one carrier at a time.
+	 */
+	private void drain() {
+		byte[] packet;
+		for (int i = 0; i < DRAIN_BATCH_SIZE && !shutdown && (packet = inbound.poll()) != null; i++) {
+			ingress(packet);
+		}
+		boolean closedByNeighbour = inbound.isClosed() && inbound.size() == 0 && !shutdown;
+		draining.set(false);
+		if (closedByNeighbour) {
+			if (conn != null) {
+				Logger.log("Link closed by neighbour", getRouterId(handler), LogMessageType.CONNECTION);
+				conn.raiseNotification(NotificationMessage.getCeaseError());
+			}
+		} else if (!shutdown && inbound.size() > 0) {
+			scheduleDrain();
+		}
+	}
+	
+	/**
+	 * Schedule the delivery of a packet to the neighbour after the link latency.
+	 * @param content
+	 * @throws IOException
+	 */
+	private void sendEvent(byte[] content) throws IOException {
+		InterRouterInterface other = neighbour;
+		if (other == null) {
+			throw new IOException("Link is not connected");
+		}
+		if (shutdown || other.shutdown) {
+			throw new IOException("Link closed");
+		}
+		if (content == null
+				|| content.length == 0
+				|| content.length >= Consts.MTU) {
+			return;
+		}
+		// The neighbour may be run by another partition of a parallel simulation
+		eventEngine.scheduleOn(other.eventEngine, () -> {
+			if (!other.shutdown) {
+				other.ingress(content);
+			}
+		}, Consts.DEFAULT_LINK_LATENCY);
+	}
+	
+	/**
+	 * Classify a received packet and hand it to the router, so that session control
+	 * messages can skip the queue of other traffic.
+	 * @param packet
+	 */
+	private void ingress(byte[] packet) {
+		TrafficClass trafficClass = conn != null
+				? TrafficClass.classify(packet, conn.getOwnAddress().getAddress())
+				: TrafficClass.DATA;
+		receivedPackets[trafficClass.ordinal()].increment();
+		handler.routePacket(packet, conn, trafficClass);
+	}
+	
+	/**
+	 * @param trafficClass
+	 * @return Amount of packets of the class received over the link
+	 */
+	public long getReceivedPacketCount(TrafficClass trafficClass) {
+		return receivedPackets[trafficClass.ordinal()].sum();
+	}
+	
 	public void connectNeighbourOutputStream(InterRouterInterface other) throws IOException {
-		this.in.connect(other.out);
+		if (this.mode != other.mode) {
+			throw new IllegalArgumentException("Both ends of a link must use the same link mode");
+		}
+		if (mode == LinkMode.DISCRETE_EVENT) {
+			// Packets are delivered by events, no reader thread is needed
+			other.neighbour = this;
+			return;
+		}
+		if (mode == LinkMode.RING_BUFFER) {
+			other.outbound = this.inbound;
+			if (carriers != null) {
+				// Packets are drained by the carrier pool, no reader thread is needed
+				other.neighbour = this;
+				return;
+			}
+		} else {
+			this.in.connect(other.out);
+		}
 		processingThread = new Thread(this);
 		processingThread.start();
 	}
+	
+	/**
+	 * @param handler
+	 * @return Id of the router handling the packets for logging, 0 if the handler is not a router
+	 */
+	private static int getRouterId(PacketRouter handler) {
+		return handler instanceof BGPRouter ? ((BGPRouter) handler).id : 0;
+	}
+	
+	public LinkMode getLinkMode() {
+		return mode;
+	}
 
 	@Override
 	public void run() {
+		if (mode == LinkMode.RING_BUFFER) {
+			readFrames();
+			return;
+		}
 		int octetCount = 0, in1 = 0, in2 = 0;
 		byte[] readBuffer = new byte[Consts.MTU];
 		while (!shutdown) {
@@ -80,13 +316,25 @@ public class InterRouterInterface implements AutoCloseable, Runnable {
 				in2 = in.read();
 				octetCount = in1*256 + in2;
 				
-				in.read(readBuffer, 0, octetCount);
+				// Large packets may arrive in several parts
+				int read = 0;
+				while (read < octetCount) {
+					int count = in.read(readBuffer, read, octetCount - read);
+					if (count < 0) {
+						throw new IOException("Stream closed");
+					}
+					read += count;
+				}
 				
-				handler.routePacket(Arrays.copyOf(readBuffer, octetCount), conn);
+				ingress(Arrays.copyOf(readBuffer, octetCount));
 			} catch (IOException|IndexOutOfBoundsException e) {
 				if (!shutdown) {
 					// Actual error
-					Logger.log("Error in stream", ((BGPRouter)handler).id, LogMessageType.CONNECTION);
+					Logger.log("Error in stream", getRouterId(handler), LogMessageType.CONNECTION);
+					if (conn == null) {
+						// No session to close, stop reading the broken stream
+						return;
+					}
 					conn.raiseNotification(NotificationMessage.getCeaseError());
 				} else {
 					// Caused by shutdown
@@ -95,9 +343,50 @@ public class InterRouterInterface implements AutoCloseable, Runnable {
 		}
 	}
 
+	private void readFrames() {
+		while (!shutdown) {
+			byte[] packet = inbound.take();
+			if (packet == null) {
+				if (!shutdown && conn != null) {
+					// Closed by the other end
+					Logger.log("Link closed by neighbour", getRouterId(handler), LogMessageType.CONNECTION);
+					conn.raiseNotification(NotificationMessage.getCeaseError());
+				}
+				return;
+			}
+			ingress(packet);
+		}
+	}
+
 	@Override
 	public void close() throws Exception {
 		this.shutdown = true;
+		if (mode == LinkMode.DISCRETE_EVENT) {
+			InterRouterInterface other = neighbour;
+			if (other != null && !other.shutdown) {
+				eventEngine.scheduleOn(other.eventEngine, () -> {
+					if (!other.shutdown && other.conn != null) {
+						// Closed by the other end
+						Logger.log("Link closed by neighbour", getRouterId(other.handler), LogMessageType.CONNECTION);
+						other.conn.raiseNotification(NotificationMessage.getCeaseError());
+					}
+				}, Consts.DEFAULT_LINK_LATENCY);
+			}
+			return;
+		}
+		if (mode == LinkMode.RING_BUFFER) {
+			inbound.close();
+			PacketRing ring = outbound;
+			if (ring != null) {
+				ring.close();
+			}
+			InterRouterInterface other = neighbour;
+			if (other != null) {
+				// Pooled neighbour has no reader waiting on the ring to notice the close
+				other.scheduleDrain();
+			}
+			return;
+		}
 		Exception e = null;
 		try {
 			this.in.close();
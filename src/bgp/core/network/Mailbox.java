@@ -0,0 +1,438 @@
+package bgp.core.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgp.simulation.LogMessage.LogMessageType;
+import bgp.simulation.Logger;
+
+/**
+ * Bounded single-threaded executor of a router, fed by any amount of threads.
+ * Tasks run one at a time in order, either in a thread of the mailbox's own or by
+ * whichever thread of a shared carrier pool picks the mailbox up, so thousands of
+ * routers can be run by a handful of threads.
+ *
+ * A mailbox holds on to its carrier for a limited batch of tasks and then goes back to
+ * the end of the pool's queue, letting the other mailboxes have their turn.
+ *
+ * When the mailbox is full, new tasks are handled by the {@link OverflowPolicy}, like an
+ * overloaded router dropping packets instead of buffering without limit.
+ */
+public class Mailbox extends AbstractExecutorService {
+
+	public enum OverflowPolicy {
+		/**
+		 * Drop the arriving task
+		 */
+		DROP_TAIL,
+		/**
+		 * Drop the oldest waiting task to make room for the arriving one
+		 */
+		DROP_HEAD,
+		/**
+		 * Make the sender wait for room, dropping the task if none frees up in time
+		 */
+		BACKPRESSURE;
+	}
+
+	/**
+	 * Processes packets queued with {@link Mailbox#offer(byte[], ASConnection, PacketHandler)}
+	 * in the thread of the mailbox. Passing the packet and its connection along with a handler
+	 * created once spares the sender a capturing lambda for every packet.
+	 */
+	public interface PacketHandler {
+
+		void handlePacket(byte[] packet, ASConnection receivingConnection);
+
+	}
+
+	/**
+	 * Tasks run before the carrier is handed to other mailboxes
+	 */
+	private static final int BATCH_SIZE = 64;
+
+	/**
+	 * Longest wait of a sender under BACKPRESSURE, bounded so that mailboxes
+	 * feeding each other can not deadlock
+	 */
+	private static final long MAX_BLOCKING_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final Executor carrier;
+	// Dedicated thread, null when run by a shared pool
+	private final ExecutorService ownThread;
+
+	private final Queue<Entry> tasks;
+	private final AtomicInteger size;
+	private final int capacity;
+	private final OverflowPolicy policy;
+
+	// Set while the mailbox is queued in or run by the carrier
+	private final AtomicBoolean scheduled;
+
+	// Senders waiting for room under BACKPRESSURE
+	private final Object space = new Object();
+	private final AtomicInteger blockedSenders;
+
+	private volatile boolean shutdown;
+
+	private final LongAdder enqueued = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder processed = new LongAdder();
+	private final LongAdder queueingNanos = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Mailbox run by a thread of its own.
+	 * @param capacity Maximum amount of waiting tasks
+	 * @param policy
+	 */
+	public Mailbox(int capacity, OverflowPolicy policy) {
+		this(Executors.newSingleThreadExecutor(), true, capacity, policy);
+	}
+
+	/**
+	 * @param carrier Pool running the tasks
+	 * @param capacity Maximum amount of waiting tasks
+	 * @param policy
+	 */
+	public Mailbox(Executor carrier, int capacity, OverflowPolicy policy) {
+		this(carrier, false, capacity, policy);
+	}
+
+	private Mailbox(Executor carrier, boolean ownThread, int capacity, OverflowPolicy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("Overflow policy can not be null");
+		}
+		this.carrier = carrier;
+		this.ownThread = ownThread ? (ExecutorService) carrier : null;
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.size = new AtomicInteger();
+		this.capacity = capacity;
+		this.policy = policy;
+		this.scheduled = new AtomicBoolean();
+		this.blockedSenders = new AtomicInteger();
+	}
+
+	/**
+	 * @throws RejectedExecutionException if the mailbox is shut down or the task was dropped
+	 */
+	@Override
+	public void execute(Runnable task) throws RejectedExecutionException {
+		if (shutdown) {
+			throw new RejectedExecutionException("Mailbox has been shut down");
+		}
+		if (!offer(task)) {
+			throw new RejectedExecutionException("Mailbox is full");
+		}
+	}
+
+	/**
+	 * Queue a task, applying the overflow policy if the mailbox is full.
+	 * @param task
+	 * @return false if the task was dropped or the mailbox is shut down
+	 */
+	public boolean offer(Runnable task) {
+		if (shutdown || !reserve()) {
+			return false;
+		}
+		return add(new Entry(task, null, null, null, System.nanoTime()));
+	}
+
+	/**
+	 * Queue a packet to be handled in the thread of the mailbox, applying the overflow
+	 * policy if the mailbox is full.
+	 * @param packet
+	 * @param receivingConnection Connection the packet arrived from, may be null
+	 * @param handler
+	 * @return false if the packet was dropped or the mailbox is shut down
+	 */
+	public boolean offer(byte[] packet, ASConnection receivingConnection, PacketHandler handler) {
+		if (shutdown || !reserve()) {
+			return false;
+		}
+		return add(new Entry(null, packet, receivingConnection, handler, System.nanoTime()));
+	}
+
+	private boolean add(Entry e) {
+		tasks.add(e);
+		enqueued.increment();
+		maxDepth.accumulate(size.get());
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Reserve room for a task.
+	 * @return false if the task is to be dropped
+	 */
+	private boolean reserve() {
+		long blockedSince = 0;
+		while (true) {
+			int s = size.get();
+			if (s < capacity) {
+				if (size.compareAndSet(s, s + 1)) {
+					if (blockedSince != 0) {
+						blockedNanos.add(System.nanoTime() - blockedSince);
+					}
+					return true;
+				}
+				continue;
+			}
+			switch (policy) {
+			case DROP_HEAD:
+				if (tasks.poll() != null) {
+					// Room of the dropped task is taken over
+					dropped.increment();
+					return true;
+				}
+				break;
+			case BACKPRESSURE:
+				if (blockedSince == 0) {
+					blockedSince = System.nanoTime();
+				}
+				long remaining = blockedSince + MAX_BLOCKING_NANOS - System.nanoTime();
+				if (remaining > 0 && !shutdown) {
+					awaitSpace(remaining);
+					break;
+				}
+				blockedNanos.add(System.nanoTime() - blockedSince);
+				dropped.increment();
+				return false;
+			default:
+				dropped.increment();
+				return false;
+			}
+		}
+	}
+
+	private void awaitSpace(long nanos) {
+		blockedSenders.incrementAndGet();
+		try {
+			// Lets a carrier pool compensate for the blocked thread
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				@Override
+				public boolean block() throws InterruptedException {
+					synchronized (space) {
+						if (!isReleasable()) {
+							TimeUnit.NANOSECONDS.timedWait(space, nanos);
+						}
+					}
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() {
+					return size.get() < capacity || shutdown;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			blockedSenders.decrementAndGet();
+		}
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				carrier.execute(this::runTasks);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Entry e;
+		for (int i = 0; i < BATCH_SIZE && (e = tasks.poll()) != null; i++) {
+			size.decrementAndGet();
+			if (blockedSenders.get() > 0) {
+				synchronized (space) {
+					space.notifyAll();
+				}
+			}
+			queueingNanos.add(System.nanoTime() - e.enqueued);
+			processed.increment();
+			try {
+				e.run();
+			} catch (RuntimeException ex) {
+				// A failing task must not stop the mailbox
+				failed.increment();
+				if (Logger.isEnabled()) {
+					Logger.log("Task failed: " + ex, 0, LogMessageType.GENERAL);
+				}
+			}
+		}
+		// Volatile write publishes the effects of the batch to the next carrier
+		scheduled.set(false);
+		if (!tasks.isEmpty()) {
+			schedule();
+		} else if (shutdown && ownThread != null) {
+			// Last waiting task of a shut down mailbox has run
+			ownThread.shutdown();
+		}
+	}
+
+	/**
+	 * @return Amount of tasks waiting
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return Largest amount of tasks waiting at once
+	 */
+	public long getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	/**
+	 * @return Amount of tasks accepted
+	 */
+	public long getEnqueuedCount() {
+		return enqueued.sum();
+	}
+
+	/**
+	 * @return Amount of tasks dropped by the overflow policy
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return Amount of tasks that threw an exception
+	 */
+	public long getFailedCount() {
+		return failed.sum();
+	}
+
+	/**
+	 * @return Average time in nanoseconds a task waited in the mailbox before running
+	 */
+	public long getAverageQueueingTime() {
+		long count = processed.sum();
+		return count > 0 ? queueingNanos.sum() / count : 0;
+	}
+
+	/**
+	 * @return Total time in nanoseconds senders waited for room under BACKPRESSURE
+	 */
+	public long getBlockedTime() {
+		return blockedNanos.sum();
+	}
+
+	/**
+	 * Stop accepting tasks, the waiting ones are still run.
+	 */
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		wakeBlockedSenders();
+		if (ownThread != null && !scheduled.get() && tasks.isEmpty()) {
+			ownThread.shutdown();
+		}
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		wakeBlockedSenders();
+		List<Runnable> remaining = new ArrayList<>();
+		Entry e;
+		while ((e = tasks.poll()) != null) {
+			size.decrementAndGet();
+			remaining.add(e.task != null ? e.task : e::run);
+		}
+		if (ownThread != null) {
+			ownThread.shutdownNow();
+		}
+		return remaining;
+	}
+
+	private void wakeBlockedSenders() {
+		synchronized (space) {
+			space.notifyAll();
+		}
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && !scheduled.get() && tasks.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!isTerminated()) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	/**
+	 * Either a task or a packet with its handler
+	 */
+	private static class Entry {
+
+		private final Runnable task;
+		private final byte[] packet;
+		private final ASConnection receivingConnection;
+		private final PacketHandler handler;
+		private final long enqueued;
+
+		private Entry(Runnable task, byte[] packet, ASConnection receivingConnection, PacketHandler handler,
+				long enqueued) {
+			this.task = task;
+			this.packet = packet;
+			this.receivingConnection = receivingConnection;
+			this.handler = handler;
+			this.enqueued = enqueued;
+		}
+
+		private void run() {
+			if (task != null) {
+				task.run();
+			} else {
+				handler.handlePacket(packet, receivingConnection);
+			}
+		}
+
+	}
+
+}
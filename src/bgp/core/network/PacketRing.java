@@ -0,0 +1,139 @@
+package bgp.core.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer ring of packet references.
+ * Whole packets are handed over without copying or framing, the ownership
+ * of an offered array passes to the consumer.
+ *
+ * Neither end takes a lock. Only one thread may offer at a time and only
+ * one thread may take at a time.
+ */
+public class PacketRing {
+
+	// Spins before an empty ring parks the consumer
+	private static final int SPIN_LIMIT = 100;
+
+	private final AtomicReferenceArray<byte[]> buffer;
+	private final int mask;
+
+	// Next index to read, only written by the consumer
+	private final AtomicLong head = new AtomicLong();
+	// Next index to write, only written by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile Thread consumer;
+	private volatile boolean closed;
+
+	/**
+	 * @param capacity Maximum amount of packets in the ring, rounded up to a power of two
+	 */
+	public PacketRing(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.buffer = new AtomicReferenceArray<>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Add a packet to the ring.
+	 * @param packet
+	 * @return false if the ring is full or closed
+	 */
+	public boolean offer(byte[] packet) {
+		if (closed) {
+			return false;
+		}
+		long t = tail.get();
+		if (t - head.get() > mask) {
+			return false;
+		}
+		buffer.lazySet((int) (t & mask), packet);
+		// Volatile write publishes the packet and orders the tail before the consumer check
+		tail.set(t + 1);
+
+		Thread waiting = consumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+		return true;
+	}
+
+	/**
+	 * @return The oldest packet in the ring, or null if the ring is empty
+	 */
+	public byte[] poll() {
+		long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+		int index = (int) (h & mask);
+		byte[] packet = buffer.get(index);
+		buffer.lazySet(index, null);
+		head.lazySet(h + 1);
+		return packet;
+	}
+
+	/**
+	 * Wait until a packet is available and remove it from the ring.
+	 * @return The oldest packet in the ring, or null if the ring was closed
+	 */
+	public byte[] take() {
+		int spins = 0;
+		while (true) {
+			byte[] packet = poll();
+			if (packet != null) {
+				return packet;
+			}
+			if (closed || Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			if (spins < SPIN_LIMIT) {
+				spins++;
+				Thread.yield();
+				continue;
+			}
+			// Publish the consumer before re-checking to avoid a lost wake-up
+			consumer = Thread.currentThread();
+			if (head.get() == tail.get() && !closed) {
+				LockSupport.park(this);
+			}
+			consumer = null;
+		}
+	}
+
+	/**
+	 * @return Amount of packets waiting in the ring
+	 */
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the ring: no more packets are accepted and a waiting consumer is released.
+	 */
+	public void close() {
+		closed = true;
+		Thread waiting = consumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+	}
+
+}
@@ -0,0 +1,248 @@
+package bgp.core.network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgp.simulation.LogMessage.LogMessageType;
+import bgp.simulation.Logger;
+import bgp.utils.Cancellable;
+
+/**
+ * Hashed timing wheel for BGP session timers. Timeouts are hashed to buckets by their
+ * deadline tick, scheduling and cancelling are O(1) regardless of the amount of timers.
+ *
+ * A single thread advances the wheel one tick at a time and hands the tasks expired
+ * during the tick to a worker pool as one batch. New timeouts are queued without locking
+ * and moved to their buckets by the wheel thread, cancelled ones are dropped lazily
+ * when their bucket comes up.
+ *
+ * As with a ScheduledExecutorService, runs of a periodic task never overlap: a run due
+ * while the previous one is still running starts late, right after it.
+ */
+public class TimingWheel {
+
+	private final long tickMillis;
+	private final List<List<Timeout>> buckets;
+	private final int mask;
+
+	private final Queue<Timeout> scheduled;
+	private final Executor workers;
+
+	private final long startTime;
+	private long tick;
+
+	private volatile boolean stopped;
+
+	private final LongAdder failedTasks = new LongAdder();
+
+	/**
+	 * @param tickMillis Length of one tick, the resolution of the timers
+	 * @param wheelSize Amount of buckets, rounded up to a power of two
+	 * @param workerThreads Threads running the expired tasks
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, int workerThreads) {
+		if (tickMillis < 1 || wheelSize < 1 || workerThreads < 1) {
+			throw new IllegalArgumentException("Tick length, wheel size and worker count must be positive");
+		}
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.buckets = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			this.buckets.add(new ArrayList<>());
+		}
+		this.mask = size - 1;
+		this.scheduled = new ConcurrentLinkedQueue<>();
+		this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+			Thread t = new Thread(r, "Timer worker");
+			t.setDaemon(true);
+			return t;
+		});
+		this.startTime = System.nanoTime();
+
+		Thread wheelThread = new Thread(this::run, "Timing wheel");
+		wheelThread.setDaemon(true);
+		wheelThread.start();
+	}
+
+	/**
+	 * Run a task once after the delay.
+	 * @param task
+	 * @param delay Delay in milliseconds
+	 * @return Handle for cancelling the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		return scheduleAtFixedRate(task, delay, 0);
+	}
+
+	/**
+	 * Run a task after the delay and then repeatedly at the interval until cancelled.
+	 * @param task
+	 * @param delay Delay in milliseconds
+	 * @param interval Interval in milliseconds, 0 runs the task only once
+	 * @return Handle for cancelling the task
+	 */
+	public Timeout scheduleAtFixedRate(Runnable task, long delay, long interval) {
+		long now = elapsedMillis();
+		Timeout t = new Timeout(task, now + Math.max(delay, 0), Math.max(interval, 0));
+		if (!stopped) {
+			scheduled.add(t);
+		}
+		return t;
+	}
+
+	/**
+	 * Stop advancing the wheel, pending timeouts are never run.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return Amount of task runs that threw an exception
+	 */
+	public long getFailedTaskCount() {
+		return failedTasks.sum();
+	}
+
+	private long elapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+	}
+
+	private void run() {
+		List<Timeout> expired = new ArrayList<>();
+		while (!stopped) {
+			long nextTick = (tick + 1) * tickMillis;
+			long sleep = nextTick - elapsedMillis();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			tick++;
+
+			transferScheduled();
+			collectExpired(buckets.get((int) (tick & mask)), expired);
+			if (expired.isEmpty()) {
+				continue;
+			}
+
+			// Expired tasks of the tick are run as one batch
+			List<Timeout> batch = new ArrayList<>(expired);
+			expired.clear();
+			workers.execute(() -> {
+				for (Timeout t : batch) {
+					t.run(failedTasks);
+				}
+			});
+			for (Timeout t : batch) {
+				if (t.interval > 0 && !t.cancelled) {
+					t.deadline += t.interval;
+					add(t, tick + 1);
+				}
+			}
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout t;
+		while ((t = scheduled.poll()) != null) {
+			if (!t.cancelled) {
+				add(t, tick);
+			}
+		}
+	}
+
+	/**
+	 * @param t
+	 * @param firstTick First tick whose bucket is still to be processed
+	 */
+	private void add(Timeout t, long firstTick) {
+		// Timeouts already due go to the first tick
+		long deadlineTick = Math.max((t.deadline + tickMillis - 1) / tickMillis, firstTick);
+		t.remainingRounds = (deadlineTick - firstTick) / buckets.size();
+		buckets.get((int) (deadlineTick & mask)).add(t);
+	}
+
+	private static void collectExpired(List<Timeout> bucket, List<Timeout> expired) {
+		int kept = 0;
+		for (int i = 0; i < bucket.size(); i++) {
+			Timeout t = bucket.get(i);
+			if (t.cancelled) {
+				continue;
+			}
+			if (t.remainingRounds > 0) {
+				t.remainingRounds--;
+				bucket.set(kept++, t);
+			} else {
+				expired.add(t);
+			}
+		}
+		bucket.subList(kept, bucket.size()).clear();
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public static class Timeout implements Cancellable {
+
+		private final Runnable task;
+		private final long interval;
+
+		// Only accessed by the wheel thread
+		private long deadline;
+		private long remainingRounds;
+
+		private volatile boolean cancelled;
+		// Runs due and not yet finished, a run is left to the thread running the previous one
+		private final AtomicInteger pendingRuns = new AtomicInteger();
+
+		private Timeout(Runnable task, long deadline, long interval) {
+			this.task = task;
+			this.deadline = deadline;
+			this.interval = interval;
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		private void run(LongAdder failures) {
+			if (pendingRuns.getAndIncrement() > 0) {
+				return;
+			}
+			do {
+				if (cancelled) {
+					continue;
+				}
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					// A failing task must not stop the rest of the batch
+					failures.increment();
+					if (Logger.isEnabled()) {
+						Logger.log("Timer task failed: " + e, 0, LogMessageType.GENERAL);
+					}
+				}
+			} while (pendingRuns.decrementAndGet() > 0);
+		}
+
+	}
+
+}
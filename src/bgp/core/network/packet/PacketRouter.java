@@ -15,5 +15,16 @@ public interface PacketRouter {
 	 */
 	public void routePacket(byte[] pkg, ASConnection receivingConnection);
 	
+	/**
+	 * Route an IPv4 package classified at the receiving link. By default all classes share one path.
+	 * 
+	 * @param pkg
+	 * @param receivingConnection
+	 * @param trafficClass
+	 */
+	public default void routePacket(byte[] pkg, ASConnection receivingConnection, TrafficClass trafficClass) {
+		routePacket(pkg, receivingConnection);
+	}
+	
 	public void routePacket(byte[] pkg);
 }
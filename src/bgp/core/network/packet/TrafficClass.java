@@ -0,0 +1,37 @@
+package bgp.core.network.packet;
+
+import bgp.core.messages.BGPMessage;
+import bgp.utils.PacketEngine;
+
+/**
+ * Class of a packet arriving over a link, decided before it is queued for processing.
+ * Session control messages are kept apart from other traffic so that a flood of data
+ * packets can not delay them past the hold time.
+ */
+public enum TrafficClass {
+	/**
+	 * OPEN and KEEPALIVE messages addressed to the receiving router itself
+	 */
+	CONTROL,
+	/**
+	 * Everything else: client traffic, packets in transit, UPDATE, NOTIFICATION and trust messages
+	 */
+	DATA;
+	
+	/**
+	 * Classify a packet by its recipient and the type of the BGP message it carries,
+	 * without deserializing it.
+	 * @param packet IPv4 packet
+	 * @param localAddress Address of the receiving end of the link
+	 * @return
+	 */
+	public static TrafficClass classify(byte[] packet, long localAddress) {
+		if (packet.length < PacketEngine.HEADER_LENGTH
+				|| PacketEngine.extractRecipient(packet) != localAddress) {
+			return DATA;
+		}
+		int type = BGPMessage.peekType(packet);
+		return type == BGPMessage.OPEN || type == BGPMessage.KEEPALIVE ? CONTROL : DATA;
+	}
+	
+}
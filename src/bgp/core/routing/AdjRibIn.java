@@ -0,0 +1,84 @@
+package bgp.core.routing;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bgp.utils.Subnet;
+
+/**
+ * Adj-RIB-In of a single peer: all routes the peer has advertised and not withdrawn,
+ * whether or not they were selected to the Loc-RIB.
+ */
+public class AdjRibIn {
+	
+	/**
+	 * Marks routes that use the local preference configured for the peer
+	 */
+	public static final int PEER_PREF = Integer.MIN_VALUE;
+	
+	public final int peerId;
+	
+	private final Map<Subnet, Route> routes;
+	
+	public AdjRibIn(int peerId) {
+		this.peerId = peerId;
+		this.routes = new ConcurrentHashMap<>();
+	}
+	
+	/**
+	 * @param subnet
+	 * @param asPath AS_PATH of the route, first hop first
+	 */
+	public void put(Subnet subnet, int[] asPath) {
+		Route r = routes.get(subnet);
+		if (r == null || r.localPref != PEER_PREF || !Arrays.equals(r.asPath, asPath)) {
+			routes.put(subnet, new Route(asPath.length, PEER_PREF, asPath));
+		}
+	}
+	
+	/**
+	 * @param subnet
+	 * @param length Path length of the route
+	 * @param localPref Local preference of the route, or {@link #PEER_PREF}
+	 */
+	public void put(Subnet subnet, int length, int localPref) {
+		Route r = routes.get(subnet);
+		if (r == null || r.length != length || r.localPref != localPref) {
+			routes.put(subnet, new Route(length, localPref, null));
+		}
+	}
+	
+	public Route get(Subnet subnet) {
+		return routes.get(subnet);
+	}
+	
+	public boolean remove(Subnet subnet) {
+		return routes.remove(subnet) != null;
+	}
+	
+	public Set<Subnet> getSubnets() {
+		return routes.keySet();
+	}
+	
+	public int size() {
+		return routes.size();
+	}
+	
+	public static class Route {
+		public final int length;
+		public final int localPref;
+		/**
+		 * AS_PATH as received, null for locally configured routes
+		 */
+		public final int[] asPath;
+		
+		private Route(int length, int localPref, int[] asPath) {
+			this.length = length;
+			this.localPref = localPref;
+			this.asPath = asPath;
+		}
+	}
+
+}
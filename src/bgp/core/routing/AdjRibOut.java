@@ -0,0 +1,184 @@
+package bgp.core.routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import bgp.core.messages.UpdateMessage;
+import bgp.core.messages.notificationexceptions.UpdateMessageException;
+import bgp.core.messages.pathattributes.AsPath;
+import bgp.core.messages.pathattributes.NextHop;
+import bgp.core.messages.pathattributes.Origin;
+import bgp.core.messages.pathattributes.PathAttribute;
+import bgp.utils.Consts;
+import bgp.utils.PacketEngine;
+import bgp.utils.Subnet;
+
+/**
+ * Adj-RIB-Out of a single peer: the routes advertised to the peer and the changes
+ * waiting to be sent. Pending changes are packed into as few UPDATE messages as possible,
+ * prefixes with identical path attributes sharing a message.
+ */
+public class AdjRibOut {
+
+	/**
+	 * Routes sent to the peer, AS_PATH by subnet
+	 */
+	private final Map<Subnet, List<Integer>> advertised;
+
+	/**
+	 * Changes not yet sent, null AS_PATH marks a withdrawal
+	 */
+	private final Map<Subnet, List<Integer>> pending;
+
+	public AdjRibOut() {
+		this.advertised = new HashMap<>();
+		this.pending = new LinkedHashMap<>();
+	}
+
+	/**
+	 * Queue a route to be advertised, replacing any earlier pending change to the subnet.
+	 * @param subnet
+	 * @param asPath AS_PATH sent to the peer, own AS first
+	 */
+	public synchronized void advertise(Subnet subnet, List<Integer> asPath) {
+		if (asPath.equals(advertised.get(subnet))) {
+			// Peer already has the route
+			pending.remove(subnet);
+		} else {
+			pending.put(subnet, asPath);
+		}
+	}
+
+	/**
+	 * Queue a route to be withdrawn, if it was advertised to the peer.
+	 * @param subnet
+	 */
+	public synchronized void withdraw(Subnet subnet) {
+		if (advertised.containsKey(subnet)) {
+			pending.put(subnet, null);
+		} else {
+			pending.remove(subnet);
+		}
+	}
+
+	/**
+	 * @return true if there are changes waiting to be sent
+	 */
+	public synchronized boolean hasPendingChanges() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * @param subnet
+	 * @return AS_PATH last sent to the peer for the subnet, null if not advertised
+	 */
+	public synchronized List<Integer> getAdvertisedPath(Subnet subnet) {
+		return advertised.get(subnet);
+	}
+
+	/**
+	 * Build UPDATE messages of the pending changes and mark them sent.
+	 * Each message fits below {@link Consts#MTU} when sent in an IPv4 packet.
+	 * @param ownId AS_PATH of messages only withdrawing routes
+	 * @param nextHop NEXT_HOP of the messages
+	 * @return UPDATE messages to send to the peer
+	 */
+	public synchronized List<UpdateMessage> flush(int ownId, byte[] nextHop) {
+		return flush(ownId, nextHop, false);
+	}
+
+	/**
+	 * Build UPDATE messages of the pending withdrawals only, announcements are left pending.
+	 * @param ownId AS_PATH of the messages
+	 * @param nextHop NEXT_HOP of the messages
+	 * @return UPDATE messages to send to the peer
+	 */
+	public synchronized List<UpdateMessage> flushWithdrawals(int ownId, byte[] nextHop) {
+		return flush(ownId, nextHop, true);
+	}
+
+	private List<UpdateMessage> flush(int ownId, byte[] nextHop, boolean withdrawalsOnly) {
+		List<UpdateMessage> messages = new ArrayList<>();
+		if (pending.isEmpty()) {
+			return messages;
+		}
+
+		List<Subnet> withdrawn = new ArrayList<>();
+		Map<List<Integer>, List<Subnet>> groups = new LinkedHashMap<>();
+		for (Iterator<Map.Entry<Subnet, List<Integer>>> iter = pending.entrySet().iterator(); iter.hasNext(); ) {
+			Map.Entry<Subnet, List<Integer>> e = iter.next();
+			if (e.getValue() == null) {
+				withdrawn.add(e.getKey());
+				advertised.remove(e.getKey());
+			} else if (!withdrawalsOnly) {
+				groups.computeIfAbsent(e.getValue(), p -> new ArrayList<>()).add(e.getKey());
+				advertised.put(e.getKey(), e.getValue());
+			} else {
+				continue;
+			}
+			iter.remove();
+		}
+
+		try {
+			Iterator<Subnet> withdrawals = withdrawn.iterator();
+			for (Map.Entry<List<Integer>, List<Subnet>> group : groups.entrySet()) {
+				pack(messages, group.getKey(), nextHop, withdrawals, group.getValue().iterator());
+			}
+			List<Integer> ownPath = new ArrayList<>();
+			ownPath.add(ownId);
+			while (withdrawals.hasNext()) {
+				pack(messages, ownPath, nextHop, withdrawals, new ArrayList<Subnet>().iterator());
+			}
+		} catch (UpdateMessageException e) {
+			// Path attributes built here are always valid
+		}
+		return messages;
+	}
+
+	/**
+	 * Forget all routes, e.g. when the session is reset.
+	 */
+	public synchronized void clear() {
+		advertised.clear();
+		pending.clear();
+	}
+
+	/**
+	 * Fill messages sharing the path attributes with the remaining withdrawals first and NLRI after them.
+	 */
+	private static void pack(List<UpdateMessage> messages, List<Integer> asPath, byte[] nextHop,
+			Iterator<Subnet> withdrawals, Iterator<Subnet> NLRI) throws UpdateMessageException {
+		List<PathAttribute> pathAttributes = new ArrayList<>();
+		pathAttributes.add(new AsPath(asPath));
+		pathAttributes.add(new NextHop(nextHop));
+		pathAttributes.add(new Origin(1));
+		int capacity = Consts.MTU - PacketEngine.HEADER_LENGTH
+				- new UpdateMessage(new ArrayList<>(), pathAttributes, new ArrayList<>()).getSerializedLength();
+
+		while (withdrawals.hasNext() || NLRI.hasNext()) {
+			List<Subnet> messageWithdrawals = new ArrayList<>();
+			List<Subnet> messageNLRI = new ArrayList<>();
+			int space = capacity;
+			while (withdrawals.hasNext() && space > UpdateMessage.MAX_PREFIX_LENGTH) {
+				Subnet s = withdrawals.next();
+				messageWithdrawals.add(s);
+				space -= UpdateMessage.getPrefixLength(s);
+			}
+			while (NLRI.hasNext() && space > UpdateMessage.MAX_PREFIX_LENGTH) {
+				Subnet s = NLRI.next();
+				messageNLRI.add(s);
+				space -= UpdateMessage.getPrefixLength(s);
+			}
+			messages.add(new UpdateMessage(messageWithdrawals, new ArrayList<>(pathAttributes), messageNLRI));
+			if (!NLRI.hasNext()) {
+				// Remaining withdrawals go with the next group
+				return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package bgp.core.routing;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import bgp.utils.Subnet;
+
+/**
+ * Changes to the Loc-RIB caused by processing routing information,
+ * used by the router to decide what to advertise to its peers.
+ */
+public class RouteChanges {
+	
+	private final Set<Subnet> withdrawnRoutes = new HashSet<>();
+	private final Set<SubnetNode> replyNodes = new HashSet<>();
+	private final Set<SubnetNode> updatedNodes = new HashSet<>();
+	
+	/**
+	 * @return Subnets that are no longer reachable
+	 */
+	public Set<Subnet> getWithdrawnRoutes() {
+		return withdrawnRoutes;
+	}
+	
+	/**
+	 * @return Nodes the sender of a withdrawal should be made aware of,
+	 * 		since an alternative route is known
+	 */
+	public Set<SubnetNode> getReplyNodes() {
+		return replyNodes;
+	}
+	
+	/**
+	 * @return Nodes whose preferred route changed
+	 */
+	public Set<SubnetNode> getUpdatedNodes() {
+		return updatedNodes;
+	}
+	
+	/**
+	 * Merge changes of a later processing step to these.
+	 * @param other
+	 */
+	public void addAll(RouteChanges other) {
+		withdrawnRoutes.addAll(other.withdrawnRoutes);
+		replyNodes.addAll(other.replyNodes);
+		updatedNodes.addAll(other.updatedNodes);
+	}
+	
+	public boolean isEmpty() {
+		return withdrawnRoutes.isEmpty() && replyNodes.isEmpty() && updatedNodes.isEmpty();
+	}
+
+}
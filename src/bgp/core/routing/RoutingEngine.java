@@ -1,22 +1,19 @@
 package bgp.core.routing;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 import bgp.core.messages.NotificationMessage.UpdateMessageError;
 import bgp.core.messages.UpdateMessage;
+import bgp.core.messages.UpdateMessage.PrefixCursor;
 import bgp.core.messages.notificationexceptions.UpdateMessageException;
-import bgp.core.messages.pathattributes.AsPath;
-import bgp.core.messages.pathattributes.NextHop;
-import bgp.core.messages.pathattributes.Origin;
-import bgp.core.messages.pathattributes.PathAttribute;
 import bgp.core.trust.TrustProvider;
 import bgp.simulation.Logger;
 import bgp.simulation.LogMessage.LogMessageType;
@@ -27,18 +24,27 @@ public class RoutingEngine {
 	
 	private final int asId;
 	
-	private final SubnetNode subnetRootNode;
+	private final SubnetTrie subnetTrie;
 	
 	private final Map<Integer, Integer> localPref;
 	
+	private final Map<Integer, AdjRibIn> adjRibIn;
+	
+	/**
+	 * Prefixes whose routes have changed since the previous decision process run
+	 */
+	private final Set<Subnet> dirtyPrefixes;
+	
 	private final TrustProvider trustProvider;
 	
 	public RoutingEngine(int asId, TrustProvider trustProvider) {
 		this.asId = asId;
-		this.subnetRootNode = new SubnetNode(null, Subnet.getSubnet(0, ~0));
+		this.subnetTrie = new SubnetTrie();
 		// Packets with unknown subnet will go here (drop)
-		this.subnetRootNode.setPath(-1, 999);
+		this.subnetTrie.getRoot().setPath(-1, 999);
 		this.localPref = new ConcurrentHashMap<>();
+		this.adjRibIn = new ConcurrentHashMap<>();
+		this.dirtyPrefixes = new LinkedHashSet<>();
 		
 		this.trustProvider = trustProvider;
 	}
@@ -49,249 +55,284 @@ public class RoutingEngine {
 	 * @return ID of the router to hop next to
 	 */
 	public int decidePath(long address) {
-		return getBestMatchingSubnetNode(address).getFirstHop();
-	}
-	
-	public void addRoutingInfo(Subnet subnet, int firstHop, int length, int localPref) {
-		
-		SubnetNode n = getBestMatchingSubnetNode(subnet);
-		boolean newNode = !n.subnet.equals(subnet);
-		// With a partial match, add a new node as a child
-		if (newNode) {
-			n = new SubnetNode(n, subnet);
-		}
-		
-		if (newNode
-				|| (localPref > getLocalPref(n.getFirstHop()))
-				|| (localPref == getLocalPref(n.getFirstHop()) && length < n.getLength())) {
-			n.setPath(firstHop, length);
-
-			Logger.log("Learned new route to " + subnet + " via " + firstHop + ", length: "
-					+ length, asId, LogMessageType.ROUTING_INFO);
-		}
-	}
-	
-	
-	private SubnetNode getBestMatchingSubnetNode(Subnet subnet) {
-		// current always points to a node that has address in its subnet
-		SubnetNode current = subnetRootNode;
-		// Tells if current has child nodes with a suitable subspace
-		boolean hasSuitableChildren;
-		
-		do {
-			hasSuitableChildren = false;
-			for (SubnetNode n : current.children) {
-				if (n.subnet.containsSubnet(subnet)) {
-					current = n;
-					hasSuitableChildren = true;
-					break;
-				}
-			}
-		} while (hasSuitableChildren);
-		
-		return current;
+		return subnetTrie.getBestMatch(address).getFirstHop();
 	}
 	
-	private SubnetNode getBestMatchingSubnetNode(long address) {
-		SubnetNode current = subnetRootNode;
-		boolean hasChanged;
-		
-		do {
-			hasChanged = false;
-			for (Iterator<SubnetNode> iter = current.getChildIterator(); iter.hasNext();) {
-				SubnetNode n = iter.next();
-				if (n.subnet.containsAddress(address)) {
-					current = n;
-					hasChanged = true;
-					break;
-				}
-			}
-		} while (hasChanged);
-		return current;
+	/**
+	 * Store a route with an explicit local preference, e.g. the route to own subnet.
+	 * @param subnet
+	 * @param firstHop
+	 * @param length
+	 * @param localPref
+	 */
+	public synchronized void addRoutingInfo(Subnet subnet, int firstHop, int length, int localPref) {
+		getAdjRibIn(firstHop).put(subnet, length, localPref);
+		dirtyPrefixes.add(subnet);
+		runDecisionProcess();
 	}
 	
 	public Set<Subnet> getSubnetsBehind(int asId) {
 		Set<Subnet> results = new HashSet<>();
 		
-		for (Iterator<SubnetNode> iter = subnetRootNode.getSubnetNodeIterator(); iter.hasNext(); ) {
-			SubnetNode next = iter.next();
-			if (next.getFirstHop() == asId) {
-				results.add(next.subnet);
+		for (SubnetNode n : getRoutingTable()) {
+			if (n.getFirstHop() == asId) {
+				results.add(n.subnet);
 			}
 		}
 		
 		return results;
 	}
 	
+	/**
+	 * @return Loc-RIB, the preferred route to every known subnet
+	 */
 	public List<SubnetNode> getRoutingTable() {
 		List<SubnetNode> l = new ArrayList<>();
-		for (Iterator<SubnetNode> iter = subnetRootNode.getSubnetNodeIterator(); iter.hasNext(); ) {
-			l.add(iter.next());
-		}
+		subnetTrie.collectRoutedNodes(l);
 		return l;
 	}
+	
+	/**
+	 * @param peerId
+	 * @return Routes received from the peer, including the ones not preferred
+	 */
+	public AdjRibIn getAdjRibIn(int peerId) {
+		return adjRibIn.computeIfAbsent(peerId, AdjRibIn::new);
+	}
 
 	/**
-	 * Process an UPDATE message and update the routing information accordingly.
+	 * Process an UPDATE message and run the decision process immediately.
 	 * Modify the UPDATE message ready for forwarding by filtering out unnecessary routes.
 	 * 
 	 * @param um
 	 * @throws UpdateMessageException
-	 * @return Set of nodes the original sender of um should be made aware of
+	 * @return Changes the rest of the peers should be made aware of
+	 * @see #receiveUpdateMessage(UpdateMessage)
 	 */
-	public Set<SubnetNode> handleUpdateMessage(UpdateMessage um) throws UpdateMessageException {
-		// Try to extract the mandatory Path attributes
-		AsPath ap = null;
-		NextHop nh = null;
-		Origin o = null;
-		for (PathAttribute b : um.getPathAttributes()) {
-			if (b instanceof AsPath) {
-				ap = (AsPath) b;
-			} else if (b instanceof NextHop) {
-				nh = (NextHop) b;
-			} else if (b instanceof Origin) {
-				o = (Origin) b;
-			}
-		}
-		if (ap == null || nh == null || o == null) {
+	public synchronized RouteChanges handleUpdateMessage(UpdateMessage um) throws UpdateMessageException {
+		RouteChanges changes = receiveUpdateMessage(um);
+		changes.addAll(runDecisionProcess());
+		
+		// Only forward the routes that changed something
+		int firstHop = um.getAsPathLength() > 0 ? um.getAsPathId(0) : -1;
+		um.setRoutes(new ArrayList<>(changes.getWithdrawnRoutes()),
+				changes.getUpdatedNodes()
+					.stream()
+					.filter(n -> n.getFirstHop() == firstHop)
+					.map(SubnetNode::getSubnet)
+					.collect(Collectors.toList()));
+		
+		return changes;
+	}
+	
+	/**
+	 * Store the routes of an UPDATE message to Adj-RIB-In of the sending peer
+	 * and mark the affected prefixes dirty. Loc-RIB is not changed until
+	 * {@link #runDecisionProcess()} is called, so repeated changes to the same
+	 * prefix are only decided on once.
+	 * 
+	 * @param um
+	 * @throws UpdateMessageException
+	 * @return Changes containing only the nodes the sender of um should be made aware of
+	 */
+	public synchronized RouteChanges receiveUpdateMessage(UpdateMessage um) throws UpdateMessageException {
+		// Check the mandatory Path attributes without decoding the whole message
+		if (!um.hasMandatoryAttributes()) {
 			throw new UpdateMessageException(UpdateMessageError.MISSING_WELL_KNOWN_ATTRIBUTE);
-		} else if (o.getOriginValue() < 0 || o.getOriginValue() > 2) {
+		} else if (um.getOriginValue() < 0 || um.getOriginValue() > 2) {
 			throw new UpdateMessageException(UpdateMessageError.INVALID_ORIGIN_ATTRIBUTE);
 		}
 		
-		LinkedList<Integer> hops = ap.getIdSequence();
-		int length = hops.size();
-		int firstHop = hops.size() > 0 ? hops.get(0) : -1;
-		int localPref = getLocalPref(firstHop);
+		int length = um.getAsPathLength();
+		int firstHop = length > 0 ? um.getAsPathId(0) : -1;
+		int[] asPath = new int[Math.max(length, 0)];
+		boolean loop = false;
+		for (int i = 0; i < asPath.length; i++) {
+			asPath[i] = um.getAsPathId(i);
+			loop |= asPath[i] == asId;
+		}
 		
-		// Remove the revoked subnets if their preferred path is the revoking one
-		Set<Subnet> deletedPaths = new HashSet<>();
-		Set<SubnetNode> replyPaths = new HashSet<>();
-		for (Subnet s : um.getWithdrawnRoutes()) {
-			SubnetNode n = getBestMatchingSubnetNode(s);
-			if (n.subnet.equals(s)) {
-				// Exact match was found
-				if (firstHop == n.getFirstHop() || firstHop == -1) {
-					n.delete();
-					deletedPaths.add(n.subnet);
-
-					Logger.log("Revoked route to " + s + " via " + firstHop, asId, LogMessageType.ROUTING_INFO);
-				} else {
-					// Revoking peer should be informed of alternative route
-					replyPaths.add(n);
+		RouteChanges changes = new RouteChanges();
+		
+		// Remove the revoked routes, the best remaining one is selected later
+		for (PrefixCursor c = um.getWithdrawnRoutesCursor(); c.next(); ) {
+			Subnet subnet = Subnet.getSubnet(c.getAddress(), Subnet.getSubnetMask(c.getLength()));
+			boolean removed = false;
+			if (firstHop == -1) {
+				// Revoke the route from every peer
+				for (AdjRibIn rib : adjRibIn.values()) {
+					removed |= rib.remove(subnet);
 				}
+			} else {
+				removed = getAdjRibIn(firstHop).remove(subnet);
 			}
-		}
-		
-		// Add subnets reachable in this path if they are
-		// preferred to current path or current path does not exist
-		Set<Subnet> utilizedPaths = new HashSet<>();
-		for (Subnet s : um.getNLRI()) {
-			SubnetNode n = getBestMatchingSubnetNode(s);
-			boolean pathChanged = false;
-			int currentPathLocalPref = getLocalPref(n.getFirstHop());
-			
-			// With a partial match, add a new node as a child
-			if (!n.subnet.equals(s)) {
-				// New path
-				n = new SubnetNode(n, s);
-				pathChanged = true;
-				
-			} else if (localPref > currentPathLocalPref) {
-				// Higher preference than current path
-				pathChanged = true;
-				
-			} else if (localPref == currentPathLocalPref) {
-				// Same preference, compare lengths modified with trust
-				double oldTrust = (trustProvider.getTrustFor(n.getFirstHop()) + 128)/255.0;
-				double oldCost = n.getLength()*oldTrust;
-				
-				double newTrust = (trustProvider.getTrustFor(firstHop) + 128)/255.0;
-				double newCost = length*newTrust;
-				pathChanged = newCost < oldCost;
-				//System.out.println(this.asId + " TO " + n.subnet + " old: " + n.getFirstHop() + " vs. " + firstHop + ": " + oldCost + " " + newCost + "->" + pathChanged);
+			if (removed) {
+				dirtyPrefixes.add(subnet);
 			}
 			
-			if (pathChanged) {
-				n.setPath(firstHop, length);
-				Logger.log("Learned new route to " + s + " via " + firstHop + ", length: "
-						+ length, asId, LogMessageType.ROUTING_INFO);
-				utilizedPaths.add(n.subnet);
+			SubnetNode n = subnetTrie.get(subnet);
+			if (n != null && firstHop != -1 && n.getFirstHop() != firstHop) {
+				// Revoking peer should be informed of alternative route
+				changes.getReplyNodes().add(n);
 			}
 		}
 		
-		// Clear the NLRI and Withdrawn routes lists from the UPDATE message
-		um.getWithdrawnRoutes().clear();
-		um.getWithdrawnRoutes().addAll(deletedPaths);
-		um.getNLRI().clear();
-		um.getNLRI().addAll(utilizedPaths);
+		if (firstHop != -1) {
+			AdjRibIn rib = getAdjRibIn(firstHop);
+			for (PrefixCursor c = um.getNLRICursor(); c.next(); ) {
+				Subnet subnet = Subnet.getSubnet(c.getAddress(), Subnet.getSubnetMask(c.getLength()));
+				if (loop) {
+					// Path through this AS replaces the earlier route from the peer
+					if (!rib.remove(subnet)) {
+						continue;
+					}
+				} else {
+					rib.put(subnet, asPath);
+				}
+				dirtyPrefixes.add(subnet);
+			}
+		}
 		
-		return replyPaths;
+		return changes;
 	}
 	
-	private int getLocalPref(int asId) {
-		return localPref.getOrDefault(asId, Consts.DEFAULT_PREF);
+	/**
+	 * @return true if some prefixes are waiting for the decision process
+	 */
+	public synchronized boolean hasDirtyPrefixes() {
+		return !dirtyPrefixes.isEmpty();
 	}
 	
-	public void setLocalPref(int asId, int pref) {
-		localPref.put(asId, pref);
+	/**
+	 * Select the best route once for every prefix marked dirty since the previous run.
+	 * @return Subnets that became unreachable and nodes whose preferred route changed
+	 */
+	public synchronized RouteChanges runDecisionProcess() {
+		RouteChanges changes = new RouteChanges();
+		for (Subnet subnet : dirtyPrefixes) {
+			SubnetNode n = subnetTrie.get(subnet);
+			boolean wasRouted = n != null;
+			if (n == null) {
+				if (!hasRoute(subnet)) {
+					continue;
+				}
+				n = subnetTrie.put(subnet);
+			}
+			if (!selectBestPath(n)) {
+				continue;
+			}
+			if (n.isRouted()) {
+				Logger.log("Learned new route to " + n.subnet + " via " + n.getFirstHop() + ", length: "
+						+ n.getLength(), asId, LogMessageType.ROUTING_INFO);
+				changes.getUpdatedNodes().add(n);
+			} else if (wasRouted) {
+				Logger.log("Revoked route to " + n.subnet, asId, LogMessageType.ROUTING_INFO);
+				changes.getWithdrawnRoutes().add(n.subnet);
+			}
+		}
+		dirtyPrefixes.clear();
+		return changes;
 	}
 	
 	/**
-	 * Create UPDATE message with specified NLRI
-	 * @param base UpdateMessage to add information to
-	 * @param NLRIToSend
-	 * @return List of serialized UPDATE messages
+	 * Remove all routes received from a peer, e.g. after the connection to it was lost,
+	 * and run the decision process.
+	 * @param peerId
+	 * @return Withdrawn subnets and the nodes rerouted via other peers
 	 */
-	public List<byte[]> generatePaddedUpdateMessages(UpdateMessage base, Set<SubnetNode> NLRIToSend) {
-		Map<Integer, Set<SubnetNode>> nodes = new HashMap<>();
-		for (Iterator<SubnetNode> iter = NLRIToSend.iterator(); iter.hasNext();) {
-			SubnetNode n = iter.next();
-			// Do not send own default route
-			if (n.getFirstHop() > 0 && n.getLength() < 100) {
-				nodes.computeIfAbsent(n.getLength(), len -> new HashSet<>()).add(n);
+	public synchronized RouteChanges removePeer(int peerId) {
+		AdjRibIn rib = adjRibIn.remove(peerId);
+		if (rib != null) {
+			dirtyPrefixes.addAll(rib.getSubnets());
+		}
+		return runDecisionProcess();
+	}
+	
+	private boolean hasRoute(Subnet subnet) {
+		for (AdjRibIn rib : adjRibIn.values()) {
+			if (rib.get(subnet) != null) {
+				return true;
 			}
 		}
-		
-		List<byte[]> messages = new ArrayList<>();
-		AsPath ap = extractAsPath(base);
-		nodes.entrySet()
-			.stream()
-			.sorted((e1, e2) -> e1.getKey() - e2.getKey())
-			.forEach(entry -> {
-				// Padding to match real path length
-				// Necessary to avoid the other end thinking of this as an optimal route to everything
-				while (ap.getIdSequence().size() < entry.getKey()) {
-					ap.appendId(asId);
-				}
-				base.getNLRI().clear();
-				entry.getValue().stream().map(node -> node.subnet).forEach(subnet -> base.getNLRI().add(subnet));
-				messages.add(base.serialize());
-		});
-		return messages;
+		return false;
 	}
-
+	
 	/**
-	 * Create UPDATE messages sent as initial routing information after a new connection is created
-	 * @param base {@link UpdateMessage} with PathAttributes set
-	 * @return List of serialized UPDATE messages
+	 * Run the decision process for a node over every Adj-RIB-In.
+	 * Route with the highest local preference wins, ties are broken by
+	 * the path length weighted with the trust for the first hop.
+	 * The current route is kept if no alternative is strictly better.
+	 * Node is removed from the trie if no route exists.
+	 * 
+	 * @param n
+	 * @return true if the preferred route of the node changed
 	 */
-	public List<byte[]> generatePaddedUpdateMessages(UpdateMessage base) {
-		// Collect all nodes to a set
-		Set<SubnetNode> nodes = new HashSet<>();
-		for (Iterator<SubnetNode> iter = subnetRootNode.getSubnetNodeIterator(); iter.hasNext(); ) {
-			nodes.add(iter.next());
+	private boolean selectBestPath(SubnetNode n) {
+		int bestHop = -1;
+		int bestLength = 0;
+		int[] bestPath = null;
+		int bestPref = 0;
+		double bestCost = 0;
+		
+		// Start from the current route to keep it on ties
+		if (n.isRouted()) {
+			AdjRibIn current = adjRibIn.get(n.getFirstHop());
+			AdjRibIn.Route r = current != null ? current.get(n.subnet) : null;
+			if (r != null) {
+				bestHop = current.peerId;
+				bestLength = r.length;
+				bestPath = r.asPath;
+				bestPref = getRoutePref(current.peerId, r);
+				bestCost = getPathCost(current.peerId, r.length);
+			}
 		}
 		
-		return generatePaddedUpdateMessages(base, nodes);
-	}
-	
-	private AsPath extractAsPath(UpdateMessage b) {
-		for (PathAttribute pa : b.getPathAttributes()) {
-			if (pa instanceof AsPath) {
-				return (AsPath) pa;
+		for (AdjRibIn rib : adjRibIn.values()) {
+			if (rib.peerId == bestHop) {
+				continue;
 			}
+			AdjRibIn.Route r = rib.get(n.subnet);
+			if (r == null) {
+				continue;
+			}
+			int pref = getRoutePref(rib.peerId, r);
+			double cost = getPathCost(rib.peerId, r.length);
+			if (bestHop == -1
+					|| pref > bestPref
+					|| (pref == bestPref && cost < bestCost)) {
+				bestHop = rib.peerId;
+				bestLength = r.length;
+				bestPath = r.asPath;
+				bestPref = pref;
+				bestCost = cost;
+			}
+		}
+		
+		if (bestHop == -1) {
+			return subnetTrie.remove(n.subnet);
+		}
+		if (n.isRouted() && n.getFirstHop() == bestHop && Arrays.equals(n.getAsPath(), bestPath)
+				&& n.getLength() == bestLength) {
+			return false;
 		}
-		return null;
+		n.setPath(bestHop, bestLength, bestPath);
+		return true;
+	}
+	
+	private int getRoutePref(int peerId, AdjRibIn.Route r) {
+		return r.localPref != AdjRibIn.PEER_PREF ? r.localPref : getLocalPref(peerId);
+	}
+	
+	private double getPathCost(int peerId, int length) {
+		// Read from the trust engine's published snapshot, without locks
+		return length*trustProvider.getCostMultiplier(peerId);
+	}
+	
+	private int getLocalPref(int asId) {
+		return localPref.getOrDefault(asId, Consts.DEFAULT_PREF);
+	}
+	
+	public void setLocalPref(int asId, int pref) {
+		localPref.put(asId, pref);
 	}
 }
@@ -1,52 +1,89 @@
 package bgp.core.routing;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
 import bgp.utils.Subnet;
 
+/**
+ * A node of the {@link SubnetTrie}. Nodes with a route stored carry the first hop
+ * and path length of the preferred path, nodes without one only branch the trie.
+ */
 public class SubnetNode {
-	
+
 	protected final Subnet subnet;
-	
-	protected SubnetNode parent;
-	protected final Set<SubnetNode> children;
-	
+
+	// Cached prefix information to keep trie traversal free of method calls
+	protected final long prefix;
+	protected final long bitmask;
+	protected final int prefixLength;
+
+	// Children for the next bit being 0 and 1 respectively
+	private volatile SubnetNode zero, one;
+
+	private volatile boolean routed;
+
 	private int firstHop;
 	private int length;
-	
-	public SubnetNode(SubnetNode parent, Subnet subnet) {
-		this.parent = parent;
+	private int[] asPath;
+
+	public SubnetNode(Subnet subnet) {
 		this.subnet = subnet;
-		this.children = Collections.newSetFromMap(new ConcurrentHashMap<SubnetNode, Boolean>());
-		
-		if (parent != null) {
-			parent.addChild(this);
+		this.prefix = subnet.getAddress();
+		this.bitmask = subnet.getBitmask();
+		this.prefixLength = subnet.getBitmaskLength();
+	}
+
+	protected SubnetNode getChild(int bit) {
+		return bit == 0 ? zero : one;
+	}
+
+	protected void setChild(int bit, SubnetNode child) {
+		if (bit == 0) {
+			zero = child;
+		} else {
+			one = child;
 		}
 	}
-	
-	public void setParent(SubnetNode parent) {
-		this.parent = parent;
+
+	protected int getChildCount() {
+		return (zero != null ? 1 : 0) + (one != null ? 1 : 0);
 	}
-	
-	public void addChild(SubnetNode child) {
-		children.add(child);
+
+	protected boolean containsAddress(long address) {
+		return (address & bitmask) == prefix;
 	}
-	
+
 	public void setPath(int firstHop, int length) {
+		setPath(firstHop, length, null);
+	}
+	
+	/**
+	 * @param firstHop
+	 * @param length
+	 * @param asPath AS_PATH of the route, null if the route was not learned from an UPDATE
+	 */
+	public void setPath(int firstHop, int length, int[] asPath) {
 		this.firstHop = firstHop;
 		this.length = length;
+		this.asPath = asPath;
+		// Volatile write publishes the path to lock-free readers
+		this.routed = true;
 	}
-	
+
+	protected void clearPath() {
+		this.routed = false;
+	}
+
+	/**
+	 * @return true if a route is stored for this prefix,
+	 * 		false if the node only branches the trie
+	 */
+	public boolean isRouted() {
+		return routed;
+	}
+
 	public Subnet getSubnet() {
 		return subnet;
 	}
-	
+
 	public int getFirstHop() {
 		return firstHop;
 	}
@@ -54,49 +91,14 @@ public class SubnetNode {
 	public int getLength() {
 		return length;
 	}
-
-	public void delete() {
-		for (SubnetNode child : children) {
-			child.setParent(parent);
-		}
-		parent.children.remove(this);
-	}
 	
+	public int[] getAsPath() {
+		return asPath;
+	}
+
 	@Override
 	public int hashCode() {
 		return subnet.hashCode();
 	}
-	
-	public Iterator<SubnetNode> getChildIterator() {
-		return new Iterator<SubnetNode>() {
-			private final Queue<SubnetNode> nodes = new ConcurrentLinkedQueue<SubnetNode>(SubnetNode.this.children);
-			@Override
-			public boolean hasNext() {
-				return !nodes.isEmpty();
-			}
-
-			@Override
-			public SubnetNode next() {
-				return nodes.poll();
-			}
-		};
-	}
-	
-	public Iterator<SubnetNode> getSubnetNodeIterator() {
-		return new Iterator<SubnetNode>() {
-			private final Queue<SubnetNode> nodes = new ConcurrentLinkedQueue<SubnetNode>(Arrays.asList(SubnetNode.this));
-			@Override
-			public boolean hasNext() {
-				return !nodes.isEmpty();
-			}
-
-			@Override
-			public SubnetNode next() {
-				SubnetNode next = nodes.poll();
-				nodes.addAll(next.children);
-				return next;
-			}
-		};
-	}
 
 }
@@ -0,0 +1,223 @@
+package bgp.core.routing;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import bgp.utils.Subnet;
+
+/**
+ * Path-compressed binary trie (Patricia trie) of {@link SubnetNode}s keyed on the prefix bits.
+ * Longest prefix matching takes at most 32 steps and does not allocate.
+ *
+ * Lookups are lock-free, modifications are serialized. A modification only becomes
+ * visible to lookups once the affected node is completely built, so a concurrent
+ * lookup sees either the old or the new state of the trie.
+ *
+ * Invariant: every node other than the root either has a route or two children.
+ */
+public class SubnetTrie {
+
+	private final SubnetNode root;
+
+	public SubnetTrie() {
+		this.root = new SubnetNode(Subnet.getSubnet(0, 0));
+	}
+
+	/**
+	 * @return Root node covering 0.0.0.0/0
+	 */
+	public SubnetNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * Find the routed node with the longest prefix containing the given address.
+	 * @param address
+	 * @return Best matching routed node, root if no other node matches
+	 */
+	public SubnetNode getBestMatch(long address) {
+		SubnetNode best = root;
+		SubnetNode current = root;
+		while (current != null && current.containsAddress(address)) {
+			if (current.isRouted()) {
+				best = current;
+			}
+			if (current.prefixLength == 32) {
+				break;
+			}
+			current = current.getChild(bitAt(address, current.prefixLength));
+		}
+		return best;
+	}
+
+	/**
+	 * Find the node with a route to exactly the given subnet.
+	 * @param subnet
+	 * @return Node with a route to subnet, or null if no such route exists
+	 */
+	public SubnetNode get(Subnet subnet) {
+		return get(subnet.getAddress(), subnet.getBitmaskLength());
+	}
+	
+	/**
+	 * Find the node with a route to exactly the given prefix.
+	 * @param address
+	 * @param length Prefix length in bits
+	 * @return Node with a route to the prefix, or null if no such route exists
+	 */
+	public SubnetNode get(long address, int length) {
+		SubnetNode n = find(address, length);
+		return n != null && n.isRouted() ? n : null;
+	}
+
+	private SubnetNode find(long address, int length) {
+		SubnetNode current = root;
+		while (current != null
+				&& current.prefixLength <= length
+				&& current.containsAddress(address)) {
+			if (current.prefixLength == length) {
+				return current;
+			}
+			current = current.getChild(bitAt(address, current.prefixLength));
+		}
+		return null;
+	}
+
+	/**
+	 * Get the node for the given subnet, adding it to the trie if necessary.
+	 * A newly added node has no route until {@link SubnetNode#setPath(int, int)} is called.
+	 *
+	 * @param subnet
+	 * @return Node for exactly the given subnet
+	 */
+	public synchronized SubnetNode put(Subnet subnet) {
+		long address = subnet.getAddress();
+		int length = subnet.getBitmaskLength();
+		if (length == 0) {
+			return root;
+		}
+
+		SubnetNode parent = root;
+		while (true) {
+			int bit = bitAt(address, parent.prefixLength);
+			SubnetNode child = parent.getChild(bit);
+			if (child == null) {
+				SubnetNode n = new SubnetNode(subnet);
+				parent.setChild(bit, n);
+				return n;
+			}
+
+			int common = commonPrefixLength(child.prefix, child.prefixLength, address, length);
+			if (common == child.prefixLength) {
+				if (child.prefixLength == length) {
+					return child;
+				}
+				// Child is a less specific prefix of subnet, descend
+				parent = child;
+				continue;
+			}
+
+			SubnetNode n = new SubnetNode(subnet);
+			if (common == length) {
+				// Subnet is a less specific prefix of child, insert in between
+				n.setChild(bitAt(child.prefix, length), child);
+				parent.setChild(bit, n);
+			} else {
+				// Prefixes diverge, branch at the common prefix
+				SubnetNode branch = new SubnetNode(Subnet.getSubnet(address, Subnet.getSubnetMask(common)));
+				branch.setChild(bitAt(child.prefix, common), child);
+				branch.setChild(bitAt(address, common), n);
+				parent.setChild(bit, branch);
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Remove the route to exactly the given subnet and prune unnecessary nodes.
+	 * The root node is never removed.
+	 *
+	 * @param subnet
+	 * @return true if a route was removed
+	 */
+	public synchronized boolean remove(Subnet subnet) {
+		long address = subnet.getAddress();
+		int length = subnet.getBitmaskLength();
+
+		SubnetNode grandparent = null, parent = null, current = root;
+		while (current != null
+				&& current.prefixLength < length
+				&& current.containsAddress(address)) {
+			grandparent = parent;
+			parent = current;
+			current = current.getChild(bitAt(address, current.prefixLength));
+		}
+		if (current == null
+				|| current == root
+				|| current.prefixLength != length
+				|| !current.containsAddress(address)
+				|| !current.isRouted()) {
+			return false;
+		}
+
+		current.clearPath();
+		int bit = bitAt(address, parent.prefixLength);
+		switch (current.getChildCount()) {
+		case 2:
+			// Still needed for branching
+			break;
+		case 1:
+			parent.setChild(bit, onlyChild(current));
+			break;
+		default:
+			parent.setChild(bit, null);
+			// Parent may have become an unnecessary branching node
+			if (parent != root && !parent.isRouted()) {
+				grandparent.setChild(bitAt(address, grandparent.prefixLength), onlyChild(parent));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collect all nodes with a route to the given list.
+	 * @param results
+	 */
+	public void collectRoutedNodes(List<SubnetNode> results) {
+		Deque<SubnetNode> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			SubnetNode n = stack.pop();
+			if (n.isRouted()) {
+				results.add(n);
+			}
+			for (int bit = 1; bit >= 0; bit--) {
+				SubnetNode child = n.getChild(bit);
+				if (child != null) {
+					stack.push(child);
+				}
+			}
+		}
+	}
+
+	private static SubnetNode onlyChild(SubnetNode n) {
+		SubnetNode child = n.getChild(0);
+		return child != null ? child : n.getChild(1);
+	}
+
+	/**
+	 * @param address
+	 * @param index Index of the bit, 0 being the most significant
+	 * @return Value of the bit at given index of a 32-bit address
+	 */
+	private static int bitAt(long address, int index) {
+		return (int) ((address >>> (31 - index)) & 1);
+	}
+
+	private static int commonPrefixLength(long address1, int length1, long address2, int length2) {
+		int differing = Long.numberOfLeadingZeros((address1 ^ address2) & 0xFFFFFFFFL) - 32;
+		return Math.min(differing, Math.min(length1, length2));
+	}
+
+}
@@ -0,0 +1,140 @@
+package bgp.core.trust;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+
+/**
+ * 1024-bit RSA keys used both for SHA1withRSA signatures and for encrypting votes.
+ */
+public class RSATrustCrypto implements TrustCryptoProvider {
+	
+	private static final String CRYPTO_ALGORITHM = "RSA";
+	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+	private static final int CRYPTO_KEYSIZE = 1024;
+	
+	public static final int ENCRYPTED_MESSAGE_LENGTH = 128;
+	public static final int ENCRYPTED_PAYLOAD_LENGTH = 117;
+	
+	/**
+	 * Cipher and Signature objects are expensive to look up and not thread-safe,
+	 * so every thread keeps its own and re-initializes it with the key at hand.
+	 */
+	private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance(CRYPTO_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	private static final ThreadLocal<Signature> SIGNATURE = ThreadLocal.withInitial(() -> {
+		try {
+			return Signature.getInstance(SIGNATURE_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	
+	@Override
+	public byte getAlgorithmId() {
+		return RSA;
+	}
+	
+	@Override
+	public TrustKeys generateKeys(SecureRandom random) throws GeneralSecurityException {
+		KeyPairGenerator kpg = KeyPairGenerator.getInstance(CRYPTO_ALGORITHM);
+		if (random != null) {
+			kpg.initialize(CRYPTO_KEYSIZE, random);
+		} else {
+			kpg.initialize(CRYPTO_KEYSIZE);
+		}
+		KeyPair kp = kpg.generateKeyPair();
+		return new TrustKeys(kp, kp);
+	}
+	
+	@Override
+	public int getVoteLength() {
+		return ENCRYPTED_PAYLOAD_LENGTH;
+	}
+	
+	@Override
+	public byte[] encodePublicKeys(TrustKeys keys) {
+		return keys.getSigningKey().getEncoded();
+	}
+	
+	@Override
+	public TrustKeys decodePublicKeys(byte[] encoded) throws GeneralSecurityException {
+		PublicKey key = decodePublicKey(encoded);
+		return new TrustKeys(key, key);
+	}
+	
+	@Override
+	public byte[] encrypt(TrustKeys own, TrustKeys recipient, byte[] cleartext) throws GeneralSecurityException {
+		return encrypt(recipient.getEncryptionKey(), cleartext);
+	}
+	
+	@Override
+	public byte[] decrypt(TrustKeys own, TrustKeys sender, byte[] ciphertext) throws GeneralSecurityException {
+		return decrypt(own.getDecryptionKey(), ciphertext);
+	}
+	
+	@Override
+	public byte[] sign(TrustKeys own, byte[] payload) throws GeneralSecurityException {
+		return sign(own.getSigningPrivateKey(), payload);
+	}
+	
+	@Override
+	public boolean verify(TrustKeys signer, byte[] payload, byte[] signature) throws GeneralSecurityException {
+		return verify(signer.getSigningKey(), payload, signature);
+	}
+	
+	static byte[] sign(PrivateKey signingKey, byte[] payload) throws GeneralSecurityException {
+		Signature s = SIGNATURE.get();
+		s.initSign(signingKey);
+		s.update(payload);
+		
+		return s.sign();
+	}
+	
+	static boolean verify(PublicKey verificationKey, byte[] payload, byte[] signature) throws GeneralSecurityException {
+		Signature s = SIGNATURE.get();
+		s.initVerify(verificationKey);
+		s.update(payload);
+		
+		return s.verify(signature);
+	}
+	
+	static byte[] encrypt(PublicKey encryptionKey, byte[] payload) throws GeneralSecurityException {
+		Cipher c = CIPHER.get();
+		c.init(Cipher.ENCRYPT_MODE, encryptionKey);
+		
+		return c.doFinal(payload);
+	}
+	
+	static byte[] decrypt(PrivateKey decryptionKey, byte[] payload) throws GeneralSecurityException {
+		Cipher c = CIPHER.get();
+		c.init(Cipher.DECRYPT_MODE, decryptionKey);
+		
+		return c.doFinal(payload);
+	}
+	
+	static PublicKey decodePublicKey(byte[] encoded) throws GeneralSecurityException {
+		return KeyFactory.getInstance(CRYPTO_ALGORITHM)
+				.generatePublic(new X509EncodedKeySpec(encoded));
+	}
+	
+	static PrivateKey decodePrivateKey(byte[] encoded) throws GeneralSecurityException {
+		return KeyFactory.getInstance(CRYPTO_ALGORITHM)
+				.generatePrivate(new PKCS8EncodedKeySpec(encoded));
+	}
+
+}
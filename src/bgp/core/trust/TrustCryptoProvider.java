@@ -0,0 +1,75 @@
+package bgp.core.trust;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Cryptographic scheme used to sign and encrypt trust votes. All routers of a simulation
+ * use the same scheme, selected with {@link bgp.simulation.Simulator#setTrustCryptoProvider(TrustCryptoProvider)}.
+ * Implementations must be thread-safe.
+ */
+public interface TrustCryptoProvider {
+	
+	/**
+	 * Algorithm identifiers carried in TRUST messages
+	 */
+	public static final byte RSA = 1;
+	public static final byte CURVE25519 = 2;
+	
+	/**
+	 * @return Identifier of the scheme in TRUST messages
+	 */
+	public byte getAlgorithmId();
+	
+	/**
+	 * @return Fresh keys for a router
+	 * @throws GeneralSecurityException if the scheme is not available
+	 */
+	public default TrustKeys generateKeys() throws GeneralSecurityException {
+		return generateKeys(null);
+	}
+	
+	/**
+	 * @param random Source of the key material, null for the default source
+	 * @return Fresh keys for a router
+	 * @throws GeneralSecurityException if the scheme is not available
+	 */
+	public TrustKeys generateKeys(SecureRandom random) throws GeneralSecurityException;
+	
+	/**
+	 * @return Length of an encrypted vote's cleartext, the vote itself followed by random padding
+	 */
+	public int getVoteLength();
+	
+	/**
+	 * Encode the public keys to be served by the key directory of the simulator.
+	 * @param keys
+	 * @return
+	 */
+	public byte[] encodePublicKeys(TrustKeys keys);
+	
+	public TrustKeys decodePublicKeys(byte[] encoded) throws GeneralSecurityException;
+	
+	/**
+	 * @param own Keys of the encrypting router
+	 * @param recipient Public keys of the recipient
+	 * @param cleartext
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] encrypt(TrustKeys own, TrustKeys recipient, byte[] cleartext) throws GeneralSecurityException;
+	
+	/**
+	 * @param own Keys of the decrypting router
+	 * @param sender Public keys of the router that encrypted the data
+	 * @param ciphertext
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] decrypt(TrustKeys own, TrustKeys sender, byte[] ciphertext) throws GeneralSecurityException;
+	
+	public byte[] sign(TrustKeys own, byte[] payload) throws GeneralSecurityException;
+	
+	public boolean verify(TrustKeys signer, byte[] payload, byte[] signature) throws GeneralSecurityException;
+	
+}
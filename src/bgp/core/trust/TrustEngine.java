@@ -1,99 +1,218 @@
 package bgp.core.trust;
 
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.spec.PKCS8EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-import javax.crypto.Cipher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import bgp.core.messages.TrustMessage;
 import bgp.core.messages.UpdateMessage;
-import bgp.core.messages.pathattributes.AsPath;
 import bgp.simulation.Simulator;
+import bgp.utils.IntTable;
 import bgp.utils.PacketEngine;
-import bgp.utils.Pair;
 
 public class TrustEngine implements TrustProvider {
 
-	private static final String CRYPTO_ALGORITHM = "RSA";
-	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
-	private static final int CRYPTO_KEYSIZE = 1024;
+	// Scheme of the trust votes, the same for all routers of a simulation
+	private final TrustCryptoProvider crypto;
 	
-	public static final int ENCRYPTED_MESSAGE_LENGTH = 128;
-	public static final int ENCRYPTED_PAYLOAD_LENGTH = 117;
+	// Keys used to transfer trust information, generated or taken from the pool on first use
+	private volatile TrustKeys keys;
+	private final int ownerId;
+	private final TrustKeyPool keyPool;
 	
-	// 1024-bit RSA keys used to transfer trust information
-	private KeyPair kp;
+	// Public keys of other AS's, decoded once instead of for every trust message
+	private final Map<Integer, TrustKeys> publicKeys = new ConcurrentHashMap<>();
+	
+	/**
+	 * Padding of trust votes. Seeded once by the platform's non-blocking source,
+	 * unlike getInstanceStrong() which may wait for entropy on every vote.
+	 */
+	private static final SecureRandom RANDOM = new SecureRandom();
 	
 
-	// A reviewer-reviewed list of requested trust values to avoid peers sending multiple values for one query
-	private final List<Pair<Integer, Integer>> trustRequests = new ArrayList<>();
+	// Reviewer-reviewed pairs of requested trust values, packed by requestKey, and the times
+	// they were requested, to avoid peers sending multiple values for one query and to avoid
+	// asking again while waiting
+	private final Map<Integer, Long> trustRequests = new ConcurrentHashMap<>();
+	
+	// Milliseconds after which an unanswered trust request may be sent again
+	private static final long TRUST_REQUEST_TIMEOUT = 10000;
+	
+	/**
+	 * Workers running the cryptography of trust messages, shared by all routers.
+	 * Bounded so that a burst of trust traffic is shed instead of piling up.
+	 */
+	private static final int TRUST_WORKER_QUEUE_CAPACITY = 4096;
+	private static final ThreadPoolExecutor TRUST_WORKERS;
+	static {
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		AtomicInteger count = new AtomicInteger();
+		TRUST_WORKERS = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(TRUST_WORKER_QUEUE_CAPACITY), r -> {
+					Thread t = new Thread(r, "Trust worker " + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+	}
+	private static final LongAdder droppedTrustTasks = new LongAdder();
+	
+	// Runs the cryptography, in the calling thread in discrete-event simulation to keep runs reproducible
+	private final Executor cryptoExecutor;
 	
 	
 	// The weight given to direct trust in range 0..1
 	private final double directTrustWeight = 0.6;
 	
-	// Store the trust values for neighbours
-	private final Map<Integer, Byte> votedTrustValues;
-	private final Map<Integer, Byte> directTrustValues;
-	// Count the amount of trust messages received for each neighbour
-	private final Map<Integer, Integer> voteCounts;
+	// Store the trust values for neighbours by AS id, direct trust in the lowest octet
+	// and the sweep of the trust increaser it was written at above it
+	private final IntTable directTrustValues;
+	private static final int SWEEP_MASK = (1 << 23) - 1;
+	// Voted trust in the lowest octet and the amount of votes received above it,
+	// so that both change in one atomic update
+	private final IntTable votes;
+	private static final int MAX_VOTE_COUNT = (1 << 23) - 1;
+	
+	/**
+	 * Path cost multipliers indexed by AS id, derived from the trust values above and
+	 * republished as a new array whenever they change, so that the decision process
+	 * reads them without locks or arithmetic.
+	 */
+	private volatile double[] costMultipliers = new double[0];
+	private static final double DEFAULT_COST_MULTIPLIER = getCostMultiplier((byte) 0);
 	
 
-	// Milliseconds between trust incrementation
-	private static final long TRUST_INCREASE_FREQUENCY = 60000;
+	// Direct trust gained on every sweep of the trust increaser
 	private static final int TRUST_INCREASE_RATE = 3;
-	private static final ScheduledExecutorService TRUST_INCREASER = Executors.newSingleThreadScheduledExecutor();
-	private final ScheduledFuture<?> trustIncrementationTask;
+	private final TrustIncreaser increaser;
 	
 	public TrustEngine() {
-		this.votedTrustValues = new HashMap<>();
-		this.directTrustValues = new HashMap<>();
-		this.voteCounts = new HashMap<>();
+		this(0);
+	}
+	
+	/**
+	 * @param ownerId Id of the router, selects its keys in a seeded key pool
+	 */
+	public TrustEngine(int ownerId) {
+		this(ownerId, Simulator.getTrustCryptoProvider(), Simulator.getTrustKeyPool());
+	}
+	
+	public TrustEngine(TrustCryptoProvider crypto) {
+		this(0, crypto, null);
+	}
+	
+	/**
+	 * Keys are not generated until they are first needed.
+	 * @param ownerId Id of the router, selects its keys in a seeded key pool
+	 * @param crypto Scheme used to sign and encrypt trust votes
+	 * @param keyPool Pool to take the keys from, ignored if null or of another scheme
+	 */
+	public TrustEngine(int ownerId, TrustCryptoProvider crypto, TrustKeyPool keyPool) {
+		this.directTrustValues = new IntTable();
+		this.votes = new IntTable();
 		
-		KeyPairGenerator kpg = null;
-		try {
-			kpg = KeyPairGenerator.getInstance(CRYPTO_ALGORITHM);
-		} catch (NoSuchAlgorithmException e) {
-		}
-		kpg.initialize(CRYPTO_KEYSIZE);
-		kp = kpg.generateKeyPair();
+		this.crypto = crypto;
+		this.ownerId = ownerId;
+		this.keyPool = keyPool != null && keyPool.getCryptoProvider() == crypto ? keyPool : null;
 		
-		// Schedule trust incrementation
-		trustIncrementationTask = TRUST_INCREASER.scheduleAtFixedRate(() -> {
-			this.directTrustValues.keySet().forEach(k -> changeDirectTrust(k, TRUST_INCREASE_RATE));
-		}, TRUST_INCREASE_FREQUENCY, TRUST_INCREASE_FREQUENCY, TimeUnit.MILLISECONDS);
+		cryptoExecutor = Simulator.getEventEngine() != null ? Runnable::run : TRUST_WORKERS;
+		
+		// Trust increases with the sweeps of the increaser shared by all engines
+		increaser = TrustIncreaser.get();
+		increaser.register(this);
 	}
 	
+	/**
+	 * @return Public signing key, also used for encryption with RSA
+	 */
 	public PublicKey getPublicKey() {
-		return kp.getPublic();
+		return getKeys().getSigningKey();
 	}
 	
+	/**
+	 * @return Private signing key, also used for decryption with RSA
+	 */
 	public PrivateKey getPrivateKey() {
-		return kp.getPrivate();
+		return getKeys().getSigningPrivateKey();
+	}
+	
+	/**
+	 * @return Encoded public keys, generated on the first call
+	 */
+	public byte[] getEncodedPublicKeys() {
+		return crypto.encodePublicKeys(getKeys());
+	}
+	
+	/**
+	 * Public keys as served by the key directory of the simulator. Asking for the keys of
+	 * another router must not make the asking thread generate them, so only keys generated
+	 * before or ready in the pool are served.
+	 * @return Encoded public keys, empty if none are ready yet
+	 */
+	public byte[] getPublishedPublicKeys() {
+		TrustKeys k = keys;
+		if (k == null && keyPool != null) {
+			synchronized (this) {
+				k = keys;
+				if (k == null) {
+					k = keyPool.poll(ownerId);
+					keys = k;
+				}
+			}
+		}
+		return k != null ? crypto.encodePublicKeys(k) : new byte[0];
+	}
+	
+	/**
+	 * @return Own keys, generated on the first call
+	 * @throws IllegalStateException if the scheme is not supported by the JVM
+	 */
+	private TrustKeys getKeys() throws IllegalStateException {
+		TrustKeys k = keys;
+		if (k == null) {
+			synchronized (this) {
+				k = keys;
+				if (k == null) {
+					try {
+						k = keyPool != null ? keyPool.take(ownerId) : crypto.generateKeys();
+					} catch (GeneralSecurityException e) {
+						throw new IllegalStateException("Trust keys could not be generated", e);
+					}
+					keys = k;
+				}
+			}
+		}
+		return k;
+	}
+	
+	/**
+	 * @return Whether own keys have been generated yet
+	 */
+	public boolean hasKeys() {
+		return keys != null;
+	}
+	
+	public TrustCryptoProvider getCryptoProvider() {
+		return crypto;
 	}
 	
 	@Override
 	public byte getTrustFor(int targetId) {
-		double votedTrust = votedTrustValues.computeIfAbsent(targetId, id -> 0);
-		double directTrust = directTrustValues.getOrDefault(targetId, (byte) 0);
+		double votedTrust = (byte) votes.get(targetId, 0);
+		int direct = directTrustValues.get(targetId, Integer.MIN_VALUE);
+		double directTrust = direct != Integer.MIN_VALUE ? getDirectTrust(direct, increaser.getSweeps()) : 0;
 		byte totalTrust = (byte)(directTrustWeight * directTrust
 				+ (1 - directTrustWeight) * votedTrust);
 		
@@ -105,152 +224,191 @@ public class TrustEngine implements TrustProvider {
 	 * The value is padded with random numbers to hinder brute force attacks.
 	 * 
 	 * @param targetId
-	 * @param encryptionKeyBytes
-	 * @return 128-long byte array
+	 * @param encryptionKeyBytes Encoded public keys of the recipient
+	 * @return
 	 * @throws Exception
 	 */
 	public byte[] getEncryptedTrust(int targetId, byte[] encryptionKeyBytes) throws Exception {
-		byte[] payload = new byte[ENCRYPTED_PAYLOAD_LENGTH];
+		return encryptTrust(getTrustFor(targetId), crypto.decodePublicKeys(encryptionKeyBytes));
+	}
+	
+	private byte[] encryptTrust(byte trust, TrustKeys recipient) throws GeneralSecurityException {
+		byte[] payload = new byte[crypto.getVoteLength()];
 		// Fill with random numbers
-		SecureRandom.getInstanceStrong().nextBytes(payload);
+		RANDOM.nextBytes(payload);
 		// Set the actual trust to field 0
-		payload[0] = getTrustFor(targetId);
-		return encryptData(encryptionKeyBytes, payload);
+		payload[0] = trust;
+		return crypto.encrypt(getKeys(), recipient, payload);
 	}
 	
 	public byte[] getSignature(byte[] payload) throws Exception {
-		return signPayload(kp.getPrivate().getEncoded(), payload);
+		return crypto.sign(getKeys(), payload);
+	}
+	
+	/**
+	 * Get the public keys of an AS from the simulator's key directory, decoding them only
+	 * the first time they are needed.
+	 * @param asId
+	 * @return The keys, or null if the AS is unknown or has no keys yet
+	 */
+	private TrustKeys getPublicKeysOf(int asId) {
+		TrustKeys key = publicKeys.get(asId);
+		if (key == null) {
+			byte[] encoded = Simulator.getPublicKey(asId);
+			if (encoded.length == 0) {
+				return null;
+			}
+			try {
+				key = crypto.decodePublicKeys(encoded);
+			} catch (GeneralSecurityException e) {
+				return null;
+			}
+			publicKeys.put(asId, key);
+		}
+		return key;
 	}
 
 	/**
-	 * Get a signature for specified payload.
+	 * Get an RSA signature for specified payload.
 	 * @param payload
 	 * @return
 	 * @throws Exception
 	 */
 	public static byte[] signPayload(byte[] signingKey, byte[] payload) throws Exception {
-		PrivateKey signing = KeyFactory.getInstance(CRYPTO_ALGORITHM)
-				.generatePrivate(new PKCS8EncodedKeySpec(signingKey));
-		Signature s = Signature.getInstance(SIGNATURE_ALGORITHM);
-		s.initSign(signing);
-		s.update(payload);
-		
-		return s.sign();
+		return RSATrustCrypto.sign(RSATrustCrypto.decodePrivateKey(signingKey), payload);
 	}
 	
 	public static boolean verifySignature(byte[] verificationKey, byte[] payload, byte[] signature) throws Exception { 
-		PublicKey verification = KeyFactory.getInstance(CRYPTO_ALGORITHM)
-			.generatePublic(new X509EncodedKeySpec(verificationKey));
-		Signature s = Signature.getInstance(SIGNATURE_ALGORITHM);
-		s.initVerify(verification);
-		s.update(payload);
-		
-		return s.verify(signature);
+		return RSATrustCrypto.verify(RSATrustCrypto.decodePublicKey(verificationKey), payload, signature);
 	}
 	
 	public static byte[] encryptData(byte[] encryptionKey, byte[] payload) throws Exception {
-		PublicKey encryption = KeyFactory.getInstance(CRYPTO_ALGORITHM)
-				.generatePublic(new X509EncodedKeySpec(encryptionKey));
-		Cipher c = Cipher.getInstance(CRYPTO_ALGORITHM);
-		c.init(Cipher.ENCRYPT_MODE, encryption);
-		
-		return c.doFinal(payload);
+		return RSATrustCrypto.encrypt(RSATrustCrypto.decodePublicKey(encryptionKey), payload);
 	}
 	
 	public static byte[] decryptData(byte[] decryptionKey, byte[] payload) throws Exception {
-		PrivateKey decryption = KeyFactory.getInstance(CRYPTO_ALGORITHM)
-				.generatePrivate(new PKCS8EncodedKeySpec(decryptionKey));
-		Cipher c = Cipher.getInstance(CRYPTO_ALGORITHM);
-		c.init(Cipher.DECRYPT_MODE, decryption);
-		
-		return c.doFinal(payload);
+		return RSATrustCrypto.decrypt(RSATrustCrypto.decodePrivateKey(decryptionKey), payload);
 	}
 	
+	
 	/**
-	 * Decrypt a received trust vote with own private key.
-	 * 
-	 * @param input
-	 * @return
-	 * @throws Exception
+	 * @param ownId Id of the router asking, the vote is encrypted to its keys
+	 * @param um
+	 * @return Request for a trust vote from the second-order neighbour of the AS path
 	 */
-	private byte decryptTrustVote(byte[] reviewerKey, byte[] input) throws Exception {
-		PrivateKey decryptionKey = kp.getPrivate();
-		Cipher c = Cipher.getInstance(CRYPTO_ALGORITHM);
-		c.init(Cipher.DECRYPT_MODE, decryptionKey);
+	public Optional<TrustMessage> decideTrustVote(int ownId, UpdateMessage um) {
+		int pathLength = um.getAsPathLength();
+		if (pathLength < 1) {
+			return Optional.empty();
+		}
+		int firstNeighbour = um.getAsPathId(0);
+		int secondNeighbour = firstNeighbour;
 		
-		// Actual vote is in the first octet by definition
-		return c.doFinal(input)[0];
-	}
-	
-	
-	public Optional<TrustMessage> decideTrustVote(UpdateMessage um) {
-		return um.getPathAttributes()
-			.stream()
-			.filter(pa -> pa instanceof AsPath)
-			.findAny()
-			.map(ap -> ((AsPath)ap).getIdSequence())
-			.flatMap(seq -> {
-				int firstNeighbour = seq.get(0);
-				int secondNeighbour = firstNeighbour;
-				
-				for (Iterator<Integer> iter = seq.iterator();
-						iter.hasNext() && firstNeighbour == secondNeighbour;
-						secondNeighbour = iter.next()) {}
-	
-				// A second-order peer was found, request trust vote
-				if (firstNeighbour != secondNeighbour) {
-					int reviewedId = firstNeighbour;
-					int reviewerId = secondNeighbour;
-					
-					trustRequests.add(new Pair<>(reviewerId, reviewedId));
-					
-					return Optional.of(new TrustMessage(reviewerId, reviewedId));
-				} else {
-					return Optional.empty();
-				}
-			});
+		for (int i = 1; i < pathLength && firstNeighbour == secondNeighbour; i++) {
+			secondNeighbour = um.getAsPathId(i);
+		}
+
+		// A second-order peer was found, request trust vote
+		if (firstNeighbour != secondNeighbour) {
+			int reviewedId = firstNeighbour;
+			int reviewerId = secondNeighbour;
+			
+			int key = requestKey(reviewerId, reviewedId);
+			long now = Simulator.currentTimeMillis();
+			Long requested = trustRequests.putIfAbsent(key, now);
+			if (requested != null
+					&& (now - requested < TRUST_REQUEST_TIMEOUT || !trustRequests.replace(key, requested, now))) {
+				// Same vote is already on its way
+				return Optional.empty();
+			}
+			
+			if (!hasKeys()) {
+				// The reviewer encrypts to keys from the directory, which only serves existing ones
+				runCrypto(this::getKeys);
+			}
+			return Optional.of(new TrustMessage(crypto.getAlgorithmId(), reviewerId, reviewedId, ownId));
+		} else {
+			return Optional.empty();
+		}
 	}
 	
 	
 	/**
 	 * Process a given TRUST message, either responding to a query or
-	 * modifying trust based on a received response to a query
+	 * modifying trust based on a received response to a query.
+	 * Trust tables are read and written in the calling thread, which must own the engine,
+	 * while encryption and signatures are left to the trust workers.
 	 * 
+	 * @param ownId
 	 * @param tm
 	 * @param senderAddress
 	 * @param recipientAddress
+	 * @param replies Receives the response packet to a query, called by a trust worker
+	 * @param owner Runs the trust update of a verified vote in the thread owning the engine
 	 */
-	public Optional<byte[]> handleTrustMessage(int ownId, TrustMessage tm, long senderAddress, long recipientAddress) {
+	public void handleTrustMessage(int ownId, TrustMessage tm, long senderAddress, long recipientAddress,
+			Consumer<byte[]> replies, Executor owner) {
+		if (tm.getAlgorithmId() != crypto.getAlgorithmId()) {
+			// Sent by a router of another simulation setup
+			return;
+		}
 		int reviewerId = tm.getReviewerId();
-		byte[] reviewerKey = Simulator.getPublicKey(reviewerId);
 		int targetId = tm.getTargetId();
 		if (tm.isRequest()) {
-			// Respond to trust query
-			try {
-				byte[] encryptedVote = getEncryptedTrust(targetId, reviewerKey);
-				byte[] signature = getSignature(encryptedVote);
-				TrustMessage response = new TrustMessage(ownId, targetId, encryptedVote, signature);
-				byte[] packet = PacketEngine.buildPacket(recipientAddress, senderAddress, response.serialize());
-				
-				return Optional.of(packet);
-			} catch (Exception e) {
-			}
+			// Respond to trust query, only the requester can read the vote
+			int requesterId = tm.getRequesterId();
+			byte trust = getTrustFor(targetId);
+			runCrypto(() -> {
+				TrustKeys requesterKey = getPublicKeysOf(requesterId);
+				if (requesterKey == null) {
+					return;
+				}
+				try {
+					byte[] encryptedVote = encryptTrust(trust, requesterKey);
+					byte[] signature = getSignature(encryptedVote);
+					TrustMessage response = new TrustMessage(crypto.getAlgorithmId(), ownId, targetId, encryptedVote, signature);
+					replies.accept(PacketEngine.buildPacket(recipientAddress, senderAddress, response.serialize()));
+				} catch (Exception e) {
+				}
+			});
 		} else {
 			// Check that trust was asked for and modify it accordingly
-			boolean wasAsked = trustRequests.remove(new Pair<Long, Integer>(senderAddress, tm.getTargetId()));
+			boolean wasAsked = trustRequests.remove(requestKey(reviewerId, targetId)) != null;
 			if (wasAsked) {
-				// Modify trust
 				byte[] encryptedVote = tm.getPayload();
 				byte[] signature = tm.getSignature();
-				try {
-					handleTrustVote(targetId, reviewerKey, encryptedVote, signature);
-				} catch (Exception e) {
-				}
+				runCrypto(() -> {
+					TrustKeys reviewerKey = getPublicKeysOf(reviewerId);
+					if (reviewerKey == null) {
+						return;
+					}
+					try {
+						byte votedTrust = openTrustVote(reviewerKey, encryptedVote, signature);
+						owner.execute(() -> applyTrustVote(targetId, votedTrust));
+					} catch (Exception e) {
+						// Reviewer may have been replaced by a router with new keys
+						publicKeys.remove(reviewerId);
+					}
+				});
 			}
 		}
-		return Optional.empty();
 	}
 	
+	private void runCrypto(Runnable task) {
+		try {
+			cryptoExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			// Workers are saturated, the vote is asked for again once the request times out
+			droppedTrustTasks.increment();
+		}
+	}
+	
+	/**
+	 * @return Amount of trust messages dropped because the trust workers were saturated
+	 */
+	public static long getDroppedTrustTaskCount() {
+		return droppedTrustTasks.sum();
+	}
 	
 	/**
 	 * Modify the trust table based on the received message.
@@ -259,21 +417,44 @@ public class TrustEngine implements TrustProvider {
 	 * @param tm
 	 */
 	public void handleTrustVote(int targetId, byte[] reviewerKey, byte[] encryptedVotedTrust, byte[] signature) throws Exception {
-		if (!verifySignature(reviewerKey, encryptedVotedTrust, signature)) {
+		applyTrustVote(targetId, openTrustVote(crypto.decodePublicKeys(reviewerKey), encryptedVotedTrust, signature));
+	}
+	
+	/**
+	 * Verify and decrypt a trust vote, touching no trust tables.
+	 * @return The vote
+	 * @throws Exception if the signature does not match
+	 */
+	private byte openTrustVote(TrustKeys reviewerKey, byte[] encryptedVotedTrust, byte[] signature) throws Exception {
+		if (!crypto.verify(reviewerKey, encryptedVotedTrust, signature)) {
 			throw new Exception("Signature does not match payload");
 		}
-		byte votedTrust = decryptTrustVote(reviewerKey, encryptedVotedTrust);
-		byte oldTrust = votedTrustValues.getOrDefault(targetId, (byte) 0);
-		// Increment the vote count
-		voteCounts.put(targetId, voteCounts.getOrDefault(targetId, 0)+1);
-		int voteCount = voteCounts.get(targetId);
-		
-		byte newTrust = (byte) (1.0*oldTrust + 1.0*(votedTrust - oldTrust)/voteCount);
-		votedTrustValues.put(targetId, newTrust);
+		// Actual vote is in the first octet by definition
+		return crypto.decrypt(getKeys(), reviewerKey, encryptedVotedTrust)[0];
+	}
+	
+	private void applyTrustVote(int targetId, byte votedTrust) {
+		votes.update(targetId, 0, packed -> {
+			byte oldTrust = (byte) packed;
+			// Increment the vote count
+			int voteCount = Math.min((packed >>> 8) + 1, MAX_VOTE_COUNT);
+			
+			byte newTrust = (byte) (1.0*oldTrust + 1.0*(votedTrust - oldTrust)/voteCount);
+			return (voteCount << 8) | (newTrust & 0xFF);
+		});
+		publishTrust(targetId);
+	}
+	
+	/**
+	 * @return Reviewer and reviewed AS id packed into the key of a pending trust request
+	 */
+	private static int requestKey(int reviewerId, int targetId) {
+		return (reviewerId << 16) | (targetId & 0xFFFF);
 	}
 	
 	public void setDirectTrust(int targetId, byte trust) {
-		directTrustValues.put(targetId, trust);
+		directTrustValues.put(targetId, packDirectTrust(trust, increaser.getSweeps()));
+		publishTrust(targetId);
 	}
 	
 	/**
@@ -282,16 +463,78 @@ public class TrustEngine implements TrustProvider {
 	 * @param delta Amount of change, resulting value limited to range -128..127
 	 */
 	public void changeDirectTrust(int targetId, int delta) {
-		byte oldTrust = directTrustValues.getOrDefault(targetId, (byte) 0);
-		// Limit the new trust to range -128..127
-		byte newTrust = (byte) Math.min(Math.max(oldTrust+delta, -128), 127);
-		
-		directTrustValues.put(targetId, newTrust);
-		
+		adjustDirectTrust(targetId, delta);
+		publishTrust(targetId);
+	}
+	
+	private void adjustDirectTrust(int targetId, int delta) {
+		int sweep = increaser.getSweeps();
+		directTrustValues.update(targetId, packDirectTrust((byte) 0, sweep), packed -> {
+			// Limit the new trust to range -128..127
+			int newTrust = Math.min(Math.max(getDirectTrust(packed, sweep)+delta, -128), 127);
+			return packDirectTrust((byte) newTrust, sweep);
+		});
+	}
+	
+	/**
+	 * @param packed Direct trust and the sweep it was written at
+	 * @param sweep Current sweep of the trust increaser
+	 * @return Direct trust including the increase of the sweeps since it was written
+	 */
+	private static byte getDirectTrust(int packed, int sweep) {
+		long sweeps = (sweep - (packed >>> 8)) & SWEEP_MASK;
+		return (byte) Math.min((byte) packed + sweeps*TRUST_INCREASE_RATE, 127);
+	}
+	
+	private static int packDirectTrust(byte trust, int sweep) {
+		return ((sweep & SWEEP_MASK) << 8) | (trust & 0xFF);
+	}
+	
+	/**
+	 * @return Multiplier of the length of paths through the target, from the latest published trust
+	 */
+	@Override
+	public double getCostMultiplier(int targetId) {
+		double[] multipliers = costMultipliers;
+		return targetId >= 0 && targetId < multipliers.length ? multipliers[targetId] : DEFAULT_COST_MULTIPLIER;
+	}
+	
+	private static double getCostMultiplier(byte trust) {
+		return (trust + 128)/255.0;
+	}
+	
+	/**
+	 * Publish the changed trust of one AS.
+	 * @param targetId
+	 */
+	private synchronized void publishTrust(int targetId) {
+		if (targetId < 0) {
+			return;
+		}
+		double[] multipliers = costMultipliers;
+		int length = Math.max(multipliers.length, targetId + 1);
+		double[] updated = Arrays.copyOf(multipliers, length);
+		Arrays.fill(updated, multipliers.length, length, DEFAULT_COST_MULTIPLIER);
+		updated[targetId] = getCostMultiplier(getTrustFor(targetId));
+		costMultipliers = updated;
+	}
+	
+	/**
+	 * Publish the trust of all AS's at once, after changing many of them.
+	 */
+	synchronized void publishAllTrust() {
+		int[] length = {costMultipliers.length};
+		directTrustValues.forEachKey(id -> length[0] = Math.max(length[0], id + 1));
+		votes.forEachKey(id -> length[0] = Math.max(length[0], id + 1));
+		double[] updated = new double[length[0]];
+		for (int id = 0; id < updated.length; id++) {
+			updated[id] = getCostMultiplier(getTrustFor(id));
+		}
+		costMultipliers = updated;
 	}
 	
 	public void shutdown() {
-		trustIncrementationTask.cancel(true);
+		increaser.unregister(this);
 	}
 
 }
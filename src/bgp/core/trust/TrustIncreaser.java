@@ -0,0 +1,96 @@
+package bgp.core.trust;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import bgp.simulation.DiscreteEventEngine;
+import bgp.simulation.Simulator;
+import bgp.utils.Cancellable;
+
+/**
+ * Periodic increase of direct trust, shared by all trust engines of a simulation.
+ *
+ * Instead of every engine adding to its trust values on a timer of its own, the
+ * increaser only counts its sweeps. An engine stores with each direct trust value the
+ * sweep it was written at and adds the increase of the sweeps since then when it is
+ * read. A sweep then only republishes the cost multipliers of the engines, in parallel.
+ */
+class TrustIncreaser {
+
+	// Milliseconds between sweeps
+	static final long FREQUENCY = 60000;
+
+	private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "Trust increaser");
+		t.setDaemon(true);
+		return t;
+	});
+
+	// One increaser runs on wall-clock time, another on the virtual time of the current event engine
+	private static TrustIncreaser realTime;
+	private static TrustIncreaser discreteEvent;
+
+	private final DiscreteEventEngine eventEngine;
+	private final Set<TrustEngine> engines = ConcurrentHashMap.newKeySet();
+	private final Cancellable task;
+	// Only written by the sweep
+	private volatile int sweeps;
+
+	/**
+	 * @return Increaser of the current execution mode
+	 */
+	static synchronized TrustIncreaser get() {
+		DiscreteEventEngine eventEngine = Simulator.getEventEngine();
+		if (eventEngine == null) {
+			if (realTime == null) {
+				realTime = new TrustIncreaser(null);
+			}
+			return realTime;
+		}
+		if (discreteEvent == null || discreteEvent.eventEngine != eventEngine) {
+			if (discreteEvent != null) {
+				// Engines of the previous simulation no longer change
+				discreteEvent.task.cancel();
+			}
+			discreteEvent = new TrustIncreaser(eventEngine);
+		}
+		return discreteEvent;
+	}
+
+	private TrustIncreaser(DiscreteEventEngine eventEngine) {
+		this.eventEngine = eventEngine;
+		if (eventEngine != null) {
+			task = eventEngine.scheduleAtFixedRate(this::sweep, FREQUENCY, FREQUENCY);
+		} else {
+			ScheduledFuture<?> f = SCHEDULER.scheduleAtFixedRate(this::sweep,
+					FREQUENCY, FREQUENCY, TimeUnit.MILLISECONDS);
+			task = () -> f.cancel(false);
+		}
+	}
+
+	/**
+	 * @return Amount of sweeps run so far
+	 */
+	int getSweeps() {
+		return sweeps;
+	}
+
+	void register(TrustEngine engine) {
+		engines.add(engine);
+	}
+
+	void unregister(TrustEngine engine) {
+		engines.remove(engine);
+	}
+
+	private void sweep() {
+		sweeps++;
+		// Engines only publish their own multipliers, so the order does not matter
+		engines.parallelStream().forEach(TrustEngine::publishAllTrust);
+	}
+
+}
@@ -0,0 +1,201 @@
+package bgp.core.trust;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Keys generated ahead of the routers that use them. Key generation dominates the
+ * creation of a router, so a pool filled in parallel before a network is built lets
+ * the build scale with the amount of cores.
+ *
+ * A pool without a seed hands out random keys in any order, and can keep a number of
+ * spare keys ready in a background thread. A seeded pool derives the keys of each router
+ * from the seed and the router's id, so runs with the same seed use the same keys no
+ * matter in which order or thread the keys were generated.
+ */
+public class TrustKeyPool {
+	
+	private final TrustCryptoProvider crypto;
+	
+	// Set in seeded mode only
+	private final Long seed;
+	private final Map<Integer, TrustKeys> keysById;
+	
+	// Used without a seed
+	private final Queue<TrustKeys> spareKeys;
+	private final AtomicInteger spareCount;
+	private volatile int fillTarget;
+	private final AtomicBoolean filling;
+	private ExecutorService filler;
+	
+	/**
+	 * Pool of random keys.
+	 * @param crypto Scheme of the keys
+	 */
+	public TrustKeyPool(TrustCryptoProvider crypto) {
+		this(crypto, null);
+	}
+	
+	/**
+	 * Pool of reproducible keys.
+	 * @param crypto Scheme of the keys
+	 * @param seed Seed the keys of all routers are derived from
+	 */
+	public TrustKeyPool(TrustCryptoProvider crypto, long seed) {
+		this(crypto, Long.valueOf(seed));
+	}
+	
+	private TrustKeyPool(TrustCryptoProvider crypto, Long seed) {
+		if (crypto == null) {
+			throw new IllegalArgumentException("Trust crypto provider can not be null");
+		}
+		this.crypto = crypto;
+		this.seed = seed;
+		this.keysById = new ConcurrentHashMap<>();
+		this.spareKeys = new ConcurrentLinkedQueue<>();
+		this.spareCount = new AtomicInteger();
+		this.filling = new AtomicBoolean();
+	}
+	
+	public TrustCryptoProvider getCryptoProvider() {
+		return crypto;
+	}
+	
+	public boolean isSeeded() {
+		return seed != null;
+	}
+	
+	/**
+	 * Take the keys of a router, generating them in the calling thread if none are ready.
+	 * @param routerId
+	 * @return
+	 * @throws GeneralSecurityException
+	 */
+	public TrustKeys take(int routerId) throws GeneralSecurityException {
+		TrustKeys keys = poll(routerId);
+		return keys != null ? keys : generate(routerId);
+	}
+	
+	/**
+	 * Take the keys of a router only if they are ready, never generating them.
+	 * @param routerId
+	 * @return The keys, or null if none are ready
+	 */
+	public TrustKeys poll(int routerId) {
+		if (seed != null) {
+			return keysById.remove(routerId);
+		}
+		TrustKeys keys = spareKeys.poll();
+		if (keys != null) {
+			spareCount.decrementAndGet();
+		}
+		refill();
+		return keys;
+	}
+	
+	/**
+	 * Generate keys in parallel on all cores, returning once they are ready.
+	 * A seeded pool generates the keys of the given routers, an unseeded one
+	 * the same amount of spare keys.
+	 * @param firstId Id of the first router
+	 * @param count Amount of routers
+	 */
+	public void prewarm(int firstId, int count) {
+		IntStream.range(firstId, firstId + count).parallel().forEach(id -> {
+			try {
+				TrustKeys keys = generate(id);
+				if (seed != null) {
+					keysById.putIfAbsent(id, keys);
+				} else {
+					spareKeys.add(keys);
+					spareCount.incrementAndGet();
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Trust keys could not be generated", e);
+			}
+		});
+	}
+	
+	/**
+	 * Keep the given amount of spare keys ready, generated in a background thread.
+	 * Only available without a seed, seeded keys are bound to router ids.
+	 * @param target Amount of spare keys, 0 stops filling
+	 */
+	public synchronized void setBackgroundFill(int target) {
+		if (seed != null) {
+			throw new IllegalStateException("Seeded pools can not be filled in the background");
+		}
+		fillTarget = Math.max(target, 0);
+		if (fillTarget > 0 && filler == null) {
+			filler = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "Trust key generator");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			});
+		}
+		refill();
+	}
+	
+	private void refill() {
+		ExecutorService f = filler;
+		if (f != null && spareCount.get() < fillTarget && filling.compareAndSet(false, true)) {
+			f.execute(() -> {
+				try {
+					while (spareCount.get() < fillTarget) {
+						spareKeys.add(generate(0));
+						spareCount.incrementAndGet();
+					}
+				} catch (GeneralSecurityException e) {
+					fillTarget = 0;
+				} finally {
+					filling.set(false);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @return Amount of keys ready
+	 */
+	public int size() {
+		return seed != null ? keysById.size() : spareCount.get();
+	}
+	
+	/**
+	 * Stop the background thread, keys already generated can still be taken.
+	 */
+	public synchronized void shutdown() {
+		fillTarget = 0;
+		if (filler != null) {
+			filler.shutdownNow();
+			filler = null;
+		}
+	}
+	
+	private TrustKeys generate(int routerId) throws GeneralSecurityException {
+		return crypto.generateKeys(seed != null ? seededRandom(routerId) : null);
+	}
+	
+	/**
+	 * @return Deterministic random source of a router's keys
+	 */
+	private SecureRandom seededRandom(int routerId) throws NoSuchAlgorithmException {
+		// Seeded before first use, SHA1PRNG then only depends on the seed
+		SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+		random.setSeed(ByteBuffer.allocate(12).putLong(seed).putInt(routerId).array());
+		return random;
+	}
+
+}
@@ -0,0 +1,60 @@
+package bgp.core.trust;
+
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Keys of a router for signing and encrypting trust votes. A scheme may use the same
+ * key pair for both. Keys of other routers only have their public parts.
+ */
+public class TrustKeys {
+	
+	private final PublicKey signingKey;
+	private final PrivateKey signingPrivateKey;
+	private final PublicKey encryptionKey;
+	private final PrivateKey decryptionKey;
+	
+	public TrustKeys(KeyPair signing, KeyPair encryption) {
+		this(signing.getPublic(), signing.getPrivate(), encryption.getPublic(), encryption.getPrivate());
+	}
+	
+	/**
+	 * Public keys of another router.
+	 * @param signingKey
+	 * @param encryptionKey
+	 */
+	public TrustKeys(PublicKey signingKey, PublicKey encryptionKey) {
+		this(signingKey, null, encryptionKey, null);
+	}
+	
+	private TrustKeys(PublicKey signingKey, PrivateKey signingPrivateKey, PublicKey encryptionKey, PrivateKey decryptionKey) {
+		this.signingKey = signingKey;
+		this.signingPrivateKey = signingPrivateKey;
+		this.encryptionKey = encryptionKey;
+		this.decryptionKey = decryptionKey;
+	}
+	
+	public PublicKey getSigningKey() {
+		return signingKey;
+	}
+	
+	/**
+	 * @return Private signing key, null for keys of other routers
+	 */
+	public PrivateKey getSigningPrivateKey() {
+		return signingPrivateKey;
+	}
+	
+	public PublicKey getEncryptionKey() {
+		return encryptionKey;
+	}
+	
+	/**
+	 * @return Private decryption key, null for keys of other routers
+	 */
+	public PrivateKey getDecryptionKey() {
+		return decryptionKey;
+	}
+
+}
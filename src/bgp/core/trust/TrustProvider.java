@@ -3,4 +3,12 @@ package bgp.core.trust;
 // A simple interface to provide components with access to just trust values
 public interface TrustProvider {
 	public byte getTrustFor(int targetId);
+	
+	/**
+	 * @param targetId
+	 * @return Multiplier of the length of paths through the target, higher trust gives a higher multiplier
+	 */
+	public default double getCostMultiplier(int targetId) {
+		return (getTrustFor(targetId) + 128)/255.0;
+	}
 }
@@ -0,0 +1,342 @@
+package bgp.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgp.simulation.LogMessage.LogMessageType;
+import bgp.utils.Cancellable;
+
+/**
+ * Event queue of a discrete-event simulation. Instead of sleeping threads and wall-clock
+ * timers, every packet delivery and timer is an event at a virtual time, and events are
+ * run one at a time in order of their time. The virtual clock jumps straight to the next
+ * event, so idle periods such as MRAI and keepalive intervals cost nothing.
+ *
+ * Events at the same time run in the order they were scheduled, which makes a run
+ * reproducible. Events may be scheduled from any thread, but only one thread may run them.
+ *
+ * As a partition of a {@link ParallelEventEngine} the engine only runs the events of its
+ * own routers. Events for other partitions go to their inboxes and are merged between
+ * the time windows of the parallel simulation.
+ */
+public class DiscreteEventEngine {
+
+	private final PriorityQueue<Event> queue;
+
+	private long now;
+	private long sequence;
+	private long processedEvents;
+	// Run outside the lock by the threads of a parallel simulation
+	private final LongAdder failedEvents = new LongAdder();
+
+	private volatile boolean stopped;
+
+	// Events sent by other partitions, one list per sending partition
+	private final int index;
+	private final List<List<Event>> inboxes;
+	// End of the current time window, events for other partitions must not be due before it
+	private volatile long horizon = Long.MIN_VALUE;
+
+	public DiscreteEventEngine() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param index Index of the partition
+	 * @param partitions Amount of partitions sending events to this one
+	 */
+	DiscreteEventEngine(int index, int partitions) {
+		this.queue = new PriorityQueue<>();
+		this.index = index;
+		this.inboxes = new ArrayList<>(partitions);
+		for (int i = 0; i < partitions; i++) {
+			this.inboxes.add(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * @return Current virtual time in milliseconds since the engine was created
+	 */
+	public synchronized long now() {
+		return now;
+	}
+
+	/**
+	 * Run a task once at the current virtual time, after the events already due.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		schedule(task, 0);
+	}
+
+	/**
+	 * Run a task once after the delay.
+	 * @param task
+	 * @param delay Delay in virtual milliseconds
+	 * @return Handle for cancelling the task
+	 */
+	public Event schedule(Runnable task, long delay) {
+		return scheduleAtFixedRate(task, delay, 0);
+	}
+
+	/**
+	 * Run a task after the delay and then repeatedly at the interval until cancelled.
+	 * @param task
+	 * @param delay Delay in virtual milliseconds
+	 * @param interval Interval in virtual milliseconds, 0 runs the task only once
+	 * @return Handle for cancelling the task
+	 */
+	public synchronized Event scheduleAtFixedRate(Runnable task, long delay, long interval) {
+		Event e = new Event(task, now + Math.max(delay, 0), Math.max(interval, 0));
+		enqueue(e);
+		return e;
+	}
+
+	/**
+	 * Run a task once after the delay in the given engine, which may be another partition
+	 * of a parallel simulation. The delay must not be shorter than the lookahead of the
+	 * parallel simulation.
+	 * @param target
+	 * @param task
+	 * @param delay Delay in virtual milliseconds
+	 * @return Handle for cancelling the task
+	 * @throws IllegalStateException if the event would be due within the current time window
+	 */
+	public Event scheduleOn(DiscreteEventEngine target, Runnable task, long delay) throws IllegalStateException {
+		if (target == this) {
+			return schedule(task, delay);
+		}
+		long time = now() + Math.max(delay, 0);
+		if (time < horizon) {
+			throw new IllegalStateException("Event for another partition is due before the end of the time window");
+		}
+		Event e = new Event(task, time, 0);
+		// Only this partition writes to its inbox, the lists are read between windows
+		target.inboxes.get(index).add(e);
+		return e;
+	}
+
+	/**
+	 * Move the events sent by other partitions to the queue, in the order of the partitions.
+	 */
+	synchronized void mergeInboxes() {
+		for (List<Event> inbox : inboxes) {
+			for (Event e : inbox) {
+				enqueue(e);
+			}
+			inbox.clear();
+		}
+	}
+
+	void setHorizon(long horizon) {
+		this.horizon = horizon;
+	}
+
+	/**
+	 * Advance the clock without running events, the clock never goes back.
+	 * @param time
+	 */
+	synchronized void advanceTo(long time) {
+		now = Math.max(now, time);
+	}
+
+	/**
+	 * @return Time of the next event, Long.MAX_VALUE if there are none
+	 */
+	synchronized long nextEventTime() {
+		Event e;
+		while ((e = queue.peek()) != null && e.isCancelled()) {
+			queue.poll();
+		}
+		return e != null ? e.time : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Wait until there is an event or the engine is stopped.
+	 * @throws InterruptedException
+	 */
+	synchronized void awaitEvent() throws InterruptedException {
+		while (queue.isEmpty() && !stopped) {
+			wait();
+		}
+	}
+
+	private void enqueue(Event e) {
+		e.sequence = sequence++;
+		queue.add(e);
+		notifyAll();
+	}
+
+	/**
+	 * Run the next event, advancing the clock to its time.
+	 * @return false if there were no events
+	 */
+	public boolean step() {
+		Event e;
+		synchronized (this) {
+			e = nextEvent(Long.MAX_VALUE);
+			if (e == null) {
+				return false;
+			}
+		}
+		run(e);
+		return true;
+	}
+
+	/**
+	 * Run all events up to the given virtual time and advance the clock to it.
+	 * Returns early if the engine is stopped.
+	 * @param time Virtual time in milliseconds
+	 */
+	public void runUntil(long time) {
+		while (!stopped) {
+			Event e;
+			synchronized (this) {
+				e = nextEvent(time);
+				if (e == null) {
+					now = Math.max(now, time);
+					return;
+				}
+			}
+			run(e);
+		}
+	}
+
+	/**
+	 * Run events until the engine is stopped, waiting for new ones while the queue is empty.
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		while (!stopped) {
+			Event e;
+			synchronized (this) {
+				while ((e = nextEvent(Long.MAX_VALUE)) == null && !stopped) {
+					wait();
+				}
+			}
+			if (e != null) {
+				run(e);
+			}
+		}
+	}
+
+	/**
+	 * Stop running events, pending events are never run.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		queue.clear();
+		notifyAll();
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * @return Amount of events waiting, including cancelled ones not yet discarded
+	 */
+	public synchronized int getPendingEventCount() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Amount of events run so far
+	 */
+	public synchronized long getProcessedEventCount() {
+		return processedEvents;
+	}
+
+	/**
+	 * @return Amount of events whose task threw an exception
+	 */
+	public long getFailedEventCount() {
+		return failedEvents.sum();
+	}
+
+	/**
+	 * Remove the next live event due at or before the given time and advance the clock to it.
+	 */
+	private Event nextEvent(long time) {
+		Event e;
+		while ((e = queue.peek()) != null && e.time <= time) {
+			queue.poll();
+			if (!e.isCancelled()) {
+				now = e.time;
+				processedEvents++;
+				if (e.interval > 0) {
+					// Rescheduled before running, so a cancel during the run takes effect
+					Event next = new Event(e, e.time + e.interval);
+					enqueue(next);
+				}
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private void run(Event e) {
+		if (e.isCancelled()) {
+			return;
+		}
+		try {
+			e.task.run();
+		} catch (RuntimeException ex) {
+			// A failing task must not stop the simulation
+			failedEvents.increment();
+			if (Logger.isEnabled()) {
+				Logger.log("Event failed at " + e.time + " ms: " + ex, 0, LogMessageType.GENERAL);
+			}
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task. A repeating task keeps the same handle over all its runs.
+	 */
+	public static class Event implements Comparable<Event>, Cancellable {
+
+		private final Runnable task;
+		private final long time;
+		private final long interval;
+		private long sequence;
+
+		// Runs of a repeating task share the cancelled flag of the first one
+		private final Event first;
+		private volatile boolean cancelled;
+
+		private Event(Runnable task, long time, long interval) {
+			this.task = task;
+			this.time = time;
+			this.interval = interval;
+			this.first = this;
+		}
+
+		private Event(Event previous, long time) {
+			this.task = previous.task;
+			this.time = time;
+			this.interval = previous.interval;
+			this.first = previous.first;
+		}
+
+		@Override
+		public void cancel() {
+			first.cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return first.cancelled;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			if (time != o.time) {
+				return Long.compare(time, o.time);
+			}
+			return Long.compare(sequence, o.sequence);
+		}
+
+	}
+
+}
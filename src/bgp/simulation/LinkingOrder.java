@@ -26,6 +26,14 @@ public enum LinkingOrder {
 		return uiText;
 	}
 	
+	/**
+	 * @param n Amount of routers
+	 * @return Amount of consecutive router ids in one cluster of a CLUSTERED network
+	 */
+	public static int getClusterSize(int n) {
+		return (int) Math.floor(Math.sqrt(n));
+	}
+	
 	public Queue<Integer> getLinkingOrder(int n) {
 		Queue<Integer> list = new LinkedList<>();
 		
@@ -67,7 +75,7 @@ public enum LinkingOrder {
 			list.add(2);
 			break;
 		case CLUSTERED:
-			int c = (int) Math.floor(Math.sqrt(n));
+			int c = getClusterSize(n);
 			List<Set<Integer>> clusters = new ArrayList<>();
 			Set<Integer> latest = null;
 			// Generate clusters
@@ -27,7 +27,7 @@ public class LogMessage {
 	public final LogMessageType type;
 	
 	public LogMessage(int originatingRouter, String message, LogMessageType type) {
-		this.timestamp = System.currentTimeMillis();
+		this.timestamp = Simulator.currentTimeMillis();
 		this.originatingRouter = originatingRouter;
 		this.message = message;
 		this.type = type;
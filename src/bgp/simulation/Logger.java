@@ -21,6 +21,15 @@ public class Logger {
 		logFunction = Optional.ofNullable(r);
 	}
 
+	/**
+	 * Check whether logged events are processed at all. Hot paths can use this
+	 * to skip building log messages nobody reads.
+	 * @return true if a log handler has been set
+	 */
+	public static boolean isEnabled() {
+		return logFunction.isPresent();
+	}
+
 	private static final void processLog(LogMessage lm) {
 		logFunction.ifPresent(f -> {
 			logHandler.execute(() -> {
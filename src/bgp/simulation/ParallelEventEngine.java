@@ -0,0 +1,204 @@
+package bgp.simulation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Conservative parallel discrete-event simulation. Routers are split into partitions,
+ * each with its own {@link DiscreteEventEngine}, and the partitions run their events
+ * in parallel in time windows no longer than the lookahead.
+ *
+ * A partition can only affect another one by sending a packet over a link, which takes
+ * at least the lookahead to arrive. An event run in a window therefore never creates
+ * an event for another partition within the same window, so the partitions need no
+ * synchronization inside a window. Packets between partitions are buffered and merged
+ * at the end of the window in partition order, which keeps runs reproducible.
+ *
+ * Simulation tasks, client tasks and other work touching several routers run on the
+ * global engine, alone and between the windows.
+ *
+ * The speedup is bounded by the events per window. With the simulator's link latency
+ * of {@link bgp.utils.Consts#DEFAULT_LINK_LATENCY} 1 ms as the lookahead, a window covers
+ * a single virtual millisecond, so only the events due at the same millisecond run in
+ * parallel and sparse traffic gains little over {@link DiscreteEventEngine}.
+ */
+public class ParallelEventEngine {
+
+	private final DiscreteEventEngine global;
+	private final DiscreteEventEngine[] partitions;
+	private final long lookahead;
+	private final ExecutorService workers;
+
+	private volatile boolean stopped;
+
+	/**
+	 * @param partitions Amount of partitions
+	 * @param lookahead Minimum delay of events between partitions in milliseconds
+	 * @param workerThreads Threads running the partitions
+	 */
+	public ParallelEventEngine(int partitions, long lookahead, int workerThreads) {
+		if (partitions < 1 || lookahead < 1 || workerThreads < 1) {
+			throw new IllegalArgumentException("Partition count, lookahead and worker count must be positive");
+		}
+		this.partitions = new DiscreteEventEngine[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = new DiscreteEventEngine(i, partitions);
+		}
+		this.global = new DiscreteEventEngine();
+		this.lookahead = lookahead;
+		this.workers = Executors.newFixedThreadPool(Math.min(workerThreads, partitions), r -> {
+			Thread t = new Thread(r, "Simulation partition");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * @return Engine of the work run alone between the time windows
+	 */
+	public DiscreteEventEngine getGlobalEngine() {
+		return global;
+	}
+
+	public DiscreteEventEngine getPartition(int index) {
+		return partitions[index];
+	}
+
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+
+	public long getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * @return Amount of events run so far by all engines
+	 */
+	public long getProcessedEventCount() {
+		long count = global.getProcessedEventCount();
+		for (DiscreteEventEngine p : partitions) {
+			count += p.getProcessedEventCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return Amount of events of all engines whose task threw an exception
+	 */
+	public long getFailedEventCount() {
+		long count = global.getFailedEventCount();
+		for (DiscreteEventEngine p : partitions) {
+			count += p.getFailedEventCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Run all events up to the given virtual time and advance the clocks to it.
+	 * Returns early if the engine is stopped.
+	 * @param time Virtual time in milliseconds
+	 */
+	public void runUntil(long time) {
+		while (!stopped && runWindow(time)) { }
+		if (!stopped) {
+			global.advanceTo(time);
+			for (DiscreteEventEngine p : partitions) {
+				p.advanceTo(time);
+			}
+		}
+	}
+
+	/**
+	 * Run events until the engine is stopped, waiting for new ones while there are none.
+	 * @throws InterruptedException
+	 */
+	public void run() throws InterruptedException {
+		while (!stopped) {
+			if (!runWindow(Long.MAX_VALUE)) {
+				// Only global events can start new activity
+				global.awaitEvent();
+			}
+		}
+	}
+
+	/**
+	 * Stop running events, pending events are never run.
+	 */
+	public void stop() {
+		stopped = true;
+		global.stop();
+		for (DiscreteEventEngine p : partitions) {
+			p.stop();
+		}
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Run the global events or the partitions' events of the next time window.
+	 * @param limit Last virtual time to run events of
+	 * @return false if there were no events due by the limit
+	 */
+	private boolean runWindow(long limit) {
+		long globalNext = global.nextEventTime();
+		long start = globalNext;
+		for (DiscreteEventEngine p : partitions) {
+			start = Math.min(start, p.nextEventTime());
+		}
+		if (start == Long.MAX_VALUE || start > limit) {
+			return false;
+		}
+
+		if (globalNext == start) {
+			// Global events see all partitions at the same time
+			for (DiscreteEventEngine p : partitions) {
+				p.advanceTo(start);
+			}
+			global.runUntil(start);
+			mergeInboxes();
+			return true;
+		}
+
+		// Events at the time of the next global event wait for it
+		long end = Math.min(Math.min(start + lookahead, globalNext), limit == Long.MAX_VALUE ? limit : limit + 1);
+		global.advanceTo(start);
+		List<Callable<Void>> window = new ArrayList<>();
+		for (DiscreteEventEngine p : partitions) {
+			if (p.nextEventTime() < end) {
+				p.setHorizon(end);
+				window.add(() -> {
+					p.runUntil(end - 1);
+					return null;
+				});
+			}
+		}
+		try {
+			if (window.size() == 1) {
+				window.get(0).call();
+			} else {
+				for (Future<Void> f : workers.invokeAll(window)) {
+					f.get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stopped = true;
+			return false;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		mergeInboxes();
+		return true;
+	}
+
+	private void mergeInboxes() {
+		for (DiscreteEventEngine p : partitions) {
+			p.mergeInboxes();
+		}
+	}
+
+}
@@ -1,6 +1,5 @@
 package bgp.simulation;
 
-import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -12,12 +11,20 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.stream.Collectors;
 
 import bgp.client.BGPClient;
 import bgp.client.messages.MessageHandlers.Pingable;
 import bgp.core.BGPRouter;
+import bgp.core.network.InterRouterInterface.LinkMode;
+import bgp.core.network.Mailbox.OverflowPolicy;
+import bgp.core.trust.RSATrustCrypto;
+import bgp.core.trust.TrustCryptoProvider;
+import bgp.core.trust.TrustKeyPool;
 import bgp.simulation.LogMessage.LogMessageType;
 import bgp.simulation.tasks.SimulationTask;
 import bgp.simulation.tasks.SimulationTask.TaskState;
@@ -25,10 +32,14 @@ import bgp.simulation.tasks.SimulationTask.TopologyChanging;
 import bgp.ui.MainView;
 import bgp.ui.NetworkViewer;
 import bgp.utils.Address;
+import bgp.utils.AddressSet;
+import bgp.utils.Cancellable;
+import bgp.utils.Consts;
 
 public class Simulator {
 	
-	private static final List<Address> usedAddresses = new ArrayList<>();
+	// Addresses of all interfaces of the simulation
+	private static final AddressSet usedAddresses = new AddressSet();
 	private static final Map<Integer, BGPRouter> routers = new ConcurrentHashMap<>();
 	private static final Map<Long, BGPClient> clients = new ConcurrentHashMap<>();
 	
@@ -37,6 +48,34 @@ public class Simulator {
 	
 	private static Timer simulationTaskTimer = new Timer();
 	
+	private static int packetProcessingShards = Consts.DEFAULT_PACKET_PROCESSING_SHARDS;
+	
+	private static LinkMode linkMode = LinkMode.PIPED;
+	
+	private static long decisionWindow = Consts.DEFAULT_DECISION_WINDOW;
+	
+	private static int mailboxCapacity = Consts.DEFAULT_MAILBOX_CAPACITY;
+	private static OverflowPolicy mailboxOverflowPolicy = OverflowPolicy.DROP_TAIL;
+	
+	private static TrustCryptoProvider trustCryptoProvider = new RSATrustCrypto();
+	private static TrustKeyPool trustKeyPool;
+	
+	private static long mraiInterval = Consts.DEFAULT_MRAI_INTERVAL;
+	private static double mraiScale = Consts.DEFAULT_MRAI_SCALE;
+	
+	private static ExecutionMode executionMode = ExecutionMode.REAL_TIME;
+	// Set in the discrete-event modes, the global engine of the parallel simulation
+	private static volatile DiscreteEventEngine eventEngine;
+	// Only set in PARALLEL_DISCRETE_EVENT mode
+	private static volatile ParallelEventEngine parallelEngine;
+	
+	private static int partitionCount = Runtime.getRuntime().availableProcessors();
+	
+	// Only set in POOLED mode
+	private static volatile ExecutorService carrierPool;
+	private static int carrierThreads = Runtime.getRuntime().availableProcessors();
+	private static int partitionClusterSize = 1;
+	
 	private static long simulationStartTime;
 	private static SimulationState state = SimulationState.NOT_STARTED;
 	
@@ -67,6 +106,25 @@ public class Simulator {
 		ERROR;
 	}
 	
+	public enum ExecutionMode {
+		/**
+		 * Routers and links run in their own threads, timers follow the wall clock
+		 */
+		REAL_TIME,
+		/**
+		 * Like REAL_TIME, but routers and links are run by a small shared pool of carrier threads
+		 */
+		POOLED,
+		/**
+		 * All routers and links are driven by a single event queue on a virtual clock
+		 */
+		DISCRETE_EVENT,
+		/**
+		 * Routers are partitioned, each partition having an event queue run by its own thread
+		 */
+		PARALLEL_DISCRETE_EVENT;
+	}
+	
 	
 	public static void startSimulation(long waitTime, Collection<SimulationTask> tasks) {
 		startSimulation(waitTime, tasks, null, null);
@@ -76,6 +134,48 @@ public class Simulator {
 	private static NetworkViewer networkViewer;
 	
 	public static void startSimulation(long waitTime, Collection<SimulationTask> tasks, MainView mv, NetworkViewer viewer) {
+		beginSimulation(waitTime, tasks, mv, viewer);
+		
+		DiscreteEventEngine engine = eventEngine;
+		ParallelEventEngine parallel = parallelEngine;
+		if (engine != null) {
+			Thread eventLoop = new Thread(() -> {
+				try {
+					if (parallel != null) {
+						parallel.run();
+					} else {
+						engine.run();
+					}
+				} catch (InterruptedException e) {
+				}
+			}, "Discrete-event simulation");
+			eventLoop.setDaemon(true);
+			eventLoop.start();
+		}
+	}
+	
+	/**
+	 * Run a discrete-event simulation in the calling thread until the given virtual time.
+	 * Returns as soon as the simulated time has passed, however much wall-clock time it took.
+	 * @param duration Virtual time in milliseconds to run the simulation for
+	 * @param tasks
+	 * @throws IllegalStateException if not in a discrete-event mode
+	 */
+	public static void runSimulation(long duration, Collection<SimulationTask> tasks) throws IllegalStateException {
+		if (eventEngine == null) {
+			throw new IllegalStateException("Simulation is not in discrete-event mode");
+		}
+		beginSimulation(0, tasks, null, null);
+		DiscreteEventEngine engine = eventEngine;
+		ParallelEventEngine parallel = parallelEngine;
+		if (parallel != null) {
+			parallel.runUntil(engine.now() + duration);
+		} else {
+			engine.runUntil(engine.now() + duration);
+		}
+	}
+	
+	private static void beginSimulation(long waitTime, Collection<SimulationTask> tasks, MainView mv, NetworkViewer viewer) {
 		mainViewer = mv;
 		networkViewer = viewer;
 		resetState();
@@ -96,6 +196,12 @@ public class Simulator {
 				}
 			});
 			
+			DiscreteEventEngine engine = eventEngine;
+			if (engine != null) {
+				scheduleTask(engine, t, waitTime + t.getDelay());
+				continue;
+			}
+			
 			Date startTime = new Date(simulationStartMillis + t.getDelay());
 			
 			if (t.getRepetitions() == 1) {
@@ -106,9 +212,33 @@ public class Simulator {
 		}
 	}
 	
+	/**
+	 * Run a task on the event queue, repeating it at its interval until it is cancelled.
+	 */
+	private static void scheduleTask(DiscreteEventEngine engine, SimulationTask t, long delay) {
+		engine.schedule(() -> {
+			t.run();
+			if (!t.isCancelled() && t.getRepetitions() != 1) {
+				scheduleTask(engine, t, t.getInterval());
+			}
+		}, delay);
+	}
+	
 	public static void runTaskNow(SimulationTask task) {
 		boolean updateView = networkViewer != null && task instanceof TopologyChanging;
 		
+		DiscreteEventEngine engine = eventEngine;
+		if (engine != null && state == SimulationState.STARTED) {
+			// Keep the event loop the only thread touching the routers
+			engine.execute(() -> {
+				task.run();
+				if (updateView) {
+					refreshNetworkViewer();
+				}
+			});
+			return;
+		}
+		
 		task.run();
 		
 		if (updateView) {
@@ -138,6 +268,11 @@ public class Simulator {
 		
 		usedAddresses.clear();
 		
+		if (eventEngine != null) {
+			// Events of the old routers are dropped with the queues
+			createEventEngines();
+		}
+		
 		if (networkViewer != null) {
 			mainViewer.refreshRouterList();
 			networkViewer.clear();
@@ -149,37 +284,26 @@ public class Simulator {
 	
 	
 	public static void reserveAddress(Address address) throws IllegalStateException {
-		if (!isAddressFree(address)) {
+		if (!usedAddresses.add(address.getAddress())) {
 			throw new IllegalStateException("Address " + address + " is already in use.");
 		}
-		
-		usedAddresses.add(address);
 	}
 	
 	public static void releaseAddress(Address toFree) throws IllegalArgumentException {
-		int index = -1;
-		for (int i = 0; i < usedAddresses.size(); i++) {
-			if (usedAddresses.get(i).equals(toFree)) {
-				index = i;
-			}
-		}
-		
-		if (index >= 0) {
-			usedAddresses.remove(index);
-		} else {
+		if (!usedAddresses.remove(toFree.getAddress())) {
 			throw new IllegalArgumentException("Address is not reserved");
-			
 		}
-		
 	}
 	
 	public static boolean isAddressFree(Address address) {
-		for (Address usedAddress : usedAddresses) {
-			if (usedAddress.equals(address)) {
-				return false;
-			}
-		}
-		return true;
+		return !usedAddresses.contains(address.getAddress());
+	}
+	
+	/**
+	 * @return Amount of addresses in use by all routers and clients
+	 */
+	public static long getUsedAddressCount() {
+		return usedAddresses.size();
 	}
 	
 	public static void registerRouter(BGPRouter router) throws Exception {
@@ -236,18 +360,319 @@ public class Simulator {
 	 */
 	public static byte[] getPublicKey(int bgpId) {
 		return Optional.ofNullable(getRouter(bgpId))
-				.map(BGPRouter::getPublicKey)
-				.map(PublicKey::getEncoded)
+				.map(r -> r.getTrustEngine().getPublishedPublicKeys())
 				.orElse(new byte[0]);
 	}
 	
+	/**
+	 * Set the scheme trust votes of routers created after this call are signed and encrypted with.
+	 * All routers of a simulation must use the same scheme.
+	 * @param provider
+	 */
+	public static void setTrustCryptoProvider(TrustCryptoProvider provider) {
+		if (provider == null) {
+			throw new IllegalArgumentException("Trust crypto provider can not be null");
+		}
+		trustCryptoProvider = provider;
+		if (trustKeyPool != null && trustKeyPool.getCryptoProvider() != provider) {
+			// Keys of the old scheme are of no use
+			setTrustKeyPool(null);
+		}
+	}
+	
+	public static TrustCryptoProvider getTrustCryptoProvider() {
+		return trustCryptoProvider;
+	}
+	
+	/**
+	 * Set the pool routers created after this call take their trust keys from.
+	 * @param pool Pool of the current trust crypto provider, null to generate keys on first use
+	 */
+	public static void setTrustKeyPool(TrustKeyPool pool) {
+		if (pool != null && pool.getCryptoProvider() != trustCryptoProvider) {
+			throw new IllegalArgumentException("Key pool must use the current trust crypto provider");
+		}
+		if (trustKeyPool != null && trustKeyPool != pool) {
+			trustKeyPool.shutdown();
+		}
+		trustKeyPool = pool;
+	}
+	
+	public static TrustKeyPool getTrustKeyPool() {
+		return trustKeyPool;
+	}
+	
+	/**
+	 * Generate the trust keys of routers in parallel on all cores before they are created.
+	 * Does nothing without a key pool.
+	 * @param firstId Id of the first router
+	 * @param count Amount of routers
+	 */
+	public static void prewarmTrustKeys(int firstId, int count) {
+		TrustKeyPool pool = trustKeyPool;
+		if (pool != null) {
+			pool.prewarm(firstId, count);
+		}
+	}
+	
+	
+	/**
+	 * Set the amount of packet processing threads used by routers created after this call.
+	 * @param shards
+	 */
+	public static void setPacketProcessingShards(int shards) {
+		if (shards < 1) {
+			throw new IllegalArgumentException("At least one packet processing shard is required");
+		}
+		packetProcessingShards = shards;
+	}
+	
+	public static int getPacketProcessingShards() {
+		return packetProcessingShards;
+	}
+	
+	/**
+	 * Set the size and overflow handling of the mailboxes of routers created after this call.
+	 * @param capacity Maximum amount of tasks waiting in one mailbox
+	 * @param policy
+	 */
+	public static void setMailboxCapacity(int capacity, OverflowPolicy policy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Mailbox capacity must be positive");
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("Overflow policy can not be null");
+		}
+		mailboxCapacity = capacity;
+		mailboxOverflowPolicy = policy;
+	}
+	
+	public static int getMailboxCapacity() {
+		return mailboxCapacity;
+	}
+	
+	public static OverflowPolicy getMailboxOverflowPolicy() {
+		return mailboxOverflowPolicy;
+	}
+	
+	/**
+	 * Set the time routers created after this call coalesce routing changes
+	 * before running the decision process.
+	 * @param window Window in milliseconds, 0 runs the decision process for every UPDATE message
+	 */
+	public static void setDecisionWindow(long window) {
+		if (window < 0) {
+			throw new IllegalArgumentException("Decision window can not be negative");
+		}
+		decisionWindow = window;
+	}
+	
+	public static long getDecisionWindow() {
+		return decisionWindow;
+	}
+	
+	/**
+	 * Set the minimum route advertisement interval of connections created after this call.
+	 * @param interval MRAI in milliseconds as configured for a real router
+	 * @param scale Multiplier applied to the interval in the simulation
+	 */
+	public static void setMraiInterval(long interval, double scale) {
+		if (interval < 0 || scale < 0) {
+			throw new IllegalArgumentException("MRAI can not be negative");
+		}
+		mraiInterval = interval;
+		mraiScale = scale;
+	}
+	
+	/**
+	 * @return Scaled MRAI in milliseconds
+	 */
+	public static long getMraiDelay() {
+		return (long) (mraiInterval * mraiScale);
+	}
+	
+	/**
+	 * Set the transport used by links created after this call.
+	 * @param mode
+	 */
+	public static void setLinkMode(LinkMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("Link mode can not be null");
+		}
+		linkMode = mode;
+	}
+	
+	/**
+	 * @return Transport of new links, always DISCRETE_EVENT in the discrete-event modes
+	 */
+	public static LinkMode getLinkMode() {
+		if (eventEngine != null) {
+			return LinkMode.DISCRETE_EVENT;
+		}
+		// Piped links need a blocking reader thread each
+		return carrierPool != null ? LinkMode.RING_BUFFER : linkMode;
+	}
+	
+	/**
+	 * Set how routers created after this call are run. Switching modes resets the simulation.
+	 * @param mode
+	 */
+	public static void setExecutionMode(ExecutionMode mode) {
+		if (mode == null) {
+			throw new IllegalArgumentException("Execution mode can not be null");
+		}
+		if (mode == executionMode) {
+			return;
+		}
+		resetState();
+		executionMode = mode;
+		createEventEngines();
+		
+		if (carrierPool != null) {
+			carrierPool.shutdownNow();
+			carrierPool = null;
+		}
+		if (mode == ExecutionMode.POOLED) {
+			// FIFO scheduling gives every mailbox and link its turn
+			carrierPool = new ForkJoinPool(carrierThreads, pool -> {
+				ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+				t.setName("Carrier " + t.getPoolIndex());
+				t.setDaemon(true);
+				return t;
+			}, null, true);
+		}
+	}
+	
+	/**
+	 * Set the amount of carrier threads of POOLED mode, applied when the mode is next selected.
+	 * @param threads
+	 */
+	public static void setCarrierThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one carrier thread is required");
+		}
+		carrierThreads = threads;
+	}
+	
+	/**
+	 * @return Pool running routers and links, null unless in POOLED mode
+	 */
+	public static Executor getCarrierPool() {
+		return carrierPool;
+	}
+	
+	private static void createEventEngines() {
+		if (parallelEngine != null) {
+			parallelEngine.stop();
+		} else if (eventEngine != null) {
+			eventEngine.stop();
+		}
+		switch (executionMode) {
+		case DISCRETE_EVENT:
+			parallelEngine = null;
+			eventEngine = new DiscreteEventEngine();
+			break;
+		case PARALLEL_DISCRETE_EVENT:
+			// Lookahead is the link latency, the only way partitions affect each other
+			parallelEngine = new ParallelEventEngine(partitionCount, Consts.DEFAULT_LINK_LATENCY,
+					Math.min(partitionCount, Runtime.getRuntime().availableProcessors()));
+			eventEngine = parallelEngine.getGlobalEngine();
+			break;
+		default:
+			parallelEngine = null;
+			eventEngine = null;
+		}
+	}
+	
+	/**
+	 * Set the amount of partitions of the parallel discrete-event simulation.
+	 * Takes effect when the simulation is next reset.
+	 * @param partitions
+	 */
+	public static void setPartitionCount(int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("At least one partition is required");
+		}
+		partitionCount = partitions;
+	}
+	
+	public static int getPartitionCount() {
+		return partitionCount;
+	}
+	
+	/**
+	 * Set the amount of consecutive router ids assigned to the same partition, matching
+	 * the clusters of {@link LinkingOrder#CLUSTERED} keeps most links inside partitions.
+	 * Applies to routers created after this call.
+	 * @param clusterSize
+	 */
+	public static void setPartitionClusterSize(int clusterSize) {
+		if (clusterSize < 1) {
+			throw new IllegalArgumentException("Cluster size must be positive");
+		}
+		partitionClusterSize = clusterSize;
+	}
+	
+	public static ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+	
+	/**
+	 * @return Event queue of the simulation, the global one in PARALLEL_DISCRETE_EVENT mode,
+	 * 		null in REAL_TIME mode
+	 */
+	public static DiscreteEventEngine getEventEngine() {
+		return eventEngine;
+	}
+	
+	/**
+	 * @param routerId
+	 * @return Event queue running the router, null in REAL_TIME mode
+	 */
+	public static DiscreteEventEngine getEventEngine(int routerId) {
+		ParallelEventEngine parallel = parallelEngine;
+		if (parallel == null) {
+			return eventEngine;
+		}
+		int cluster = Math.floorMod(routerId - 1, Integer.MAX_VALUE) / partitionClusterSize;
+		return parallel.getPartition(cluster % parallel.getPartitionCount());
+	}
+	
+	/**
+	 * @return Parallel simulation, null unless in PARALLEL_DISCRETE_EVENT mode
+	 */
+	public static ParallelEventEngine getParallelEngine() {
+		return parallelEngine;
+	}
+	
+	/**
+	 * @return Wall-clock time, or the virtual time of the simulation in DISCRETE_EVENT mode
+	 */
+	public static long currentTimeMillis() {
+		DiscreteEventEngine engine = eventEngine;
+		return engine != null ? simulationStartTime + engine.now() : System.currentTimeMillis();
+	}
 	
 	public static Executor getClientExecutor() {
-		return clientExecutor;
+		DiscreteEventEngine engine = eventEngine;
+		return engine != null ? engine::execute : clientExecutor;
 	}
 	
-	public static void addClientTask(TimerTask t, long interval) {
-		clientTaskTimer.scheduleAtFixedRate(t, interval, interval);
+	/**
+	 * Run a client task repeatedly until cancelled.
+	 * In DISCRETE_EVENT mode cancelling the TimerTask itself does not stop it.
+	 * @param t
+	 * @param interval Milliseconds between runs
+	 * @return Handle for stopping the task in all execution modes
+	 */
+	public static Cancellable addClientTask(TimerTask t, long interval) {
+		DiscreteEventEngine engine = eventEngine;
+		if (engine != null) {
+			return engine.scheduleAtFixedRate(t, interval, interval);
+		} else {
+			clientTaskTimer.scheduleAtFixedRate(t, interval, interval);
+			return t::cancel;
+		}
 	}
 	
 }
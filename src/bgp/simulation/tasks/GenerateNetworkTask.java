@@ -29,6 +29,10 @@ public class GenerateNetworkTask extends SimulationTask implements TopologyChang
 	@Override
 	protected void runTask() throws Exception {
 		Queue<Integer> ids = topology.getLinkingOrder(networkSize);
+		// Routers of a cluster share a partition in parallel simulation
+		Simulator.setPartitionClusterSize(Math.max(LinkingOrder.getClusterSize(networkSize), 1));
+		// Keys of all routers are generated at once on all cores
+		Simulator.prewarmTrustKeys(1, networkSize);
 		for (int i = 1; i <= networkSize; i++) {
 			Simulator.registerRouter(new BGPRouter(i, Subnet.getSubnet((100+i)+".0.0.0/8")));
 		}
@@ -50,8 +54,10 @@ public class GenerateNetworkTask extends SimulationTask implements TopologyChang
 			
 			BGPRouter.connectRouters(r1, r2);
 			
-			// Sleep to avoid congesting the routers
-			Thread.sleep(10);
+			// Sleep to avoid congesting the routers, events are queued without congestion
+			if (Simulator.getEventEngine() == null) {
+				Thread.sleep(10);
+			}
 		}
 	}
 
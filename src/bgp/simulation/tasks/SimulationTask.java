@@ -64,6 +64,8 @@ public abstract class SimulationTask extends TimerTask {
 	
 	private TaskState state;
 	
+	private volatile boolean cancelled;
+	
 	private Optional<Runnable> onFinish = Optional.empty();
 	private List<Runnable> stateChangeListeners = new ArrayList<>();
 	
@@ -106,6 +108,19 @@ public abstract class SimulationTask extends TimerTask {
 		this.cancel();
 	}
 	
+	@Override
+	public boolean cancel() {
+		this.cancelled = true;
+		return super.cancel();
+	}
+	
+	/**
+	 * @return true if the task will not be run again
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
 	public void addStateChangeListener(Runnable r) {
 		stateChangeListeners.add(r);
 	}
@@ -15,6 +15,7 @@ import org.junit.runners.Parameterized.Parameter;
 import org.junit.runners.Parameterized.Parameters;
 
 import bgp.utils.Address;
+import bgp.utils.AddressSet;
 
 @RunWith(Parameterized.class)
 public class AddressTest {
@@ -65,5 +66,29 @@ public class AddressTest {
 	public void testGetAddressString() {
 		assertEquals(addressString, Address.getAddress(addressString).toString());
 	}
+	
+	@Test
+	public void testAddressSet() {
+		AddressSet set = new AddressSet();
+		assertFalse(set.contains(addressLong));
+		assertTrue(set.add(addressLong));
+		assertFalse(set.add(addressLong));
+		assertTrue(set.contains(addressLong));
+		assertFalse(set.contains(addressLong ^ 1));
+		assertEquals(addressLong ^ 1, set.nextAbsent(addressLong & ~1, addressLong | 1));
+		assertEquals(-1, set.nextAbsent(addressLong, addressLong));
+		
+		// Range over the address blocks to both sides fails without adding anything
+		long first = Math.min(Math.max(addressLong - 100, 0), (1L << 32) - 150);
+		assertFalse(set.addRange(first, 150));
+		assertEquals(1, set.size());
+		
+		assertTrue(set.remove(addressLong));
+		assertFalse(set.remove(addressLong));
+		assertTrue(set.addRange(first, 150));
+		assertEquals(150, set.size());
+		assertEquals(-1, set.nextAbsent(first, first + 149));
+		assertTrue(set.contains(first + 149));
+	}
 
 }
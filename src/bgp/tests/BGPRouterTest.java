@@ -3,13 +3,20 @@ package bgp.tests;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -25,8 +32,12 @@ import bgp.core.messages.pathattributes.Origin;
 import bgp.core.messages.pathattributes.PathAttribute;
 import bgp.core.network.ASConnection;
 import bgp.core.network.fsm.State;
+import bgp.core.network.packet.PacketReceiver;
+import bgp.simulation.DiscreteEventEngine;
 import bgp.simulation.LinkingOrder;
 import bgp.simulation.Simulator;
+import bgp.simulation.Simulator.ExecutionMode;
+import bgp.utils.Address;
 import bgp.utils.PacketEngine;
 import bgp.utils.Subnet;
 
@@ -188,6 +199,113 @@ public class BGPRouterTest {
 		assertEquals(2, r3.getRoutingEngine().decidePath(r5.getAddress().getAddress()));
 	}
 	
+	@Test
+	/**
+	 * Hand out every address of a small subnet, freed addresses are reused
+	 */
+	public void testAddressAllocation() {
+		Simulator.resetState();
+		BGPRouter r = new BGPRouter(100, Subnet.getSubnet("12.0.0.0/28"));
+		Subnet subnet = r.subnet;
+		
+		// Allocation starts after the subnet's own address and wraps around to it
+		for (int i = 1; i <= 16; i++) {
+			assertEquals(subnet.getAddress() + (i % 16), r.reserveAddress(r).getAddress());
+		}
+		try {
+			r.reserveAddress(r);
+			fail("Address was reserved in a full subnet");
+		} catch (IllegalStateException e) {
+		}
+		
+		Address freed = Address.getAddress(subnet.getAddress() + 5);
+		r.freeAddress(freed);
+		try {
+			r.freeAddress(freed);
+			fail("Address was freed twice");
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(freed.getAddress(), r.reserveAddress(r).getAddress());
+		r.shutdown();
+	}
+	
+	@Test
+	/**
+	 * Packets of a flow are always processed by the same shard, in the order they were routed
+	 */
+	public void testFlowSharding() throws InterruptedException {
+		Simulator.resetState();
+		int flows = 16;
+		int packetsPerFlow = 50;
+		RecordingRouter r = new RecordingRouter(100, Subnet.getSubnet("12.0.0.0/16"), 4, flows * packetsPerFlow);
+		assertEquals(4, r.getPacketProcessingShardCount());
+		long recipient = r.reserveAddress(r).getAddress();
+		long firstSender = Subnet.getSubnet("13.0.0.0/8").getAddress();
+		
+		// Interleave the flows
+		for (int p = 0; p < packetsPerFlow; p++) {
+			for (int flow = 0; flow < flows; flow++) {
+				r.routePacket(PacketEngine.buildPacket(firstSender + flow, recipient, new byte[] {(byte) p}));
+			}
+		}
+		assertTrue(r.received.await(5, TimeUnit.SECONDS));
+		r.shutdown();
+		
+		Set<Thread> usedShards = new HashSet<>();
+		for (int flow = 0; flow < flows; flow++) {
+			List<Integer> order = r.order.get(firstSender + flow);
+			Set<Thread> threads = r.threads.get(firstSender + flow);
+			assertEquals("Flow " + flow + " was split between shards", 1, threads.size());
+			usedShards.addAll(threads);
+			for (int p = 0; p < packetsPerFlow; p++) {
+				assertEquals("Flow " + flow + " was reordered", p, (int) order.get(p));
+			}
+		}
+		assertTrue("Flows were not spread over the shards", usedShards.size() > 1);
+	}
+	
+	@Test
+	/**
+	 * Packets are forwarded through the id-indexed connections, which follow connecting and disconnecting
+	 */
+	public void testAdjacentForwarding() throws Exception {
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			// Id far beyond the first one makes the connection array grow
+			BGPRouter r1 = new BGPRouter(1, Subnet.getSubnet("11.0.0.0/8"));
+			BGPRouter r2 = new BGPRouter(300, Subnet.getSubnet("12.0.0.0/8"));
+			Simulator.registerRouter(r1);
+			Simulator.registerRouter(r2);
+			CountingReceiver receiver = new CountingReceiver();
+			long recipient = r2.reserveAddress(receiver).getAddress();
+			long sender = r1.getAddress().getAddress();
+			DiscreteEventEngine engine = Simulator.getEventEngine();
+			
+			BGPRouter.connectRouters(r1, r2);
+			engine.runUntil(5000);
+			assertEquals(300, r1.getRoutingEngine().decidePath(recipient));
+			r1.routePacket(PacketEngine.buildPacket(sender, recipient, new byte[0]));
+			engine.runUntil(6000);
+			assertEquals(1, receiver.getReceivedPacketCount());
+			
+			r1.removeConnection(r1.getConnectionFor(300, false).get());
+			assertFalse(r1.hasConnectionTo(300));
+			r1.routePacket(PacketEngine.buildPacket(sender, recipient, new byte[0]));
+			engine.runUntil(7000);
+			assertEquals(1, receiver.getReceivedPacketCount());
+			
+			// Connection of the new session takes the place of the removed one
+			assertFalse(r2.hasConnectionTo(1));
+			BGPRouter.connectRouters(r1, r2);
+			engine.runUntil(12000);
+			r1.routePacket(PacketEngine.buildPacket(sender, recipient, new byte[0]));
+			engine.runUntil(13000);
+			assertEquals(2, receiver.getReceivedPacketCount());
+		} finally {
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+		}
+	}
+	
 	private void buildNetwork(LinkingOrder topology, int amountOfRouters) {
 		Simulator.resetState();
 		
@@ -226,5 +344,57 @@ public class BGPRouterTest {
 			fail(e.getMessage());
 		}
 	}
+	
+	/**
+	 * Receiver only counting its packets
+	 */
+	private static class CountingReceiver implements PacketReceiver {
+		
+		private long receivedPacketCount;
+		
+		@Override
+		public Address getAddress() {
+			return null;
+		}
+		
+		@Override
+		public void receivePacket(byte[] pkg) {
+			receivedPacketCount++;
+		}
+		
+		@Override
+		public long getReceivedPacketCount() {
+			return receivedPacketCount;
+		}
+		
+		@Override
+		public void shutdown() {
+		}
+	}
+	
+	/**
+	 * Router recording the shard thread and order of the packets addressed to itself
+	 */
+	private static class RecordingRouter extends BGPRouter {
+		
+		private final Map<Long, List<Integer>> order = new ConcurrentHashMap<>();
+		private final Map<Long, Set<Thread>> threads = new ConcurrentHashMap<>();
+		private final CountDownLatch received;
+		
+		RecordingRouter(int id, Subnet subnet, int packetProcessingShards, int expectedPackets) {
+			super(id, subnet, packetProcessingShards);
+			this.received = new CountDownLatch(expectedPackets);
+		}
+		
+		@Override
+		public void receivePacket(byte[] pkg) {
+			long sender = PacketEngine.extractSender(pkg);
+			// Only the shard of the flow adds to its list
+			order.computeIfAbsent(sender, s -> Collections.synchronizedList(new ArrayList<>()))
+					.add((int) PacketEngine.extractBody(pkg)[0]);
+			threads.computeIfAbsent(sender, s -> ConcurrentHashMap.newKeySet()).add(Thread.currentThread());
+			received.countDown();
+		}
+	}
 
 }
@@ -0,0 +1,244 @@
+package bgp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import bgp.client.BGPClient;
+import bgp.client.PingerClient;
+import bgp.core.BGPRouter;
+import bgp.core.network.ASConnection;
+import bgp.core.network.InterRouterInterface;
+import bgp.core.network.fsm.State;
+import bgp.core.network.packet.TrafficClass;
+import bgp.core.routing.SubnetNode;
+import bgp.simulation.DiscreteEventEngine;
+import bgp.simulation.DiscreteEventEngine.Event;
+import bgp.simulation.LinkingOrder;
+import bgp.simulation.Simulator;
+import bgp.simulation.Simulator.ExecutionMode;
+import bgp.simulation.tasks.GenerateNetworkTask;
+import bgp.simulation.tasks.SimulationTask;
+import bgp.utils.Consts;
+import bgp.utils.Subnet;
+
+public class DiscreteEventTest {
+
+	@Test
+	public void testEventOrder() {
+		DiscreteEventEngine engine = new DiscreteEventEngine();
+		List<String> runs = new ArrayList<>();
+
+		engine.schedule(() -> runs.add("b" + engine.now()), 20);
+		engine.schedule(() -> runs.add("a" + engine.now()), 10);
+		// Same time as the first one, run after it
+		engine.schedule(() -> runs.add("c" + engine.now()), 20);
+		Event repeating = engine.scheduleAtFixedRate(() -> runs.add("r" + engine.now()), 15, 15);
+		Event cancelled = engine.schedule(() -> runs.add("x"), 5);
+		cancelled.cancel();
+
+		engine.runUntil(40);
+		assertEquals("[a10, r15, b20, c20, r30]", runs.toString());
+		assertEquals(40, engine.now());
+
+		repeating.cancel();
+		engine.runUntil(100);
+		assertEquals(5, runs.size());
+		assertFalse(engine.step());
+	}
+
+	@Test
+	/**
+	 * An event that throws is counted and does not stop the simulation
+	 */
+	public void testFailingEvent() {
+		DiscreteEventEngine engine = new DiscreteEventEngine();
+		List<Long> runs = new ArrayList<>();
+		engine.schedule(() -> {
+			throw new IllegalStateException("Failing event");
+		}, 10);
+		engine.schedule(() -> runs.add(engine.now()), 20);
+
+		engine.runUntil(30);
+		assertEquals("[20]", runs.toString());
+		assertEquals(2, engine.getProcessedEventCount());
+		assertEquals(1, engine.getFailedEventCount());
+	}
+
+	@Test
+	/**
+	 * Converge a ring of routers in virtual time. Two runs of the same scenario
+	 * must process exactly the same events.
+	 */
+	public void testRingConvergence() {
+		int amountOfRouters = 6;
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			long firstRun = runRing(amountOfRouters);
+			long secondRun = runRing(amountOfRouters);
+			assertEquals(firstRun, secondRun);
+		} finally {
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+		}
+	}
+
+	@Test
+	/**
+	 * Converge a ring spread over several partitions run in parallel.
+	 * Merging packets between partitions in a fixed order keeps runs reproducible.
+	 */
+	public void testParallelRingConvergence() {
+		int amountOfRouters = 9;
+		Simulator.setPartitionCount(3);
+		Simulator.setExecutionMode(ExecutionMode.PARALLEL_DISCRETE_EVENT);
+		try {
+			long firstRun = runRing(amountOfRouters);
+			String firstTables = getRoutingTables(amountOfRouters);
+			long secondRun = runRing(amountOfRouters);
+			assertEquals(firstRun, secondRun);
+			assertEquals(firstTables, getRoutingTables(amountOfRouters));
+			// Partitions follow the clusters of three consecutive routers
+			assertTrue(Simulator.getEventEngine(1) == Simulator.getEventEngine(3));
+			assertFalse(Simulator.getEventEngine(3) == Simulator.getEventEngine(4));
+		} finally {
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+			Simulator.setPartitionCount(Runtime.getRuntime().availableProcessors());
+		}
+	}
+
+	@Test
+	/**
+	 * A pinger stopping at its limit must stop running in virtual time too
+	 */
+	public void testPingerStops() throws Exception {
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			BGPRouter r = new BGPRouter(1, Subnet.getSubnet("11.0.0.0/8"));
+			Simulator.registerRouter(r);
+			BGPClient target = new BGPClient(r);
+			PingerClient pinger = new PingerClient(r);
+			Simulator.registerClient(target);
+			Simulator.registerClient(pinger);
+			pinger.startPinging(Arrays.asList(target.getAddress().getAddress()), 3, 100);
+			
+			DiscreteEventEngine engine = Simulator.getEventEngine();
+			engine.runUntil(1000);
+			assertEquals(1.0, pinger.getSuccessRate(), 0);
+			long events = engine.getProcessedEventCount();
+			engine.runUntil(2000);
+			assertEquals(events, engine.getProcessedEventCount());
+		} finally {
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+		}
+	}
+	
+	@Test
+	/**
+	 * Advertisements within MRAI of the previous ones are held back and coalesced,
+	 * withdrawals are sent right away.
+	 */
+	public void testMraiHoldBack() throws Exception {
+		Simulator.setMraiInterval(1000, 1);
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			BGPRouter r1 = new BGPRouter(1, Subnet.getSubnet("11.0.0.0/8"));
+			BGPRouter r2 = new BGPRouter(2, Subnet.getSubnet("12.0.0.0/8"));
+			Simulator.registerRouter(r1);
+			Simulator.registerRouter(r2);
+			BGPRouter.connectRouters(r1, r2);
+			DiscreteEventEngine engine = Simulator.getEventEngine();
+			engine.runUntil(10000);
+			
+			ASConnection conn = r1.getConnectionFor(2, false).get();
+			InterRouterInterface peer = r2.getConnectionFor(1, false).get().getAdapter();
+			Subnet prefix = Subnet.getSubnet("20.0.0.0/8");
+			long updates = peer.getReceivedPacketCount(TrafficClass.DATA);
+			
+			// MRAI has passed since the initial table, sent at once
+			conn.getAdjRibOut().advertise(prefix, Arrays.asList(1, 7));
+			conn.advertiseRoutes();
+			engine.runUntil(10100);
+			assertEquals(updates + 1, peer.getReceivedPacketCount(TrafficClass.DATA));
+			assertEquals(2, getPathLength(r2, prefix));
+			
+			// Held back until 11000, the second change replaces the first one
+			conn.getAdjRibOut().advertise(prefix, Arrays.asList(1, 7, 8));
+			conn.advertiseRoutes();
+			engine.runUntil(10200);
+			conn.getAdjRibOut().advertise(prefix, Arrays.asList(1, 7, 8, 9));
+			conn.advertiseRoutes();
+			engine.runUntil(10900);
+			assertEquals(updates + 1, peer.getReceivedPacketCount(TrafficClass.DATA));
+			assertEquals(2, getPathLength(r2, prefix));
+			engine.runUntil(11100);
+			assertEquals(updates + 2, peer.getReceivedPacketCount(TrafficClass.DATA));
+			assertEquals(4, getPathLength(r2, prefix));
+			
+			// Withdrawal within MRAI of the previous advertisement is not delayed
+			conn.getAdjRibOut().withdraw(prefix);
+			conn.advertiseRoutes();
+			engine.runUntil(11200);
+			assertEquals(updates + 3, peer.getReceivedPacketCount(TrafficClass.DATA));
+			assertEquals(-1, getPathLength(r2, prefix));
+		} finally {
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+			Simulator.setMraiInterval(Consts.DEFAULT_MRAI_INTERVAL, Consts.DEFAULT_MRAI_SCALE);
+		}
+	}
+	
+	/**
+	 * @return Length of the router's route to the subnet, -1 if it has none
+	 */
+	private int getPathLength(BGPRouter router, Subnet subnet) {
+		for (SubnetNode n : router.getRoutingEngine().getRoutingTable()) {
+			if (n.getSubnet().equals(subnet)) {
+				return n.getLength();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Routes of all routers with their first hops and path lengths
+	 */
+	private String getRoutingTables(int amountOfRouters) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= amountOfRouters; i++) {
+			sb.append(i).append(':');
+			for (SubnetNode n : Simulator.getRouter(i).getRoutingEngine().getRoutingTable()) {
+				sb.append(' ').append(n.getSubnet()).append('>').append(n.getFirstHop()).append('/').append(n.getLength());
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+	
+	private long runRing(int amountOfRouters) {
+		List<SimulationTask> tasks = new ArrayList<>();
+		tasks.add(new GenerateNetworkTask(LinkingOrder.RING, amountOfRouters));
+		// Ten virtual seconds, far beyond MRAI and the decision window
+		Simulator.runSimulation(10000, tasks);
+
+		for (int i = 1; i <= amountOfRouters; i++) {
+			BGPRouter r = Simulator.getRouter(i);
+			assertEquals(2, r.getAllConnections().size());
+			for (ASConnection conn : r.getAllConnections()) {
+				assertEquals(State.ESTABLISHED, conn.getCurrentState());
+			}
+			// Default route, own subnet and one route to every other router
+			assertEquals(amountOfRouters + 1, r.getRoutingEngine().getRoutingTable().size());
+		}
+		long events = Simulator.getParallelEngine() != null
+				? Simulator.getParallelEngine().getProcessedEventCount()
+				: Simulator.getEventEngine().getProcessedEventCount();
+		assertTrue(events > 0);
+		return events;
+	}
+
+}
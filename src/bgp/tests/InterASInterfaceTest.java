@@ -10,6 +10,7 @@ import org.junit.Test;
 
 import bgp.core.network.ASConnection;
 import bgp.core.network.InterRouterInterface;
+import bgp.core.network.InterRouterInterface.LinkMode;
 import bgp.core.network.packet.PacketRouter;
 
 public class InterASInterfaceTest {
@@ -68,6 +69,54 @@ public class InterASInterfaceTest {
 		assertEquals(trueCount2.get(), h1.getCounterValue());
 	}
 	
+	@Test
+	public void testRingBufferLink() {
+		TestPacketHandler h1 = new TestPacketHandler();
+		TestPacketHandler h2 = new TestPacketHandler();
+		InterRouterInterface if1 = new InterRouterInterface(h1, null, LinkMode.RING_BUFFER);
+		InterRouterInterface if2 = new InterRouterInterface(h2, null, LinkMode.RING_BUFFER);
+		int trueSum1 = 0, trueSum2 = 0;
+		int packetCount = 1000000;
+		try {
+			if1.connectNeighbourOutputStream(if2);
+			if2.connectNeighbourOutputStream(if1);
+		} catch (Exception e) {
+			fail("Connecting interfaces failed.");
+		}
+		
+		for (int i = 0; i < packetCount; i++) {
+			byte newValue = (byte)(Math.random()*256);
+			trueSum1 += newValue;
+			try {
+				if1.sendData(new byte[]{newValue});
+			} catch (IOException e) {
+				fail("Sending data from 1 to 2 failed");
+			}
+
+			newValue = (byte)(Math.random()*256);
+			trueSum2 += newValue;
+			try {
+				if2.sendData(new byte[]{newValue});
+			} catch (IOException e) {
+				fail("Sending data from 2 to 1 failed");
+			}
+		}
+		
+		try {
+			// Give time for the rings to empty
+			Thread.sleep(200);
+			if1.close();
+			if2.close();
+		} catch (Exception e) {
+			fail(e.getMessage());
+		}
+		
+		assertEquals(trueSum1, h2.getSum());
+		assertEquals(packetCount, h2.getCounterValue());
+		assertEquals(trueSum2, h1.getSum());
+		assertEquals(packetCount, h1.getCounterValue());
+	}
+	
 	private class TestPacketHandler implements PacketRouter {
 		
 		private AtomicInteger counter, summer;
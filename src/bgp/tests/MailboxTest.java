@@ -0,0 +1,169 @@
+package bgp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import bgp.core.network.Mailbox;
+import bgp.core.network.Mailbox.OverflowPolicy;
+
+public class MailboxTest {
+
+	@Test
+	/**
+	 * Run many mailboxes on two carriers, tasks of each mailbox must run in order and one at a time.
+	 */
+	public void testOrdering() throws InterruptedException {
+		ExecutorService carriers = Executors.newFixedThreadPool(2);
+		int mailboxCount = 100, taskCount = 1000;
+		CountDownLatch done = new CountDownLatch(mailboxCount);
+		AtomicInteger errors = new AtomicInteger();
+
+		List<Mailbox> mailboxes = new ArrayList<>();
+		int[] next = new int[mailboxCount];
+		AtomicInteger[] running = new AtomicInteger[mailboxCount];
+		for (int i = 0; i < mailboxCount; i++) {
+			mailboxes.add(new Mailbox(carriers, taskCount, OverflowPolicy.DROP_TAIL));
+			running[i] = new AtomicInteger();
+		}
+		for (int t = 0; t < taskCount; t++) {
+			for (int i = 0; i < mailboxCount; i++) {
+				int mailbox = i, task = t;
+				mailboxes.get(i).execute(() -> {
+					if (running[mailbox].incrementAndGet() != 1 || next[mailbox] != task) {
+						errors.incrementAndGet();
+					}
+					next[mailbox]++;
+					running[mailbox].decrementAndGet();
+					if (task == taskCount - 1) {
+						done.countDown();
+					}
+				});
+			}
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, errors.get());
+		carriers.shutdown();
+	}
+
+	@Test
+	public void testShutdown() throws InterruptedException {
+		ExecutorService carriers = Executors.newSingleThreadExecutor();
+		Mailbox mailbox = new Mailbox(carriers, 10, OverflowPolicy.DROP_TAIL);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch blocker = new CountDownLatch(1);
+		mailbox.execute(() -> {
+			started.countDown();
+			try {
+				blocker.await();
+			} catch (InterruptedException e) {
+			}
+		});
+		mailbox.execute(() -> { });
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+
+		// Second task is still waiting
+		assertEquals(1, mailbox.shutdownNow().size());
+		try {
+			mailbox.execute(() -> { });
+			fail("Shut down mailbox accepted a task");
+		} catch (RejectedExecutionException e) {
+		}
+		blocker.countDown();
+		assertTrue(mailbox.awaitTermination(1, TimeUnit.SECONDS));
+		carriers.shutdown();
+	}
+
+	@Test
+	/**
+	 * Packets queued with a handler run in order with the tasks of the mailbox
+	 */
+	public void testPackets() throws InterruptedException {
+		ExecutorService carriers = Executors.newSingleThreadExecutor();
+		Mailbox mailbox = new Mailbox(carriers, 10, OverflowPolicy.DROP_TAIL);
+		List<Integer> run = new ArrayList<>();
+		Mailbox.PacketHandler handler = (packet, receivingConnection) -> run.add((int) packet[0]);
+		mailbox.offer(new byte[] {0}, null, handler);
+		mailbox.offer(() -> run.add(1));
+		mailbox.offer(new byte[] {2}, null, handler);
+
+		mailbox.shutdown();
+		assertTrue(mailbox.awaitTermination(1, TimeUnit.SECONDS));
+		assertEquals("[0, 1, 2]", run.toString());
+		assertEquals(3, mailbox.getEnqueuedCount());
+		carriers.shutdown();
+	}
+
+	@Test
+	/**
+	 * Fill mailboxes of a blocked carrier beyond their capacity
+	 */
+	public void testOverflow() throws InterruptedException {
+		for (OverflowPolicy policy : OverflowPolicy.values()) {
+			ExecutorService carriers = Executors.newSingleThreadExecutor();
+			CountDownLatch blocker = new CountDownLatch(1);
+			carriers.execute(() -> {
+				try {
+					blocker.await();
+				} catch (InterruptedException e) {
+				}
+			});
+
+			Mailbox mailbox = new Mailbox(carriers, 4, policy);
+			List<Integer> run = new ArrayList<>();
+			for (int i = 0; i < 6; i++) {
+				int task = i;
+				mailbox.offer(() -> run.add(task));
+			}
+			assertEquals(4, mailbox.size());
+			assertEquals(4, mailbox.getMaxDepth());
+			assertEquals(2, mailbox.getDroppedCount());
+			if (policy == OverflowPolicy.BACKPRESSURE) {
+				// Senders gave up after waiting for room
+				assertTrue(mailbox.getBlockedTime() > 0);
+			}
+
+			blocker.countDown();
+			mailbox.shutdown();
+			assertTrue(mailbox.awaitTermination(1, TimeUnit.SECONDS) || mailbox.size() == 0);
+			carriers.shutdown();
+			assertTrue(carriers.awaitTermination(1, TimeUnit.SECONDS));
+			if (policy == OverflowPolicy.DROP_HEAD) {
+				assertEquals("[2, 3, 4, 5]", run.toString());
+			} else {
+				assertEquals("[0, 1, 2, 3]", run.toString());
+			}
+		}
+	}
+
+	@Test
+	/**
+	 * A task that throws is counted and does not stop the tasks after it
+	 */
+	public void testFailingTask() throws InterruptedException {
+		ExecutorService carriers = Executors.newSingleThreadExecutor();
+		Mailbox mailbox = new Mailbox(carriers, 10, OverflowPolicy.DROP_TAIL);
+		CountDownLatch done = new CountDownLatch(1);
+		mailbox.execute(() -> {
+			throw new IllegalStateException("Failing task");
+		});
+		mailbox.execute(done::countDown);
+
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertEquals(1, mailbox.getFailedCount());
+		carriers.shutdown();
+	}
+
+}
@@ -7,6 +7,9 @@ import static org.junit.Assert.fail;
 import org.junit.Test;
 
 import bgp.core.messages.KeepaliveMessage;
+import bgp.core.messages.NotificationMessage;
+import bgp.core.messages.OpenMessage;
+import bgp.core.network.packet.TrafficClass;
 import bgp.utils.Address;
 import bgp.utils.PacketEngine;
 
@@ -63,6 +66,23 @@ public class PacketEngineTest {
 		}
 	}
 
+	@Test
+	public void testClassifyTraffic() {
+		Address a = Address.getAddress("100.0.0.1");
+		Address b = Address.getAddress("101.0.0.1");
+		byte[] keepalive = PacketEngine.buildPacket(a, b, new KeepaliveMessage().serialize());
+		byte[] open = PacketEngine.buildPacket(a, b, new OpenMessage(1, 180, a.address).serialize());
+		byte[] notification = PacketEngine.buildPacket(a, b, NotificationMessage.getCeaseError().serialize());
+		byte[] data = PacketEngine.buildPacket(a, b, new byte[]{1, 2, 3});
+		
+		assertEquals(TrafficClass.CONTROL, TrafficClass.classify(keepalive, b.address));
+		assertEquals(TrafficClass.CONTROL, TrafficClass.classify(open, b.address));
+		assertEquals(TrafficClass.DATA, TrafficClass.classify(notification, b.address));
+		assertEquals(TrafficClass.DATA, TrafficClass.classify(data, b.address));
+		// Control messages in transit are data for the forwarding router
+		assertEquals(TrafficClass.DATA, TrafficClass.classify(keepalive, a.address));
+	}
+
 	@Test
 	public void testExtractRecipient() {
 		fail("Not yet implemented");
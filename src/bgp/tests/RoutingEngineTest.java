@@ -1,6 +1,9 @@
 package bgp.tests;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
@@ -11,13 +14,17 @@ import org.junit.Test;
 
 import bgp.core.messages.UpdateMessage;
 import bgp.core.messages.notificationexceptions.NotificationException;
+import bgp.core.messages.notificationexceptions.UpdateMessageException;
 import bgp.core.messages.pathattributes.AsPath;
 import bgp.core.messages.pathattributes.NextHop;
 import bgp.core.messages.pathattributes.Origin;
 import bgp.core.messages.pathattributes.PathAttribute;
+import bgp.core.routing.AdjRibOut;
+import bgp.core.routing.RouteChanges;
 import bgp.core.routing.RoutingEngine;
 import bgp.core.trust.TrustEngine;
 import bgp.utils.Address;
+import bgp.utils.Consts;
 import bgp.utils.Subnet;
 
 public class RoutingEngineTest {
@@ -112,5 +119,149 @@ public class RoutingEngineTest {
 			fail(e.buildNotification().toString());
 		}
 	}
+	
+	@Test
+	public void testLongestPrefixMatch() {
+		try {
+			RoutingEngine e = new RoutingEngine(1, new TrustEngine());
+			e.addRoutingInfo(Subnet.getSubnet("10.0.0.0/8"), 2, 1, 100);
+			e.addRoutingInfo(Subnet.getSubnet("10.128.0.0/9"), 3, 1, 100);
+			e.addRoutingInfo(Subnet.getSubnet("10.128.4.0/24"), 4, 1, 100);
+			e.addRoutingInfo(Subnet.getSubnet("10.129.0.0/16"), 5, 1, 100);
+			
+			assertEquals(2, e.decidePath(Address.getAddress("10.1.2.3").getAddress()));
+			assertEquals(3, e.decidePath(Address.getAddress("10.200.0.1").getAddress()));
+			assertEquals(4, e.decidePath(Address.getAddress("10.128.4.200").getAddress()));
+			assertEquals(3, e.decidePath(Address.getAddress("10.128.5.1").getAddress()));
+			assertEquals(5, e.decidePath(Address.getAddress("10.129.77.1").getAddress()));
+			assertEquals(-1, e.decidePath(Address.getAddress("11.0.0.1").getAddress()));
+			assertEquals(5, e.getRoutingTable().size());
+			
+			// Withdrawing the more specific route falls back to the covering one
+			List<PathAttribute> pathAttributes = new ArrayList<>();
+			pathAttributes.add(new Origin(2));
+			pathAttributes.add(new NextHop(Address.getAddress("10.0.0.1").getBytes()));
+			pathAttributes.add(new AsPath(Arrays.asList(4)));
+			UpdateMessage um = new UpdateMessage(Arrays.asList(Subnet.getSubnet("10.128.4.0/24")),
+					pathAttributes, new ArrayList<>());
+			e.handleUpdateMessage(um);
+			
+			assertEquals(3, e.decidePath(Address.getAddress("10.128.4.200").getAddress()));
+			assertEquals(4, e.getRoutingTable().size());
+		} catch (NotificationException e) {
+			fail(e.buildNotification().toString());
+		}
+	}
+
+	@Test
+	public void testAlternativeRouteAfterWithdrawal() {
+		try {
+			RoutingEngine e = new RoutingEngine(1, new TrustEngine());
+			Subnet s = Subnet.getSubnet("40.0.0.0/16");
+			long address = Address.getAddress("40.0.1.1").getAddress();
+			
+			e.handleUpdateMessage(buildUpdate(Arrays.asList(2, 4), new ArrayList<>(), Arrays.asList(s)));
+			e.handleUpdateMessage(buildUpdate(Arrays.asList(3, 5, 4), new ArrayList<>(), Arrays.asList(s)));
+			assertEquals(2, e.decidePath(address));
+			assertEquals(1, e.getAdjRibIn(3).size());
+			
+			// Preferred route is withdrawn, the stored alternative is used without new advertisements
+			UpdateMessage withdrawal = buildUpdate(Arrays.asList(2), Arrays.asList(s), new ArrayList<>());
+			RouteChanges changes = e.handleUpdateMessage(withdrawal);
+			assertEquals(3, e.decidePath(address));
+			assertEquals(3, e.getRoutingTable().stream().filter(n -> n.getSubnet().equals(s)).findAny().get().getLength());
+			assertEquals(1, changes.getUpdatedNodes().size());
+			assertTrue(changes.getWithdrawnRoutes().isEmpty());
+			assertTrue(withdrawal.getWithdrawnRoutes().isEmpty());
+			
+			// Losing the last peer removes the route
+			changes = e.removePeer(3);
+			assertEquals(-1, e.decidePath(address));
+			assertTrue(changes.getWithdrawnRoutes().contains(s));
+		} catch (NotificationException e) {
+			fail(e.buildNotification().toString());
+		}
+	}
+	
+	@Test
+	public void testDirtyPrefixCoalescing() {
+		try {
+			RoutingEngine e = new RoutingEngine(1, new TrustEngine());
+			Subnet s = Subnet.getSubnet("40.0.0.0/16");
+			long address = Address.getAddress("40.0.1.1").getAddress();
+			
+			// Route is learned, changed and withdrawn again before the decision process runs
+			e.receiveUpdateMessage(buildUpdate(Arrays.asList(2, 4), new ArrayList<>(), Arrays.asList(s)));
+			e.receiveUpdateMessage(buildUpdate(Arrays.asList(3, 4), new ArrayList<>(), Arrays.asList(s)));
+			e.receiveUpdateMessage(buildUpdate(Arrays.asList(2, 6, 4), new ArrayList<>(), Arrays.asList(s)));
+			e.receiveUpdateMessage(buildUpdate(Arrays.asList(3), Arrays.asList(s), new ArrayList<>()));
+			assertEquals(-1, e.decidePath(address));
+			assertTrue(e.hasDirtyPrefixes());
+			
+			RouteChanges changes = e.runDecisionProcess();
+			assertFalse(e.hasDirtyPrefixes());
+			assertEquals(2, e.decidePath(address));
+			assertEquals(1, changes.getUpdatedNodes().size());
+			assertEquals(3, changes.getUpdatedNodes().iterator().next().getLength());
+			
+			// Nothing changed since the previous run
+			assertTrue(e.runDecisionProcess().isEmpty());
+			
+			// Route through own AS is not accepted and replaces the earlier route from the peer
+			e.receiveUpdateMessage(buildUpdate(Arrays.asList(2, 1, 4), new ArrayList<>(), Arrays.asList(s)));
+			changes = e.runDecisionProcess();
+			assertEquals(-1, e.decidePath(address));
+			assertTrue(changes.getWithdrawnRoutes().contains(s));
+		} catch (NotificationException e) {
+			fail(e.buildNotification().toString());
+		}
+	}
+	
+	@Test
+	public void testAdjRibOutPacking() {
+		AdjRibOut rib = new AdjRibOut();
+		byte[] nextHop = Address.getAddress("10.0.0.1").getBytes();
+		List<Integer> path1 = Arrays.asList(1, 2);
+		List<Integer> path2 = Arrays.asList(1, 3, 4);
+		
+		// 10000 prefixes with one AS_PATH do not fit a single message
+		for (int i = 0; i < 10000; i++) {
+			rib.advertise(Subnet.getSubnet((20L << 24) + i * 256, Subnet.getSubnetMask(24)), path1);
+		}
+		rib.advertise(Subnet.getSubnet("30.0.0.0/16"), path2);
+		rib.advertise(Subnet.getSubnet("31.0.0.0/16"), path2);
+		
+		List<UpdateMessage> messages = rib.flush(1, nextHop);
+		assertEquals(3, messages.size());
+		int prefixes = 0;
+		for (UpdateMessage um : messages) {
+			assertTrue(um.serializePacket(Address.getAddress("10.0.0.1"), Address.getAddress("10.0.0.2")).length < Consts.MTU);
+			prefixes += um.getNLRI().size();
+		}
+		assertEquals(10002, prefixes);
+		assertEquals(2, messages.get(2).getNLRI().size());
+		assertFalse(rib.hasPendingChanges());
+		
+		// Routes the peer already has are not sent again, unknown ones are not withdrawn
+		rib.advertise(Subnet.getSubnet("30.0.0.0/16"), path2);
+		rib.withdraw(Subnet.getSubnet("40.0.0.0/16"));
+		assertFalse(rib.hasPendingChanges());
+		
+		rib.withdraw(Subnet.getSubnet("31.0.0.0/16"));
+		rib.advertise(Subnet.getSubnet("30.0.0.0/16"), path1);
+		messages = rib.flush(1, nextHop);
+		assertEquals(1, messages.size());
+		assertEquals(Arrays.asList(Subnet.getSubnet("31.0.0.0/16")), messages.get(0).getWithdrawnRoutes());
+		assertEquals(Arrays.asList(Subnet.getSubnet("30.0.0.0/16")), messages.get(0).getNLRI());
+		assertNull(rib.getAdvertisedPath(Subnet.getSubnet("31.0.0.0/16")));
+	}
+	
+	private UpdateMessage buildUpdate(List<Integer> asPath, List<Subnet> withdrawnRoutes, List<Subnet> NLRI) throws UpdateMessageException {
+		List<PathAttribute> pathAttributes = new ArrayList<>();
+		pathAttributes.add(new Origin(2));
+		pathAttributes.add(new NextHop(Address.getAddress("10.0.0.1").getBytes()));
+		pathAttributes.add(new AsPath(asPath));
+		return new UpdateMessage(new ArrayList<>(withdrawnRoutes), pathAttributes, new ArrayList<>(NLRI));
+	}
 
 }
@@ -0,0 +1,92 @@
+package bgp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import bgp.core.network.TimingWheel;
+import bgp.core.network.TimingWheel.Timeout;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testTimeouts() throws InterruptedException {
+		// Wheel of 8 ticks, delays longer than 80 ms take several rounds
+		TimingWheel wheel = new TimingWheel(10, 8, 2);
+		
+		long start = System.nanoTime();
+		CountDownLatch once = new CountDownLatch(1);
+		wheel.schedule(once::countDown, 200);
+		assertTrue(once.await(2, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+		
+		AtomicInteger cancelledRuns = new AtomicInteger();
+		Timeout cancelled = wheel.schedule(cancelledRuns::incrementAndGet, 50);
+		cancelled.cancel();
+		
+		AtomicInteger periodicRuns = new AtomicInteger();
+		CountDownLatch periodic = new CountDownLatch(5);
+		Timeout t = wheel.scheduleAtFixedRate(() -> {
+			periodicRuns.incrementAndGet();
+			periodic.countDown();
+		}, 0, 30);
+		assertTrue(periodic.await(2, TimeUnit.SECONDS));
+		t.cancel();
+		int runs = periodicRuns.get();
+		Thread.sleep(100);
+		
+		assertTrue(periodicRuns.get() <= runs + 1);
+		assertEquals(0, cancelledRuns.get());
+		wheel.stop();
+	}
+
+	@Test
+	/**
+	 * A periodic task running longer than its interval must not run concurrently with itself
+	 */
+	public void testNoOverlappingRuns() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel(5, 8, 4);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger overlaps = new AtomicInteger();
+		CountDownLatch runs = new CountDownLatch(5);
+		Timeout t = wheel.scheduleAtFixedRate(() -> {
+			if (running.incrementAndGet() > 1) {
+				overlaps.incrementAndGet();
+			}
+			try {
+				Thread.sleep(30);
+			} catch (InterruptedException e) {
+			}
+			running.decrementAndGet();
+			runs.countDown();
+		}, 0, 10);
+		assertTrue(runs.await(2, TimeUnit.SECONDS));
+		t.cancel();
+		assertEquals(0, overlaps.get());
+		wheel.stop();
+	}
+
+	@Test
+	/**
+	 * A periodic task that throws keeps running, every failed run is counted
+	 */
+	public void testFailingTask() throws InterruptedException {
+		TimingWheel wheel = new TimingWheel(5, 8, 2);
+		// Runs of a timeout do not overlap, the fourth starts after the third failure was counted
+		CountDownLatch runs = new CountDownLatch(4);
+		Timeout t = wheel.scheduleAtFixedRate(() -> {
+			runs.countDown();
+			throw new IllegalStateException("Failing task");
+		}, 0, 10);
+		assertTrue(runs.await(2, TimeUnit.SECONDS));
+		t.cancel();
+		assertTrue(wheel.getFailedTaskCount() >= 3);
+		wheel.stop();
+	}
+
+}
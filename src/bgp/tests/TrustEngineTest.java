@@ -2,10 +2,12 @@ package bgp.tests;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
@@ -17,6 +19,9 @@ import java.security.PublicKey;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -25,10 +30,25 @@ import javax.crypto.NoSuchPaddingException;
 
 import org.junit.Test;
 
+import bgp.core.BGPRouter;
 import bgp.core.messages.BGPMessage;
 import bgp.core.messages.TrustMessage;
+import bgp.core.messages.UpdateMessage;
 import bgp.core.messages.notificationexceptions.NotificationException;
+import bgp.core.messages.pathattributes.AsPath;
+import bgp.core.messages.pathattributes.NextHop;
+import bgp.core.messages.pathattributes.Origin;
+import bgp.core.messages.pathattributes.PathAttribute;
+import bgp.core.trust.Curve25519TrustCrypto;
+import bgp.core.trust.TrustCryptoProvider;
 import bgp.core.trust.TrustEngine;
+import bgp.core.trust.TrustKeyPool;
+import bgp.core.trust.TrustKeys;
+import bgp.simulation.Simulator;
+import bgp.simulation.Simulator.ExecutionMode;
+import bgp.utils.Address;
+import bgp.utils.PacketEngine;
+import bgp.utils.Subnet;
 
 public class TrustEngineTest {
 
@@ -153,4 +173,295 @@ public class TrustEngineTest {
 		assertNotEquals(t.getTrustFor(TARGET_ID), 0);
 	}
 
+	
+	@Test
+	/**
+	 * Ask a registered router for a vote and apply its response, for both schemes
+	 */
+	public void testTrustRequestAndResponse() throws Exception {
+		TrustCryptoProvider defaultCrypto = Simulator.getTrustCryptoProvider();
+		// Cryptography runs in the calling thread
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			for (TrustCryptoProvider crypto : Arrays.asList(defaultCrypto, new Curve25519TrustCrypto())) {
+				Simulator.resetState();
+				Simulator.setTrustCryptoProvider(crypto);
+				BGPRouter requester = new BGPRouter(1, Subnet.getSubnet("11.0.0.0/8"));
+				BGPRouter reviewer = new BGPRouter(2, Subnet.getSubnet("12.0.0.0/8"));
+				Simulator.registerRouter(requester);
+				Simulator.registerRouter(reviewer);
+				reviewer.getTrustEngine().changeDirectTrust(3, 100);
+				
+				List<PathAttribute> pathAttributes = new ArrayList<>();
+				pathAttributes.add(new Origin(2));
+				pathAttributes.add(new NextHop(Address.getAddress("13.0.0.1").getBytes()));
+				pathAttributes.add(new AsPath(Arrays.asList(3, 2)));
+				UpdateMessage um = new UpdateMessage(new ArrayList<>(), pathAttributes, Arrays.asList(Subnet.getSubnet("13.0.0.0/8")));
+				TrustMessage request = requester.getTrustEngine().decideTrustVote(1, um).get();
+				request = (TrustMessage) BGPMessage.deserialize(request.serialize());
+				assertEquals(1, request.getRequesterId());
+				
+				long requesterAddress = Address.getAddress("11.0.0.1").getAddress();
+				long reviewerAddress = Address.getAddress("12.0.0.1").getAddress();
+				List<byte[]> replies = new ArrayList<>();
+				reviewer.getTrustEngine().handleTrustMessage(2, request, requesterAddress, reviewerAddress,
+						replies::add, Runnable::run);
+				assertEquals(1, replies.size());
+				
+				TrustMessage response = (TrustMessage) BGPMessage.deserialize(PacketEngine.extractBody(replies.get(0)));
+				requester.getTrustEngine().handleTrustMessage(1, response, reviewerAddress, requesterAddress,
+						packet -> fail("Response was answered"), Runnable::run);
+				// Voted trust is weighted by 0.4
+				assertEquals((byte) (0.4 * reviewer.getTrustEngine().getTrustFor(3)),
+						requester.getTrustEngine().getTrustFor(3));
+			}
+		} finally {
+			Simulator.setTrustCryptoProvider(defaultCrypto);
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+		}
+	}
+	
+	@Test
+	/**
+	 * Keys of a reviewer are decoded once, and fetched again once its votes no longer verify
+	 */
+	public void testPublicKeyCache() throws Exception {
+		TrustCryptoProvider defaultCrypto = Simulator.getTrustCryptoProvider();
+		CountingCrypto crypto = new CountingCrypto();
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			Simulator.resetState();
+			Simulator.setTrustCryptoProvider(crypto);
+			BGPRouter requester = new BGPRouter(1, Subnet.getSubnet("11.0.0.0/8"));
+			BGPRouter reviewer = new BGPRouter(2, Subnet.getSubnet("12.0.0.0/8"));
+			Simulator.registerRouter(requester);
+			Simulator.registerRouter(reviewer);
+			
+			// Both engines decode the other's keys for the first vote only
+			assertTrue(askForVote(requester, reviewer, 3));
+			assertEquals(2, crypto.decodedKeys);
+			assertTrue(askForVote(requester, reviewer, 4));
+			assertEquals(2, crypto.decodedKeys);
+			
+			// Reviewer replaced by a router with new keys, its vote fails against the cached keys
+			Simulator.unregisterRouter(2);
+			reviewer.shutdown();
+			reviewer = new BGPRouter(2, Subnet.getSubnet("12.0.0.0/8"));
+			Simulator.registerRouter(reviewer);
+			assertFalse(askForVote(requester, reviewer, 5));
+			assertEquals(3, crypto.decodedKeys);
+			// Evicted keys are fetched again from the directory
+			assertTrue(askForVote(requester, reviewer, 5));
+			assertEquals(4, crypto.decodedKeys);
+		} finally {
+			Simulator.resetState();
+			Simulator.setTrustCryptoProvider(defaultCrypto);
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+		}
+	}
+	
+	/**
+	 * Pass a vote on the target from the reviewer to the requester
+	 * @return Whether the requester accepted the vote
+	 */
+	private static boolean askForVote(BGPRouter requester, BGPRouter reviewer, int targetId) throws Exception {
+		reviewer.getTrustEngine().changeDirectTrust(targetId, 100);
+		List<PathAttribute> pathAttributes = new ArrayList<>();
+		pathAttributes.add(new Origin(2));
+		pathAttributes.add(new NextHop(Address.getAddress("13.0.0.1").getBytes()));
+		pathAttributes.add(new AsPath(Arrays.asList(targetId, reviewer.id)));
+		UpdateMessage um = new UpdateMessage(new ArrayList<>(), pathAttributes, Arrays.asList(Subnet.getSubnet("13.0.0.0/8")));
+		TrustMessage request = requester.getTrustEngine().decideTrustVote(requester.id, um).get();
+		
+		List<byte[]> replies = new ArrayList<>();
+		reviewer.getTrustEngine().handleTrustMessage(reviewer.id, request, 1, 2, replies::add, Runnable::run);
+		TrustMessage response = (TrustMessage) BGPMessage.deserialize(PacketEngine.extractBody(replies.get(0)));
+		requester.getTrustEngine().handleTrustMessage(requester.id, response, 2, 1,
+				packet -> fail("Response was answered"), Runnable::run);
+		return requester.getTrustEngine().getTrustFor(targetId) != 0;
+	}
+	
+	private static class CountingCrypto extends Curve25519TrustCrypto {
+		
+		private int decodedKeys;
+		
+		@Override
+		public TrustKeys decodePublicKeys(byte[] encoded) throws GeneralSecurityException {
+			decodedKeys++;
+			return super.decodePublicKeys(encoded);
+		}
+	}
+	
+	@Test
+	public void testTrustRequestDeduplication() throws Exception {
+		TrustEngine t = new TrustEngine();
+		List<PathAttribute> pathAttributes = new ArrayList<>();
+		pathAttributes.add(new Origin(2));
+		pathAttributes.add(new NextHop(Address.getAddress("10.0.0.1").getBytes()));
+		pathAttributes.add(new AsPath(Arrays.asList(1, 2)));
+		UpdateMessage um = new UpdateMessage(new ArrayList<>(), pathAttributes, Arrays.asList(Subnet.getSubnet("10.0.0.0/16")));
+		
+		TrustMessage request = t.decideTrustVote(1, um).get();
+		assertEquals(2, request.getReviewerId());
+		assertEquals(1, request.getTargetId());
+		// Vote of 2 on 1 is already on its way
+		assertFalse(t.decideTrustVote(1, um).isPresent());
+	}
+
+	
+	@Test
+	/**
+	 * Send a vote signed with Ed25519 and encrypted with a key agreed by X25519
+	 */
+	public void testCurve25519Votes() throws Exception {
+		final int TARGET_ID = 10;
+		TrustCryptoProvider crypto = new Curve25519TrustCrypto();
+		TrustEngine t = new TrustEngine(crypto);
+		TrustEngine t2 = new TrustEngine(crypto);
+		t2.changeDirectTrust(TARGET_ID, 100);
+		
+		byte[] encrTrust = t2.getEncryptedTrust(TARGET_ID, t.getEncodedPublicKeys());
+		byte[] signature = t2.getSignature(encrTrust);
+		
+		TrustMessage resp = new TrustMessage(crypto.getAlgorithmId(), 13, TARGET_ID, encrTrust, signature);
+		TrustMessage tmD = (TrustMessage) BGPMessage.deserialize(resp.serialize());
+		assertEquals(TrustCryptoProvider.CURVE25519, tmD.getAlgorithmId());
+		assertArrayEquals(encrTrust, tmD.getPayload());
+		assertArrayEquals(signature, tmD.getSignature());
+		
+		t.handleTrustVote(TARGET_ID, t2.getEncodedPublicKeys(), tmD.getPayload(), tmD.getSignature());
+		assertNotEquals(0, t.getTrustFor(TARGET_ID));
+		
+		// Tampered votes are rejected
+		encrTrust[encrTrust.length - 1] ^= 1;
+		try {
+			t.handleTrustVote(TARGET_ID, t2.getEncodedPublicKeys(), encrTrust, t2.getSignature(encrTrust));
+			fail("Tampered vote was accepted");
+		} catch (Exception e) {
+		}
+	}
+
+	
+	@Test
+	public void testSeededKeyPool() throws Exception {
+		TrustCryptoProvider crypto = new Curve25519TrustCrypto();
+		TrustKeyPool prewarmed = new TrustKeyPool(crypto, 42);
+		prewarmed.prewarm(1, 8);
+		assertEquals(8, prewarmed.size());
+		
+		TrustEngine t = new TrustEngine(5, crypto, prewarmed);
+		// Keys are taken on first use only
+		assertFalse(t.hasKeys());
+		assertEquals(8, prewarmed.size());
+		byte[] publicKeys = t.getEncodedPublicKeys();
+		assertTrue(t.hasKeys());
+		assertEquals(7, prewarmed.size());
+		
+		// Same seed and router give the same keys, whether generated ahead or on demand
+		TrustEngine t2 = new TrustEngine(5, crypto, new TrustKeyPool(crypto, 42));
+		assertArrayEquals(publicKeys, t2.getEncodedPublicKeys());
+		TrustEngine t3 = new TrustEngine(6, crypto, new TrustKeyPool(crypto, 42));
+		assertFalse(Arrays.equals(publicKeys, t3.getEncodedPublicKeys()));
+	}
+
+	
+	@Test
+	/**
+	 * The key directory serves existing or pooled keys, it never generates them for the asking router
+	 */
+	public void testKeyDirectory() throws Exception {
+		Simulator.resetState();
+		BGPRouter router = new BGPRouter(1, Subnet.getSubnet("11.0.0.0/8"));
+		Simulator.registerRouter(router);
+		assertEquals(0, Simulator.getPublicKey(1).length);
+		assertFalse(router.getTrustEngine().hasKeys());
+		
+		byte[] publicKeys = router.getTrustEngine().getEncodedPublicKeys();
+		assertArrayEquals(publicKeys, Simulator.getPublicKey(1));
+		
+		TrustCryptoProvider crypto = new Curve25519TrustCrypto();
+		TrustKeyPool pool = new TrustKeyPool(crypto, 42);
+		pool.prewarm(5, 1);
+		TrustEngine pooled = new TrustEngine(5, crypto, pool);
+		TrustEngine empty = new TrustEngine(6, crypto, pool);
+		assertEquals(0, empty.getPublishedPublicKeys().length);
+		assertFalse(empty.hasKeys());
+		// Keys ready in the pool are taken
+		assertTrue(pooled.getPublishedPublicKeys().length > 0);
+		assertTrue(pooled.hasKeys());
+		assertEquals(0, pool.size());
+		Simulator.resetState();
+	}
+
+	
+	@Test
+	public void testCostMultipliers() {
+		TrustEngine t = new TrustEngine();
+		assertEquals(128/255.0, t.getCostMultiplier(3), 1e-9);
+		
+		t.changeDirectTrust(3, 100);
+		t.setDirectTrust(1000, (byte) -100);
+		// Published multipliers follow the trust values
+		assertEquals((t.getTrustFor(3) + 128)/255.0, t.getCostMultiplier(3), 1e-9);
+		assertEquals((t.getTrustFor(1000) + 128)/255.0, t.getCostMultiplier(1000), 1e-9);
+		assertEquals(128/255.0, t.getCostMultiplier(500), 1e-9);
+		assertTrue(t.getCostMultiplier(3) > t.getCostMultiplier(1000));
+	}
+
+	
+	@Test
+	/**
+	 * Change direct trust from several threads at once, no change may be lost
+	 */
+	public void testConcurrentTrustChanges() throws Exception {
+		TrustEngine t = new TrustEngine();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread(() -> {
+				for (int j = 0; j < 1000; j++) {
+					t.changeDirectTrust(7, j % 2 == 0 ? 1 : -1);
+					t.changeDirectTrust(300 + j % 10, 0);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, t.getTrustFor(7));
+		assertEquals(128/255.0, t.getCostMultiplier(309), 1e-9);
+	}
+
+	
+	@Test
+	/**
+	 * Direct trust increases with the sweeps of the shared increaser, in virtual time
+	 */
+	public void testTrustIncrease() {
+		Simulator.setExecutionMode(ExecutionMode.DISCRETE_EVENT);
+		try {
+			TrustEngine t = new TrustEngine();
+			t.changeDirectTrust(5, -50);
+			t.setDirectTrust(6, (byte) 125);
+			byte before = t.getTrustFor(5);
+			
+			// Three sweeps
+			Simulator.getEventEngine().runUntil(3*60000);
+			assertEquals((byte) (0.6 * -41), t.getTrustFor(5));
+			assertTrue(t.getTrustFor(5) > before);
+			// Increases stop at the upper limit
+			assertEquals((byte) (0.6 * 127), t.getTrustFor(6));
+			// Sweeps republish the multipliers
+			assertEquals((t.getTrustFor(5) + 128)/255.0, t.getCostMultiplier(5), 1e-9);
+			
+			// Changes apply on top of the increases so far
+			t.changeDirectTrust(5, -10);
+			assertEquals((byte) (0.6 * -51), t.getTrustFor(5));
+			t.shutdown();
+		} finally {
+			Simulator.setExecutionMode(ExecutionMode.REAL_TIME);
+		}
+	}
+
 }
@@ -11,6 +11,7 @@ import org.junit.Test;
 
 import bgp.core.messages.BGPMessage;
 import bgp.core.messages.UpdateMessage;
+import bgp.core.messages.UpdateMessage.PrefixCursor;
 import bgp.core.messages.notificationexceptions.NotificationException;
 import bgp.core.messages.pathattributes.AsPath;
 import bgp.core.messages.pathattributes.NextHop;
@@ -61,5 +62,88 @@ public class UpdateMessageTest {
 			fail(e.buildNotification().toString());
 		}
 	}
+	
+	@Test
+	/**
+	 * Test reading a received UPDATE message without decoding it.
+	 */
+	public void testLazyDecoding() {
+		try {
+			List<PathAttribute> pathAttributes = new ArrayList<>();
+			pathAttributes.add(new Origin(2));
+			pathAttributes.add(new NextHop(Address.getAddress("132.25.67.101").getBytes()));
+			pathAttributes.add(new AsPath(Arrays.asList(200, 1000, 3)));
+			
+			List<Subnet> NLRI = new ArrayList<>();
+			NLRI.add(Subnet.getSubnet("10.0.0.0/8"));
+			NLRI.add(Subnet.getSubnet("192.168.128.0/17"));
+			
+			UpdateMessage original = new UpdateMessage(Arrays.asList(Subnet.getSubnet("10.17.25.0/24")), pathAttributes, NLRI);
+			UpdateMessage deserialized = (UpdateMessage) BGPMessage.deserialize(original.serialize());
+			
+			assertEquals(2, deserialized.getOriginValue());
+			assertEquals(3, deserialized.getAsPathLength());
+			assertEquals(200, deserialized.getAsPathId(0));
+			assertEquals(1000, deserialized.getAsPathId(1));
+			assertEquals(3, deserialized.getAsPathId(2));
+			
+			PrefixCursor c = deserialized.getWithdrawnRoutesCursor();
+			assertTrue(c.next());
+			assertEquals(Subnet.getSubnet("10.17.25.0/24").getAddress(), c.getAddress());
+			assertEquals(24, c.getLength());
+			assertFalse(c.next());
+			
+			c = deserialized.getNLRICursor();
+			for (Subnet s : NLRI) {
+				assertTrue(c.next());
+				assertEquals(s.getAddress(), c.getAddress());
+				assertEquals(s.getBitmaskLength(), c.getLength());
+			}
+			assertFalse(c.next());
+			
+			// Decoding on demand gives the same path as the original
+			assertThat(deserialized.getPathAttributes(), CoreMatchers.hasItems(pathAttributes.toArray(new PathAttribute[pathAttributes.size()])));
+		} catch (NotificationException e) {
+			fail(e.buildNotification().toString());
+		}
+	}
+	
+	@Test
+	/**
+	 * Truncated UPDATE messages must be rejected with a NOTIFICATION error, not an exception of the decoder.
+	 */
+	public void testTruncatedMessage() throws Exception {
+		// Header, no withdrawn routes and one octet of path attributes, cut after the attribute flags
+		byte[] truncated = new byte[24];
+		Arrays.fill(truncated, 0, 16, (byte) 0xFF);
+		truncated[17] = 24;
+		truncated[18] = 2;				// UPDATE
+		truncated[22] = 1;
+		truncated[23] = 0x40;
+		try {
+			BGPMessage.deserialize(truncated);
+			fail("Truncated UPDATE was accepted");
+		} catch (NotificationException e) {
+		}
+		
+		List<PathAttribute> pathAttributes = new ArrayList<>();
+		pathAttributes.add(new Origin(1));
+		pathAttributes.add(new NextHop(Address.getAddress("132.25.67.101").getBytes()));
+		pathAttributes.add(new AsPath(Arrays.asList(1,2,3)));
+		byte[] message = new UpdateMessage(Arrays.asList(Subnet.getSubnet("10.0.0.0/8")), pathAttributes,
+				Arrays.asList(Subnet.getSubnet("11.0.0.0/8"))).serialize();
+		for (int length = 19; length < message.length; length++) {
+			// Declare the path attributes to end with the message
+			byte[] cut = Arrays.copyOf(message, length);
+			if (length > 25) {
+				int pathAttributesLength = length - 25;
+				cut[24] = (byte) pathAttributesLength;
+			}
+			try {
+				BGPMessage.deserialize(cut);
+			} catch (NotificationException e) {
+			}
+		}
+	}
 
 }
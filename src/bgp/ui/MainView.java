@@ -282,7 +282,7 @@ public class MainView extends JFrame {
 			setLayout(new BorderLayout(10, 0));
 			double timestamp = task.getDelay() / 1000.0;
 			if (Simulator.getSimulationState() == SimulationState.STARTED) {
-				timestamp = (System.currentTimeMillis() - Simulator.getSimulationStartTime()) / 1000.0;
+				timestamp = (Simulator.currentTimeMillis() - Simulator.getSimulationStartTime()) / 1000.0;
 			}
 			prefix = "<html><b>" + task.getType().toString() + "</b> (" + timestamp + " s)<br>Status: ";
 			suffix = "</html>";
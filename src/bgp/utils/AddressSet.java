@@ -0,0 +1,194 @@
+package bgp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent set of IPv4 addresses, one bit per address. Addresses are indexed by their
+ * /8 prefix and kept in bitmaps of a /16 each, allocated on first use, so adding,
+ * removing and looking up an address take constant time without locks or boxing.
+ */
+public class AddressSet {
+
+	private static final long VALID_ADDRESSES = 1L << 32;
+	private static final int PAGE_BITS = 16;
+	private static final int WORDS_PER_PAGE = (1 << PAGE_BITS) / Long.SIZE;
+
+	// Pages of /16's by the second octet, grouped by the first octet
+	private final AtomicReferenceArray<AtomicReferenceArray<AtomicLongArray>> prefixes;
+	private final LongAdder size;
+
+	public AddressSet() {
+		this.prefixes = new AtomicReferenceArray<>(256);
+		this.size = new LongAdder();
+	}
+
+	/**
+	 * @param address
+	 * @return false if the address was already in the set
+	 * @throws IllegalArgumentException if the address is not a valid IPv4 address
+	 */
+	public boolean add(long address) throws IllegalArgumentException {
+		AtomicLongArray page = getPage(address, true);
+		int word = getWord(address);
+		long bit = getBit(address);
+		while (true) {
+			long current = page.get(word);
+			if ((current & bit) != 0) {
+				return false;
+			}
+			if (page.compareAndSet(word, current, current | bit)) {
+				size.increment();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @param address
+	 * @return false if the address was not in the set
+	 */
+	public boolean remove(long address) {
+		AtomicLongArray page = getPage(address, false);
+		if (page == null) {
+			return false;
+		}
+		int word = getWord(address);
+		long bit = getBit(address);
+		while (true) {
+			long current = page.get(word);
+			if ((current & bit) == 0) {
+				return false;
+			}
+			if (page.compareAndSet(word, current, current & ~bit)) {
+				size.decrement();
+				return true;
+			}
+		}
+	}
+
+	public boolean contains(long address) {
+		AtomicLongArray page = getPage(address, false);
+		return page != null && (page.get(getWord(address)) & getBit(address)) != 0;
+	}
+
+	/**
+	 * Add all addresses of a range, none are added if any of them is already in the set.
+	 * Concurrent changes within the range may cause it to fail even though the range was free.
+	 * @param first First address of the range
+	 * @param count Amount of addresses
+	 * @return false if an address of the range was already in the set
+	 * @throws IllegalArgumentException if the range is not within the IPv4 address space
+	 */
+	public boolean addRange(long first, long count) throws IllegalArgumentException {
+		checkAddress(first);
+		checkAddress(first + Math.max(count, 1) - 1);
+		for (long a = first; a < first + count; a++) {
+			if (!add(a)) {
+				// Roll back the part already added
+				for (long added = first; added < a; added++) {
+					remove(added);
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param first First address of the range
+	 * @param count Amount of addresses
+	 */
+	public void removeRange(long first, long count) {
+		for (long a = first; a < first + count; a++) {
+			remove(a);
+		}
+	}
+
+	/**
+	 * Find the first address of a range not in the set, a word of 64 addresses at a time.
+	 * @param first First address of the range
+	 * @param last Last address of the range
+	 * @return The address, or -1 if all addresses of the range are in the set
+	 */
+	public long nextAbsent(long first, long last) {
+		long a = Math.max(first, 0);
+		last = Math.min(last, VALID_ADDRESSES - 1);
+		while (a <= last) {
+			AtomicLongArray page = getPage(a, false);
+			if (page == null) {
+				return a;
+			}
+			long free = ~page.get(getWord(a)) & (~0L << (a & (Long.SIZE - 1)));
+			if (free != 0) {
+				long found = (a & ~(long) (Long.SIZE - 1)) + Long.numberOfTrailingZeros(free);
+				return found <= last ? found : -1;
+			}
+			a = (a | (Long.SIZE - 1)) + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Amount of addresses in the set
+	 */
+	public long size() {
+		return size.sum();
+	}
+
+	/**
+	 * Remove all addresses. Not atomic with concurrent additions.
+	 */
+	public void clear() {
+		for (int i = 0; i < prefixes.length(); i++) {
+			prefixes.set(i, null);
+		}
+		size.reset();
+	}
+
+	private static void checkAddress(long address) throws IllegalArgumentException {
+		if (address < 0 || address >= VALID_ADDRESSES) {
+			throw new IllegalArgumentException("Not an IPv4 address: " + address);
+		}
+	}
+
+	private static int getWord(long address) {
+		return (int) (address & ((1 << PAGE_BITS) - 1)) / Long.SIZE;
+	}
+
+	private static long getBit(long address) {
+		return 1L << (address & (Long.SIZE - 1));
+	}
+
+	/**
+	 * @param create Whether missing pages are allocated
+	 * @return Bitmap of the /16 of the address, null if it does not exist and is not created
+	 */
+	private AtomicLongArray getPage(long address, boolean create) throws IllegalArgumentException {
+		if (address < 0 || address >= VALID_ADDRESSES) {
+			if (create) {
+				checkAddress(address);
+			}
+			return null;
+		}
+		int first = (int) (address >>> 24);
+		int second = (int) (address >>> PAGE_BITS) & 0xFF;
+		AtomicReferenceArray<AtomicLongArray> pages = prefixes.get(first);
+		if (pages == null) {
+			if (!create) {
+				return null;
+			}
+			// Another thread may have been faster
+			prefixes.compareAndSet(first, null, new AtomicReferenceArray<>(256));
+			pages = prefixes.get(first);
+		}
+		AtomicLongArray page = pages.get(second);
+		if (page == null && create) {
+			pages.compareAndSet(second, null, new AtomicLongArray(WORDS_PER_PAGE));
+			page = pages.get(second);
+		}
+		return page;
+	}
+
+}
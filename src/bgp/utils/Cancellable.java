@@ -0,0 +1,13 @@
+package bgp.utils;
+
+/**
+ * Handle of a scheduled task, regardless of the timer running it.
+ */
+public interface Cancellable {
+
+	/**
+	 * Prevent further runs of the task. A run already started is not interrupted.
+	 */
+	void cancel();
+
+}
@@ -14,4 +14,34 @@ public class Consts {
 	
 	public static final int DEFAULT_HOLD_DOWN_TIME = DEFAULT_KEEPALIVE_INTERVAL * 3;
 	
+	/**
+	 * Packet processing threads per router, 1 processes all packets in a single thread
+	 */
+	public static final int DEFAULT_PACKET_PROCESSING_SHARDS = 1;
+	
+	/**
+	 * Milliseconds routing changes are coalesced before running the decision process
+	 */
+	public static final long DEFAULT_DECISION_WINDOW = 10;
+	
+	/**
+	 * Minimum route advertisement interval for eBGP peers (RFC 4271)
+	 */
+	public static final long DEFAULT_MRAI_INTERVAL = 30000;
+	
+	/**
+	 * MRAI is scaled down to keep simulated convergence times short, 30 s becomes 30 ms
+	 */
+	public static final double DEFAULT_MRAI_SCALE = 0.001;
+	
+	/**
+	 * Virtual delay of a link in milliseconds in discrete-event simulation
+	 */
+	public static final long DEFAULT_LINK_LATENCY = 1;
+	
+	/**
+	 * Tasks waiting in a router's packet processing or maintenance mailbox before it overflows
+	 */
+	public static final int DEFAULT_MAILBOX_CAPACITY = 4096;
+	
 }
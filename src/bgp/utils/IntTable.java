@@ -0,0 +1,123 @@
+package bgp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Concurrent map from 16-bit keys, such as AS ids, to int values without boxing.
+ * Values are kept in pages of 256 slots allocated on first use, so a table holding
+ * a few ids stays small. Reads take no locks and updates are atomic per key.
+ *
+ * Integer.MIN_VALUE marks an absent key and can not be stored.
+ */
+public class IntTable {
+	
+	public static final int MAX_KEY = 0xFFFF;
+	
+	private static final int PAGE_BITS = 8;
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+	private static final int ABSENT = Integer.MIN_VALUE;
+	
+	private final AtomicReferenceArray<AtomicIntegerArray> pages;
+	
+	public IntTable() {
+		this.pages = new AtomicReferenceArray<>((MAX_KEY + 1) >> PAGE_BITS);
+	}
+	
+	/**
+	 * @param key
+	 * @param defaultValue
+	 * @return Value of the key, or the default value if the key is absent
+	 */
+	public int get(int key, int defaultValue) {
+		if (key < 0 || key > MAX_KEY) {
+			return defaultValue;
+		}
+		AtomicIntegerArray page = pages.get(key >>> PAGE_BITS);
+		if (page == null) {
+			return defaultValue;
+		}
+		int value = page.get(key & (PAGE_SIZE - 1));
+		return value != ABSENT ? value : defaultValue;
+	}
+	
+	public boolean containsKey(int key) {
+		return get(key, ABSENT) != ABSENT;
+	}
+	
+	/**
+	 * @param key
+	 * @param value
+	 * @throws IllegalArgumentException if the key is out of range or the value is Integer.MIN_VALUE
+	 */
+	public void put(int key, int value) throws IllegalArgumentException {
+		checkValue(value);
+		getPage(key).set(key & (PAGE_SIZE - 1), value);
+	}
+	
+	/**
+	 * Atomically update the value of a key.
+	 * @param key
+	 * @param absentValue Value the function is given if the key is absent
+	 * @param function Applied to the current value, may be run several times under contention
+	 * @return The new value
+	 * @throws IllegalArgumentException if the key is out of range or the new value is Integer.MIN_VALUE
+	 */
+	public int update(int key, int absentValue, IntUnaryOperator function) throws IllegalArgumentException {
+		AtomicIntegerArray page = getPage(key);
+		int index = key & (PAGE_SIZE - 1);
+		while (true) {
+			int current = page.get(index);
+			int updated = function.applyAsInt(current != ABSENT ? current : absentValue);
+			checkValue(updated);
+			if (page.compareAndSet(index, current, updated)) {
+				return updated;
+			}
+		}
+	}
+	
+	/**
+	 * Run an action for every present key in ascending order. Keys added or removed
+	 * meanwhile may or may not be seen.
+	 * @param action
+	 */
+	public void forEachKey(IntConsumer action) {
+		for (int p = 0; p < pages.length(); p++) {
+			AtomicIntegerArray page = pages.get(p);
+			if (page == null) {
+				continue;
+			}
+			for (int i = 0; i < PAGE_SIZE; i++) {
+				if (page.get(i) != ABSENT) {
+					action.accept((p << PAGE_BITS) | i);
+				}
+			}
+		}
+	}
+	
+	private AtomicIntegerArray getPage(int key) throws IllegalArgumentException {
+		if (key < 0 || key > MAX_KEY) {
+			throw new IllegalArgumentException("Key out of range: " + key);
+		}
+		int p = key >>> PAGE_BITS;
+		AtomicIntegerArray page = pages.get(p);
+		if (page == null) {
+			AtomicIntegerArray created = new AtomicIntegerArray(PAGE_SIZE);
+			for (int i = 0; i < PAGE_SIZE; i++) {
+				created.set(i, ABSENT);
+			}
+			// Another thread may have been faster
+			page = pages.compareAndSet(p, null, created) ? created : pages.get(p);
+		}
+		return page;
+	}
+	
+	private static void checkValue(int value) throws IllegalArgumentException {
+		if (value == ABSENT) {
+			throw new IllegalArgumentException("Integer.MIN_VALUE can not be stored");
+		}
+	}
+
+}
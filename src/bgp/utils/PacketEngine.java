@@ -1,5 +1,7 @@
 package bgp.utils;
 
+import java.nio.ByteBuffer;
+
 /**
  * Builds IPv4 packets.
  * @author Niko
@@ -7,7 +9,7 @@ package bgp.utils;
  */
 public class PacketEngine {
 	
-	private static final int HEADER_LENGTH = 20;
+	public static final int HEADER_LENGTH = 20;
 	/**
 	 * Only IPv4 is supported in this simulation
 	 */
@@ -38,43 +40,59 @@ public class PacketEngine {
 	}
 	
 	public static byte[] buildPacket(long from, long to, byte[] payload) {
-		int totalLen = HEADER_LENGTH + payload.length;
-		
-		byte[] result = new byte[totalLen];
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+		writeHeader(buffer, from, to);
+		buffer.put(payload);
+		completeHeader(buffer, 0);
 		
-		result[0] = (VERSION << 4) + IHL;
-		result[1] = (DSCP << 2) + ECN;
-		result[2] = (byte) (totalLen >> 8);
-		result[3] = (byte) (totalLen);
+		return buffer.array();
+	}
+	
+	/**
+	 * Write an IPv4 header to the buffer at its current position. Total length and checksum
+	 * are left empty, the payload should be written next and the header finished with
+	 * {@link #completeHeader(ByteBuffer, int)}.
+	 * 
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 */
+	public static void writeHeader(ByteBuffer buffer, long from, long to) {
+		buffer.put((byte) ((VERSION << 4) + IHL));
+		buffer.put((byte) ((DSCP << 2) + ECN));
+		// Total length is filled in when the payload is in place
+		buffer.putShort((short) 0);
 		
 		// No fragmentation necessary, ID can be 0
-		result[4] = 0;
-		result[5] = 0;
+		buffer.putShort((short) 0);
 		// 0: Reserved, must be zero, 1: Don't fragment, 0: More fragments
-		result[6] = (0b010 << 5) + 0;
-		result[7] = 0;
+		buffer.put((byte) ((0b010 << 5) + 0));
+		buffer.put((byte) 0);
 		
-		result[8] = DEFAULT_TTL;
-		result[9] = DEFAULT_PROTOCOL;
+		buffer.put(DEFAULT_TTL);
+		buffer.put(DEFAULT_PROTOCOL);
 		// Checksum is calculated after all values are in place
+		buffer.putShort((short) 0);
 		
-		result[12] = (byte) (from >> 24);
-		result[13] = (byte) (from >> 16);
-		result[14] = (byte) (from >> 8);
-		result[15] = (byte) (from);
-		
-		result[16] = (byte) (to >> 24);
-		result[17] = (byte) (to >> 16);
-		result[18] = (byte) (to >> 8);
-		result[19] = (byte) (to);
-		
-		long checksum = calculateChecksum(result);
-		result[10] = (byte) (checksum >> 8);
-		result[11] = (byte) (checksum);
-		
-		System.arraycopy(payload, 0, result, HEADER_LENGTH, payload.length);
-		
-		return result;
+		buffer.putInt((int) from);
+		buffer.putInt((int) to);
+	}
+	
+	/**
+	 * Fill in the total length and checksum of a header written with
+	 * {@link #writeHeader(ByteBuffer, long, long)}, the payload ending at the current position.
+	 * 
+	 * @param buffer
+	 * @param start Index of the first header octet
+	 */
+	public static void completeHeader(ByteBuffer buffer, int start) {
+		int totalLen = buffer.position() - start;
+		buffer.put(start + 2, (byte) (totalLen >> 8));
+		buffer.put(start + 3, (byte) (totalLen));
+		
+		long checksum = calculateChecksum(buffer, start);
+		buffer.put(start + 10, (byte) (checksum >> 8));
+		buffer.put(start + 11, (byte) (checksum));
 	}
 	
 	/**
@@ -98,6 +116,26 @@ public class PacketEngine {
 		packet[11] = (byte) (checksum&0xFF);
 	}
 	
+	/**
+	 * Calculate the header checksum of a packet starting at the given index of the buffer,
+	 * same as {@link #calculateChecksum(byte[])}.
+	 * @param buffer
+	 * @param start
+	 * @return
+	 */
+	public static long calculateChecksum(ByteBuffer buffer, int start) {
+		long calculatedChecksum = 0;
+		for (int i = start; i < start + HEADER_LENGTH; i += 2) {
+			calculatedChecksum = (calculatedChecksum | (((buffer.get(i) << 8)&0xFF00) | (buffer.get(i+1)&0x00FF)))
+					&0xFFFFFFFF;
+		}
+		while ((calculatedChecksum&0xFFFFFFFF) > 0xFFFF) {
+			calculatedChecksum = (((calculatedChecksum&0xFFFF0000) >>> 16)
+					| (calculatedChecksum&0x0000FFFF))&0xFFFFFFFF;
+		}
+		return (~calculatedChecksum) & 0xFFFF;
+	}
+	
 	public static long calculateChecksum(byte[] packet) {
 		// AND operations with 0xFF's are in place to avoid type casting to int
 		long calculatedChecksum = 0;
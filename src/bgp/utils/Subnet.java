@@ -8,7 +8,7 @@ public class Subnet extends Address {
 	protected Subnet(long address, long bitmask) {
 		super(address & bitmask & 0xFFFFFFFF);
 		this.bitmask = bitmask & 0xFFFFFFFF;
-		this.bitmaskLength = getBitmaskLength();
+		this.bitmaskLength = Long.bitCount(this.bitmask);
 	}
 	
 	public boolean containsAddress(Address other) {
@@ -55,7 +55,7 @@ public class Subnet extends Address {
 	}
 	
 	public int getBitmaskLength() {
-		return Long.toBinaryString(this.bitmask).replace("0", "").length();
+		return bitmaskLength;
 	}
 	
 	public long getBitmask() {